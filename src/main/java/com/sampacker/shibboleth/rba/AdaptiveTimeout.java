@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2025 Sam Packer
+ *
+ * This software is licensed under the PolyForm Noncommercial License 1.0.0.
+ *
+ * You may use, copy, modify, and distribute this software for noncommercial purposes only.
+ * Commercial use of this software, in whole or in part, is prohibited.
+ *
+ * See the full license text at:
+ * https://polyformproject.org/licenses/noncommercial/1.0.0/
+ * or in the LICENSE.md file included with this source code.
+ */
+
+package com.sampacker.shibboleth.rba;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Read timeout derived from the scorer's observed latency: {@code multiplier} times the configured percentile,
+ * clamped to {@code [floor, ceiling]}. Until enough samples exist the configured fallback is used.
+ * The value is recomputed every {@value #RECOMPUTE_EVERY} samples rather than per login.
+ */
+final class AdaptiveTimeout {
+    static final int MIN_SAMPLES = 100;
+    private static final int RECOMPUTE_EVERY = 64;
+
+    private final LatencyHistogram histogram;
+    private final double percentile;
+    private final double multiplier;
+    private final long floorNanos;
+    private final long ceilingNanos;
+    private final long fallbackNanos;
+    private final AtomicLong sinceRecompute = new AtomicLong();
+    private volatile long currentNanos;
+
+    AdaptiveTimeout(LatencyHistogram histogram, double percentile, double multiplier,
+                    Duration floor, Duration ceiling, Duration fallback) {
+        this.histogram = histogram;
+        this.percentile = percentile;
+        this.multiplier = multiplier;
+        this.floorNanos = floor.toNanos();
+        this.ceilingNanos = ceiling.toNanos();
+        this.fallbackNanos = fallback.toNanos();
+        this.currentNanos = fallbackNanos;
+    }
+
+    Duration current() {
+        return Duration.ofNanos(currentNanos);
+    }
+
+    /**
+     * Record a call's latency. Calls that timed out should be recorded with their elapsed time too, so a
+     * degrading scorer pushes the timeout up instead of being cut off at a stale value.
+     */
+    void record(long nanos) {
+        histogram.record(nanos);
+        if (sinceRecompute.incrementAndGet() >= RECOMPUTE_EVERY) {
+            sinceRecompute.set(0);
+            recompute();
+        }
+    }
+
+    private void recompute() {
+        if (histogram.samples() < MIN_SAMPLES) {
+            currentNanos = fallbackNanos;
+            return;
+        }
+        final long target = (long) (histogram.percentileNanos(percentile) * multiplier);
+        currentNanos = Math.max(floorNanos, Math.min(ceilingNanos, target));
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2025 Sam Packer
+ *
+ * This software is licensed under the PolyForm Noncommercial License 1.0.0.
+ *
+ * You may use, copy, modify, and distribute this software for noncommercial purposes only.
+ * Commercial use of this software, in whole or in part, is prohibited.
+ *
+ * See the full license text at:
+ * https://polyformproject.org/licenses/noncommercial/1.0.0/
+ * or in the LICENSE.md file included with this source code.
+ */
+
+package com.sampacker.shibboleth.rba;
+
+import com.codahale.metrics.Counter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.LongConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Collects scoring requests from concurrent logins and sends them to the scorer's batch endpoint as one array,
+ * then hands each login its own score back.
+ * <p>
+ * A batch is sent when it reaches {@code maxBatchSize} or when {@code linger} has passed since its first request,
+ * whichever comes first. The dispatcher does not wait for a batch's response before assembling the next one. The
+ * scorer must answer with an array of objects carrying "threatScore", in request order, in either wire format.
+ */
+final class BatchDispatcher implements AutoCloseable {
+    private final Logger log = LoggerFactory.getLogger(BatchDispatcher.class);
+
+    private final ScorerTransport transport;
+    private final ScoringCodec codec;
+    private final URI batchEndpoint;
+    private final int maxBatchSize;
+    private final long lingerNanos;
+    private final long deadlineNanos;
+    private final Supplier<Duration> readTimeout;
+    private final LongConsumer latencyRecorder;
+    private final BlockingQueue<Pending> queue;
+    private final Thread dispatcher;
+    private final Counter batchesSent;
+    private final Counter requestsBatched;
+    private volatile boolean running = true;
+
+    private record Pending(ScoringRequest request, CompletableFuture<ScoreResult> result) {
+    }
+
+    BatchDispatcher(ScorerTransport transport, ScoringCodec codec, URI batchEndpoint, int maxBatchSize, Duration linger,
+                    Duration deadline, Supplier<Duration> readTimeout,
+                    LongConsumer latencyRecorder, RbaMetrics metrics) {
+        this.transport = transport;
+        this.codec = codec;
+        this.batchEndpoint = batchEndpoint;
+        this.maxBatchSize = maxBatchSize;
+        this.lingerNanos = linger.toNanos();
+        this.deadlineNanos = deadline.toNanos();
+        this.readTimeout = readTimeout;
+        this.latencyRecorder = latencyRecorder;
+        this.queue = new ArrayBlockingQueue<>(maxBatchSize * 64);
+        this.batchesSent = metrics.counter("batch.sent");
+        this.requestsBatched = metrics.counter("batch.requests");
+        metrics.gauge("batch.queued", queue::size);
+        this.dispatcher = new DaemonThreadFactory("rba-batch").newThread(this::run);
+        this.dispatcher.start();
+    }
+
+    /**
+     * Queue a request and wait, up to the per-request deadline, for its score.
+     */
+    ScoreResult score(ScoringRequest request) throws IOException, InterruptedException {
+        final CompletableFuture<ScoreResult> result = new CompletableFuture<>();
+        if (!queue.offer(new Pending(request, result))) {
+            throw new BatchQueueFullException();
+        }
+        try {
+            return result.get(deadlineNanos, TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            // The dispatcher skips cancelled requests that have not been sent yet.
+            result.cancel(false);
+            throw new HttpTimeoutException("RBA batch request did not complete within "
+                    + TimeUnit.NANOSECONDS.toMillis(deadlineNanos) + " ms");
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    private void run() {
+        final List<Pending> batch = new ArrayList<>(maxBatchSize);
+        while (running) {
+            try {
+                final Pending first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch.add(first);
+                final long sendBy = System.nanoTime() + lingerNanos;
+                while (batch.size() < maxBatchSize) {
+                    final long remaining = sendBy - System.nanoTime();
+                    if (remaining <= 0) {
+                        queue.drainTo(batch, maxBatchSize - batch.size());
+                        break;
+                    }
+                    final Pending next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) break;
+                    batch.add(next);
+                }
+                batch.removeIf(p -> p.result().isDone());
+                if (!batch.isEmpty()) send(List.copyOf(batch));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (RuntimeException e) {
+                log.error("RBA batch dispatcher failed to send a batch", e);
+                batch.forEach(p -> p.result().completeExceptionally(e));
+            } finally {
+                batch.clear();
+            }
+        }
+        failPending(new IOException("RBA batch dispatcher stopped"));
+    }
+
+    private void send(List<Pending> batch) {
+        final List<ScoringRequest> requests = new ArrayList<>(batch.size());
+        for (Pending p : batch) {
+            requests.add(p.request());
+        }
+        // Not the per-thread buffer: the next batch is assembled while this one is still being sent.
+        final PayloadBuffer body = new PayloadBuffer();
+        codec.encodeBatch(requests, body);
+
+        batchesSent.inc();
+        requestsBatched.inc(batch.size());
+        log.debug("Sending batch of {} to RBA service", batch.size());
+        final long start = System.nanoTime();
+        transport.postAsync(batchEndpoint, body.array(), body.length(), codec, readTimeout.get(), true)
+                .whenComplete((response, error) -> {
+                    if (error != null) {
+                        if (error instanceof HttpTimeoutException) latencyRecorder.accept(System.nanoTime() - start);
+                        batch.forEach(p -> p.result().completeExceptionally(error));
+                        return;
+                    }
+                    try (response) {
+                        final ScoreResult[] scores = readScores(response, codec, batch.size());
+                        latencyRecorder.accept(System.nanoTime() - start);
+                        for (int i = 0; i < scores.length; i++) {
+                            batch.get(i).result().complete(scores[i]);
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        batch.forEach(p -> p.result().completeExceptionally(e));
+                    }
+                });
+    }
+
+    private static ScoreResult[] readScores(ScorerResponse response, ScoringCodec codec, int expected)
+            throws IOException {
+        if (!response.isOk()) {
+            throw new IOException("RBA batch service returned non-2xx status: " + response.status());
+        }
+        try (InputStream in = response.body()) {
+            return ScoringCodec.forResponse(response.contentType(), codec).decodeBatch(in, expected);
+        }
+    }
+
+    private void failPending(IOException e) {
+        Pending p;
+        while ((p = queue.poll()) != null) {
+            p.result().completeExceptionally(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        dispatcher.interrupt();
+        failPending(new IOException("RBA batch dispatcher stopped"));
+    }
+}
@@ -0,0 +1,28 @@
+/*
+ * Copyright (c) 2025 Sam Packer
+ *
+ * This software is licensed under the PolyForm Noncommercial License 1.0.0.
+ *
+ * You may use, copy, modify, and distribute this software for noncommercial purposes only.
+ * Commercial use of this software, in whole or in part, is prohibited.
+ *
+ * See the full license text at:
+ * https://polyformproject.org/licenses/noncommercial/1.0.0/
+ * or in the LICENSE.md file included with this source code.
+ */
+
+package com.sampacker.shibboleth.rba;
+
+import java.io.IOException;
+
+/**
+ * Thrown instead of queueing a request when the batch queue is full. Like {@link ConnectionLimitExceededException}
+ * it reflects this node's load, not the scorer's health.
+ */
+final class BatchQueueFullException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    BatchQueueFullException() {
+        super("RBA batch queue is full");
+    }
+}
@@ -0,0 +1,413 @@
+/*
+ * Copyright (c) 2025 Sam Packer
+ *
+ * This software is licensed under the PolyForm Noncommercial License 1.0.0.
+ *
+ * You may use, copy, modify, and distribute this software for noncommercial purposes only.
+ * Commercial use of this software, in whole or in part, is prohibited.
+ *
+ * See the full license text at:
+ * https://polyformproject.org/licenses/noncommercial/1.0.0/
+ * or in the LICENSE.md file included with this source code.
+ */
+
+package com.sampacker.shibboleth.rba;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * CBOR (RFC 8949) wire format: the request is a map with the same keys as the JSON payload, enrichment fields
+ * included, encoded directly into the payload buffer. Responses are decoded straight from the stream, skipping
+ * everything except "threatScore", "ttl" and "modelVersion", so no object tree is built.
+ */
+final class CborScoringCodec implements ScoringCodec {
+    static final CborScoringCodec INSTANCE = new CborScoringCodec();
+
+    private static final int MAJOR_UNSIGNED = 0;
+    private static final int MAJOR_NEGATIVE = 1;
+    private static final int MAJOR_BYTES = 2;
+    private static final int MAJOR_TEXT = 3;
+    private static final int MAJOR_ARRAY = 4;
+    private static final int MAJOR_MAP = 5;
+    private static final int MAJOR_TAG = 6;
+    private static final int MAJOR_SIMPLE = 7;
+    private static final int INDEFINITE = 31;
+    private static final int BREAK = 0xFF;
+    private static final int FALSE = 0xF4;
+    private static final int TRUE = 0xF5;
+    private static final int NULL = 0xF6;
+    private static final int DOUBLE = 0xFB;
+    private static final int MAX_DEPTH = 16;
+    private static final int READ_BUFFER_SIZE = 2048;
+    private static final ThreadLocal<Reader> READERS = ThreadLocal.withInitial(Reader::new);
+    private static final String THREAT_SCORE = "threatScore";
+    private static final String TTL = "ttl";
+    private static final String MODEL_VERSION = "modelVersion";
+
+    private CborScoringCodec() {
+    }
+
+    @Override
+    public String contentType() {
+        return "application/cbor";
+    }
+
+    @Override
+    public String accept() {
+        return "application/cbor, application/json;q=0.5";
+    }
+
+    @Override
+    public void encode(ScoringRequest request, PayloadBuffer out) {
+        writeHeader(out, MAJOR_MAP, 3 + request.fields().size());
+        writeText(out, "username");
+        writeText(out, request.username());
+        writeText(out, "ipAddress");
+        writeText(out, request.ipAddress());
+        writeText(out, "userAgent");
+        writeText(out, request.userAgent());
+        for (Map.Entry<String, Object> field : request.fields().entrySet()) {
+            writeText(out, field.getKey());
+            writeValue(out, field.getValue());
+        }
+    }
+
+    @Override
+    public void encodeBatch(List<ScoringRequest> requests, PayloadBuffer out) {
+        writeHeader(out, MAJOR_ARRAY, requests.size());
+        for (ScoringRequest request : requests) {
+            encode(request, out);
+        }
+    }
+
+    @Override
+    public ScoreResult decode(InputStream in) throws IOException {
+        final Reader reader = READERS.get().open(in);
+        try {
+            return readScoreMap(reader, 0);
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Override
+    public ScoreResult[] decodeBatch(InputStream in, int expected) throws IOException {
+        final Reader reader = READERS.get().open(in);
+        try {
+            final int ib = reader.readByte();
+            if (ib >>> 5 != MAJOR_ARRAY) throw new IOException("RBA batch response is not a CBOR array");
+            final long count = reader.readArgument(ib & 0x1F);
+            if (count != expected) {
+                throw new IOException("RBA batch response has " + count + " results for " + expected
+                        + " requests");
+            }
+            final ScoreResult[] results = new ScoreResult[expected];
+            for (int i = 0; i < expected; i++) {
+                results[i] = readScoreMap(reader, 1);
+            }
+            return results;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static ScoreResult readScoreMap(Reader reader, int depth) throws IOException {
+        final int ib = reader.readByte();
+        if (ib >>> 5 != MAJOR_MAP) throw new IOException("RBA response is not a CBOR map");
+        final boolean indefinite = (ib & 0x1F) == INDEFINITE;
+        final long pairs = indefinite ? Long.MAX_VALUE : reader.readLength(ib & 0x1F);
+        double threatScore = Double.NaN;
+        boolean found = false;
+        double ttlSeconds = Double.NaN;
+        String modelVersion = null;
+        for (long i = 0; i < pairs; i++) {
+            final int keyByte = reader.readByte();
+            if (indefinite && keyByte == BREAK) break;
+            final String key;
+            if (keyByte >>> 5 == MAJOR_TEXT && (keyByte & 0x1F) != INDEFINITE) {
+                key = reader.knownKey(keyByte);
+            } else {
+                reader.skip(keyByte, depth + 1);
+                key = null;
+            }
+            if (key == THREAT_SCORE) {
+                threatScore = reader.readNumber();
+                found = true;
+            } else if (key == TTL) {
+                ttlSeconds = reader.readOptionalNumber(depth + 1);
+            } else if (key == MODEL_VERSION) {
+                modelVersion = reader.readOptionalText(depth + 1);
+            } else {
+                reader.skip(reader.readByte(), depth + 1);
+            }
+        }
+        if (!found) throw new IOException("RBA response missing required 'threatScore'.");
+        return new ScoreResult(ScoringCodec.checkScore(threatScore), ScoreResult.ttlFromSeconds(ttlSeconds),
+                modelVersion);
+    }
+
+    private static void writeHeader(PayloadBuffer out, int major, long value) {
+        final int mt = major << 5;
+        if (value < 24) {
+            out.write(mt | (int) value);
+        } else if (value <= 0xFF) {
+            out.write(mt | 24);
+            out.write((int) value);
+        } else if (value <= 0xFFFF) {
+            out.write(mt | 25);
+            out.write((int) (value >>> 8));
+            out.write((int) value);
+        } else if (value <= 0xFFFFFFFFL) {
+            out.write(mt | 26);
+            writeBigEndian(out, value, 4);
+        } else {
+            out.write(mt | 27);
+            writeBigEndian(out, value, 8);
+        }
+    }
+
+    private static void writeBigEndian(PayloadBuffer out, long value, int bytes) {
+        for (int shift = (bytes - 1) * 8; shift >= 0; shift -= 8) {
+            out.write((int) (value >>> shift));
+        }
+    }
+
+    private static void writeValue(PayloadBuffer out, Object value) {
+        if (value instanceof String) {
+            writeText(out, (String) value);
+        } else if (value instanceof Boolean) {
+            out.write((Boolean) value ? TRUE : FALSE);
+        } else if (value instanceof Long || value instanceof Integer || value instanceof Short
+                || value instanceof Byte) {
+            final long v = ((Number) value).longValue();
+            if (v >= 0) {
+                writeHeader(out, MAJOR_UNSIGNED, v);
+            } else {
+                writeHeader(out, MAJOR_NEGATIVE, -1 - v);
+            }
+        } else if (value instanceof Number) {
+            out.write(DOUBLE);
+            writeBigEndian(out, Double.doubleToLongBits(((Number) value).doubleValue()), 8);
+        } else {
+            out.write(NULL);
+        }
+    }
+
+    private static void writeText(PayloadBuffer out, String s) {
+        if (s == null) {
+            out.write(NULL);
+            return;
+        }
+        writeHeader(out, MAJOR_TEXT, PayloadBuffer.utf8Length(s));
+        out.writeUtf8(s);
+    }
+
+    /**
+     * Minimal pull reader over the response stream with a hard cap on bytes consumed. One per thread; the read
+     * buffer is reused across responses.
+     */
+    private static final class Reader {
+        private final byte[] buf = new byte[READ_BUFFER_SIZE];
+        private InputStream in;
+        private int pos;
+        private int limit;
+        private long consumed;
+
+        Reader open(InputStream in) throws IOException {
+            if (in == null) throw new IOException("RBA response has no body");
+            this.in = in;
+            pos = 0;
+            limit = 0;
+            consumed = 0;
+            return this;
+        }
+
+        void close() {
+            in = null;
+        }
+
+        int readByte() throws IOException {
+            if (pos == limit) {
+                limit = in.read(buf, 0, buf.length);
+                pos = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    throw new EOFException("Truncated CBOR response from RBA service");
+                }
+                consumed += limit;
+                if (consumed > MAX_RESPONSE_BYTES) throw new IOException("RBA response too large");
+            }
+            return buf[pos++] & 0xFF;
+        }
+
+        long readArgument(int info) throws IOException {
+            if (info < 24) return info;
+            final int bytes = switch (info) {
+                case 24 -> 1;
+                case 25 -> 2;
+                case 26 -> 4;
+                case 27 -> 8;
+                default -> throw new IOException("Unsupported CBOR length encoding: " + info);
+            };
+            long value = 0;
+            for (int i = 0; i < bytes; i++) {
+                value = (value << 8) | readByte();
+            }
+            return value;
+        }
+
+        /**
+         * Read a length or element count, which can't exceed the response size; arguments of 2^63 and up, negative
+         * as a long, are rejected too.
+         */
+        long readLength(int info) throws IOException {
+            final long length = readArgument(info);
+            if (Long.compareUnsigned(length, MAX_RESPONSE_BYTES) > 0) throw new IOException("RBA response too large");
+            return length;
+        }
+
+        /**
+         * Consume a definite-length text key and return the matching field name constant, or null for any other
+         * key.
+         */
+        String knownKey(int ib) throws IOException {
+            final long length = readLength(ib & 0x1F);
+            boolean score = length == THREAT_SCORE.length();
+            boolean ttl = length == TTL.length();
+            boolean version = length == MODEL_VERSION.length();
+            for (int i = 0; i < length; i++) {
+                final int b = readByte();
+                score = score && b == THREAT_SCORE.charAt(i);
+                ttl = ttl && b == TTL.charAt(i);
+                version = version && b == MODEL_VERSION.charAt(i);
+            }
+            return score ? THREAT_SCORE : ttl ? TTL : version ? MODEL_VERSION : null;
+        }
+
+        /**
+         * @return the number, or NaN if the value is something else (which is skipped)
+         */
+        double readOptionalNumber(int depth) throws IOException {
+            final int ib = readByte();
+            if (isNumber(ib)) return readNumber(ib);
+            skip(ib, depth);
+            return Double.NaN;
+        }
+
+        /**
+         * @return the text, or null if the value is not a definite-length string or is too long (either is skipped)
+         */
+        String readOptionalText(int depth) throws IOException {
+            final int ib = readByte();
+            if (ib >>> 5 != MAJOR_TEXT || (ib & 0x1F) == INDEFINITE) {
+                skip(ib, depth);
+                return null;
+            }
+            final long length = readLength(ib & 0x1F);
+            final byte[] bytes = length <= ScoreResult.MAX_MODEL_VERSION_LENGTH ? new byte[(int) length] : null;
+            for (int i = 0; i < length; i++) {
+                final int b = readByte();
+                if (bytes != null) bytes[i] = (byte) b;
+            }
+            return bytes != null ? new String(bytes, StandardCharsets.UTF_8) : null;
+        }
+
+        private static boolean isNumber(int ib) {
+            final int major = ib >>> 5;
+            final int info = ib & 0x1F;
+            return major == MAJOR_UNSIGNED || major == MAJOR_NEGATIVE
+                    || (major == MAJOR_SIMPLE && info >= 25 && info <= 27);
+        }
+
+        double readNumber() throws IOException {
+            return readNumber(readByte());
+        }
+
+        private double readNumber(int ib) throws IOException {
+            final int major = ib >>> 5;
+            final int info = ib & 0x1F;
+            if (major == MAJOR_UNSIGNED) return unsignedToDouble(readArgument(info));
+            if (major == MAJOR_NEGATIVE) return -1.0 - unsignedToDouble(readArgument(info));
+            if (major == MAJOR_SIMPLE) {
+                switch (info) {
+                    case 25:
+                        return halfToDouble((int) readArgument(25));
+                    case 26:
+                        return Float.intBitsToFloat((int) readArgument(26));
+                    case 27:
+                        return Double.longBitsToDouble(readArgument(27));
+                    default:
+                        break;
+                }
+            }
+            throw new IOException("RBA 'threatScore' is not a number");
+        }
+
+        void skip(int ib, int depth) throws IOException {
+            if (depth > MAX_DEPTH) throw new IOException("RBA response nested too deeply");
+            final int major = ib >>> 5;
+            final int info = ib & 0x1F;
+            if (info == INDEFINITE) {
+                if (major == MAJOR_BYTES || major == MAJOR_TEXT || major == MAJOR_ARRAY || major == MAJOR_MAP) {
+                    int next;
+                    while ((next = readByte()) != BREAK) {
+                        skip(next, depth + 1);
+                        if (major == MAJOR_MAP) skip(readByte(), depth + 1);
+                    }
+                    return;
+                }
+                throw new IOException("Malformed CBOR in RBA response");
+            }
+            final long arg = major == MAJOR_BYTES || major == MAJOR_TEXT || major == MAJOR_ARRAY
+                    || major == MAJOR_MAP ? readLength(info) : readArgument(info);
+            switch (major) {
+                case MAJOR_UNSIGNED, MAJOR_NEGATIVE, MAJOR_SIMPLE -> {
+                }
+                case MAJOR_BYTES, MAJOR_TEXT -> {
+                    for (long i = 0; i < arg; i++) readByte();
+                }
+                case MAJOR_ARRAY -> {
+                    for (long i = 0; i < arg; i++) skip(readByte(), depth + 1);
+                }
+                case MAJOR_MAP -> {
+                    for (long i = 0; i < arg * 2; i++) skip(readByte(), depth + 1);
+                }
+                case MAJOR_TAG -> skip(readByte(), depth + 1);
+                default -> throw new IOException("Malformed CBOR in RBA response");
+            }
+        }
+
+        /**
+         * @return the 64-bit CBOR argument read as unsigned, so 2^63 and up stay positive
+         */
+        private static double unsignedToDouble(long value) {
+            if (value >= 0) return value;
+            // Halve, keeping the low bit so the result rounds as the full value would.
+            return ((value >>> 1) | (value & 1)) * 2.0;
+        }
+
+        private static double halfToDouble(int half) {
+            final int exponent = (half >>> 10) & 0x1F;
+            final int mantissa = half & 0x3FF;
+            final double value;
+            if (exponent == 0) {
+                value = mantissa * Math.pow(2, -24);
+            } else if (exponent == 31) {
+                value = mantissa == 0 ? Double.POSITIVE_INFINITY : Double.NaN;
+            } else {
+                value = (mantissa + 1024) * Math.pow(2, exponent - 25);
+            }
+            return (half & 0x8000) != 0 ? -value : value;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CBOR";
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2025 Sam Packer
+ *
+ * This software is licensed under the PolyForm Noncommercial License 1.0.0.
+ *
+ * You may use, copy, modify, and distribute this software for noncommercial purposes only.
+ * Commercial use of this software, in whole or in part, is prohibited.
+ *
+ * See the full license text at:
+ * https://polyformproject.org/licenses/noncommercial/1.0.0/
+ * or in the LICENSE.md file included with this source code.
+ */
+
+package com.sampacker.shibboleth.rba;
+
+import java.util.function.BinaryOperator;
+
+/**
+ * Path-compressed binary trie over 128-bit addresses, answering longest-prefix-match queries.
+ * <p>
+ * IPv4 prefixes are stored in their IPv4-mapped IPv6 form (see {@link IpLiterals}), so one trie serves both
+ * families. Each node holds a whole run of bits, so a lookup visits at most one node per stored prefix length on the
+ * path rather than one per bit, and allocates nothing. The trie is filled once through {@link #put} and then only
+ * read; publish it through a volatile field or a final field of an immutable holder.
+ */
+final class CidrTrie<V> {
+    private Node<V> root;
+    private int size;
+
+    /**
+     * Add {@code hi:lo/length}; host bits past {@code length} are ignored.
+     *
+     * @param merge picks the value when the same prefix is added twice, given the old and new values
+     */
+    void put(long hi, long lo, int length, V value, BinaryOperator<V> merge) {
+        if (length < 0 || length > 128) throw new IllegalArgumentException("Invalid prefix length " + length);
+        root = insert(root, maskHi(hi, length), maskLo(lo, length), length, value, merge);
+    }
+
+    /**
+     * Add a textual prefix such as {@code 192.0.2.0/24} or {@code 2001:db8::/32}; a bare address is a host prefix.
+     * The length counts bits of the address as written, so {@code ::ffff:192.0.2.0/120} is {@code 192.0.2.0/24}.
+     *
+     * @throws IllegalArgumentException if {@code cidr} is not a valid prefix
+     */
+    void put(String cidr, V value, BinaryOperator<V> merge) {
+        final String s = cidr.trim();
+        final int slash = s.indexOf('/');
+        final String address = slash >= 0 ? s.substring(0, slash) : s;
+        final long[] bits = new long[2];
+        final int family = IpLiterals.parse(address, bits);
+        if (family == IpLiterals.INVALID) throw new IllegalArgumentException("Invalid CIDR prefix: " + cidr);
+        final boolean ipv4Length = family == IpLiterals.IPV4 && address.indexOf(':') < 0;
+        final int maxLength = ipv4Length ? 32 : 128;
+        final int length;
+        try {
+            length = slash >= 0 ? Integer.parseInt(s.substring(slash + 1)) : maxLength;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid CIDR prefix: " + cidr, e);
+        }
+        if (length < 0 || length > maxLength) throw new IllegalArgumentException("Invalid CIDR prefix: " + cidr);
+        // IPv4 lives under ::ffff:0:0/96.
+        put(bits[0], bits[1], ipv4Length ? 96 + length : length, value, merge);
+    }
+
+    /**
+     * @return the value of the longest stored prefix containing {@code hi:lo}, or null
+     */
+    V find(long hi, long lo) {
+        V best = null;
+        Node<V> node = root;
+        while (node != null && contains(node, hi, lo)) {
+            if (node.value != null) best = node.value;
+            if (node.length == 128) break;
+            node = bit(hi, lo, node.length) == 0 ? node.zero : node.one;
+        }
+        return best;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private Node<V> insert(Node<V> node, long hi, long lo, int length, V value, BinaryOperator<V> merge) {
+        if (node == null) {
+            size++;
+            return new Node<>(hi, lo, length, value);
+        }
+        final int common = Math.min(commonPrefix(node.hi, node.lo, hi, lo), Math.min(node.length, length));
+        if (common == node.length) {
+            if (length == node.length) {
+                if (node.value == null) {
+                    size++;
+                    node.value = value;
+                } else {
+                    node.value = merge.apply(node.value, value);
+                }
+            } else if (bit(hi, lo, node.length) == 0) {
+                node.zero = insert(node.zero, hi, lo, length, value, merge);
+            } else {
+                node.one = insert(node.one, hi, lo, length, value, merge);
+            }
+            return node;
+        }
+        // The new prefix diverges inside this node's run (or ends there): split the run at the common prefix.
+        final Node<V> split = new Node<>(maskHi(hi, common), maskLo(lo, common), common, null);
+        final Node<V> other;
+        if (common == length) {
+            split.value = value;
+            size++;
+            other = null;
+        } else {
+            other = new Node<>(hi, lo, length, value);
+            size++;
+        }
+        if (bit(node.hi, node.lo, common) == 0) {
+            split.zero = node;
+            split.one = other;
+        } else {
+            split.one = node;
+            split.zero = other;
+        }
+        return split;
+    }
+
+    private static boolean contains(Node<?> node, long hi, long lo) {
+        return maskHi(hi, node.length) == node.hi && maskLo(lo, node.length) == node.lo;
+    }
+
+    private static int commonPrefix(long hi1, long lo1, long hi2, long lo2) {
+        final long hi = hi1 ^ hi2;
+        return hi != 0 ? Long.numberOfLeadingZeros(hi) : 64 + Long.numberOfLeadingZeros(lo1 ^ lo2);
+    }
+
+    /**
+     * @return bit {@code index} counted from the most significant bit of {@code hi}
+     */
+    private static int bit(long hi, long lo, int index) {
+        return (int) (index < 64 ? hi >>> (63 - index) : lo >>> (127 - index)) & 1;
+    }
+
+    private static long maskHi(long hi, int length) {
+        return length >= 64 ? hi : length == 0 ? 0 : hi & (-1L << (64 - length));
+    }
+
+    private static long maskLo(long lo, int length) {
+        return length <= 64 ? 0 : length == 128 ? lo : lo & (-1L << (128 - length));
+    }
+
+    private static final class Node<V> {
+        final long hi;
+        final long lo;
+        final int length;
+        V value;
+        Node<V> zero;
+        Node<V> one;
+
+        Node(long hi, long lo, int length, V value) {
+            this.hi = hi;
+            this.lo = lo;
+            this.length = length;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2025 Sam Packer
+ *
+ * This software is licensed under the PolyForm Noncommercial License 1.0.0.
+ *
+ * You may use, copy, modify, and distribute this software for noncommercial purposes only.
+ * Commercial use of this software, in whole or in part, is prohibited.
+ *
+ * See the full license text at:
+ * https://polyformproject.org/licenses/noncommercial/1.0.0/
+ * or in the LICENSE.md file included with this source code.
+ */
+
+package com.sampacker.shibboleth.rba;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Count-based circuit breaker around the scorer call.
+ * <p>
+ * While CLOSED, the outcome of the last {@code windowSize} calls is tracked. Once at least {@code minimumCalls}
+ * have been seen, the breaker trips to OPEN if either the failure rate or the slow-call rate reaches its
+ * threshold. OPEN rejects calls without contacting the scorer until {@code openDuration} has elapsed, then
+ * HALF_OPEN lets {@code halfOpenProbes} calls through: if they all succeed the breaker closes again, and any
+ * failure re-opens it.
+ */
+final class CircuitBreaker {
+    enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final Logger log = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    private final int windowSize;
+    private final int minimumCalls;
+    private final double failureRateThreshold;
+    private final double slowCallRateThreshold;
+    private final long slowCallNanos;
+    private final long openNanos;
+    private final int halfOpenProbes;
+
+    private volatile State state = State.CLOSED;
+    private volatile long openedAt;
+    private final AtomicInteger probesIssued = new AtomicInteger();
+
+    // Ring buffer of recent outcomes, guarded by this.
+    private final boolean[] failed;
+    private final boolean[] slow;
+    private int next;
+    private int calls;
+    private int failures;
+    private int slowCalls;
+    private int probeSuccesses;
+
+    CircuitBreaker(int windowSize, int minimumCalls, double failureRateThreshold, double slowCallRateThreshold,
+                   Duration slowCallDuration, Duration openDuration, int halfOpenProbes) {
+        this.windowSize = windowSize;
+        this.minimumCalls = Math.min(minimumCalls, windowSize);
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        this.slowCallNanos = slowCallDuration.toNanos();
+        this.openNanos = openDuration.toNanos();
+        this.halfOpenProbes = halfOpenProbes;
+        this.failed = new boolean[windowSize];
+        this.slow = new boolean[windowSize];
+    }
+
+    State state() {
+        return state;
+    }
+
+    /**
+     * @return true if the call may go to the scorer; the caller must then report it via
+     * {@link #onSuccess(long)} or {@link #onFailure(long)}.
+     */
+    boolean tryAcquire() {
+        final State s = state;
+        if (s == State.CLOSED) return true;
+        if (s == State.OPEN) {
+            if (System.nanoTime() - openedAt < openNanos) return false;
+            transitionToHalfOpen();
+        }
+        return probesIssued.getAndIncrement() < halfOpenProbes;
+    }
+
+    void onSuccess(long durationNanos) {
+        record(false, durationNanos >= slowCallNanos);
+    }
+
+    void onFailure(long durationNanos) {
+        record(true, durationNanos >= slowCallNanos);
+    }
+
+    /**
+     * The call was admitted but never reached the scorer because this node was saturated, which says nothing about
+     * the scorer's health; a half-open probe slot it took is handed back.
+     */
+    void onIgnored() {
+        if (state == State.HALF_OPEN) probesIssued.decrementAndGet();
+    }
+
+    private synchronized void record(boolean isFailure, boolean isSlow) {
+        if (state == State.HALF_OPEN) {
+            if (isFailure || isSlow) {
+                transitionToOpen("half-open probe " + (isFailure ? "failed" : "was slow"));
+            } else if (++probeSuccesses >= halfOpenProbes) {
+                transitionToClosed();
+            }
+            return;
+        }
+        if (state == State.OPEN) {
+            // A call admitted before the breaker tripped; its outcome is already reflected.
+            return;
+        }
+
+        if (calls == windowSize) {
+            if (failed[next]) failures--;
+            if (slow[next]) slowCalls--;
+        } else {
+            calls++;
+        }
+        failed[next] = isFailure;
+        slow[next] = isSlow;
+        if (isFailure) failures++;
+        if (isSlow) slowCalls++;
+        next = (next + 1) % windowSize;
+
+        if (calls < minimumCalls) return;
+        final double failureRate = (double) failures / calls;
+        final double slowRate = (double) slowCalls / calls;
+        if (failureRate >= failureRateThreshold) {
+            transitionToOpen(String.format("failure rate %.2f >= %.2f over %d calls",
+                    failureRate, failureRateThreshold, calls));
+        } else if (slowRate >= slowCallRateThreshold) {
+            transitionToOpen(String.format("slow-call rate %.2f >= %.2f over %d calls",
+                    slowRate, slowCallRateThreshold, calls));
+        }
+    }
+
+    private synchronized void transitionToHalfOpen() {
+        if (state != State.OPEN) return;
+        probesIssued.set(0);
+        probeSuccesses = 0;
+        state = State.HALF_OPEN;
+        log.info("RBA circuit breaker HALF_OPEN: sending up to {} probe request(s)", halfOpenProbes);
+    }
+
+    private void transitionToOpen(String reason) {
+        openedAt = System.nanoTime();
+        state = State.OPEN;
+        log.warn("RBA circuit breaker OPEN for {} ms: {}", openNanos / 1_000_000, reason);
+    }
+
+    private void transitionToClosed() {
+        calls = 0;
+        failures = 0;
+        slowCalls = 0;
+        next = 0;
+        state = State.CLOSED;
+        log.info("RBA circuit breaker CLOSED: scorer has recovered");
+    }
+}
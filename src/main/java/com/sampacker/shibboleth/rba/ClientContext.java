@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2025 Sam Packer
+ *
+ * This software is licensed under the PolyForm Noncommercial License 1.0.0.
+ *
+ * You may use, copy, modify, and distribute this software for noncommercial purposes only.
+ * Commercial use of this software, in whole or in part, is prohibited.
+ *
+ * See the full license text at:
+ * https://polyformproject.org/licenses/noncommercial/1.0.0/
+ * or in the LICENSE.md file included with this source code.
+ */
+
+package com.sampacker.shibboleth.rba;
+
+import java.util.Base64;
+
+/**
+ * Coarse descriptions of where a login comes from, stable across the small changes a returning user's client goes
+ * through: browser updates and address changes within their network.
+ */
+final class ClientContext {
+
+    private ClientContext() {
+    }
+
+    /**
+     * The User-Agent with minor version numbers dropped ("Chrome/124.0.6367.91" becomes "Chrome/124"), so routine
+     * browser updates don't change it while a different browser or OS does.
+     */
+    static String fingerprint(String userAgent) {
+        if (userAgent == null) return "";
+        final StringBuilder sb = new StringBuilder(userAgent.length());
+        boolean skipping = false;
+        for (int i = 0; i < userAgent.length(); i++) {
+            final char c = userAgent.charAt(i);
+            if ((c == '.' || c == '_') && i + 1 < userAgent.length() && Character.isDigit(userAgent.charAt(i + 1))
+                    && i > 0 && Character.isDigit(userAgent.charAt(i - 1))) {
+                skipping = true;
+                continue;
+            }
+            if (skipping && Character.isDigit(c)) continue;
+            skipping = false;
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The address truncated to the given prefix length, or the raw string if it is not an IP literal.
+     */
+    static String networkPrefix(String ipAddress, int ipv4PrefixBits, int ipv6PrefixBits) {
+        if (ipAddress == null) return "";
+        final byte[] address = IpLiterals.parse(ipAddress);
+        if (address == null) return ipAddress;
+        final int bits = address.length == 4 ? ipv4PrefixBits : ipv6PrefixBits;
+        for (int i = 0; i < address.length; i++) {
+            final int keep = Math.max(0, Math.min(8, bits - i * 8));
+            address[i] &= (byte) (0xFF << (8 - keep));
+        }
+        return Base64.getEncoder().encodeToString(address) + "/" + bits;
+    }
+}
@@ -0,0 +1,25 @@
+/*
+ * Copyright (c) 2025 Sam Packer
+ *
+ * This software is licensed under the PolyForm Noncommercial License 1.0.0.
+ *
+ * You may use, copy, modify, and distribute this software for noncommercial purposes only.
+ * Commercial use of this software, in whole or in part, is prohibited.
+ *
+ * See the full license text at:
+ * https://polyformproject.org/licenses/noncommercial/1.0.0/
+ * or in the LICENSE.md file included with this source code.
+ */
+
+package com.sampacker.shibboleth.rba;
+
+/**
+ * Thrown instead of waiting for the scorer when the concurrency limit is reached.
+ */
+final class ConcurrencyLimitExceededException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    ConcurrencyLimitExceededException() {
+        super("RBA concurrency limit reached", null, false, false);
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2025 Sam Packer
+ *
+ * This software is licensed under the PolyForm Noncommercial License 1.0.0.
+ *
+ * You may use, copy, modify, and distribute this software for noncommercial purposes only.
+ * Commercial use of this software, in whole or in part, is prohibited.
+ *
+ * See the full license text at:
+ * https://polyformproject.org/licenses/noncommercial/1.0.0/
+ * or in the LICENSE.md file included with this source code.
+ */
+
+package com.sampacker.shibboleth.rba;
+
+import com.codahale.metrics.Counter;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Adaptive limit on logins waiting for a score at the same time, so a slow scorer cannot absorb the whole servlet
+ * thread pool.
+ * <p>
+ * The limit follows AIMD with a latency signal in the style of TCP Vegas. A call that fails, or whose round trip
+ * exceeds {@code rttTolerance} times the best recently seen, multiplies the limit by {@code backoffRatio}. A call
+ * that succeeds while the limit is at least half used raises it by {@code 1/limit}, i.e. about one per limit's
+ * worth of calls. The baseline RTT is the minimum over a window of samples, so it can move up when the scorer's
+ * normal latency changes.
+ */
+final class ConcurrencyLimiter {
+    private static final int MIN_RTT_WINDOW = 500;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final double rttTolerance;
+    private final double backoffRatio;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final Counter rejections;
+
+    // Guarded by this.
+    private double limit;
+    private long minRtt = Long.MAX_VALUE;
+    private long windowMinRtt = Long.MAX_VALUE;
+    private int windowSamples;
+
+    private volatile int currentLimit;
+
+    ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, double rttTolerance, double backoffRatio,
+                       RbaMetrics metrics) {
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.rttTolerance = rttTolerance;
+        this.backoffRatio = backoffRatio;
+        this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+        this.currentLimit = (int) limit;
+        this.rejections = metrics.counter("limiter.rejected");
+        metrics.gauge("limiter.limit", () -> currentLimit);
+        metrics.gauge("limiter.inFlight", inFlight::get);
+    }
+
+    /**
+     * @return true if the caller may proceed; it must then call exactly one of the release methods
+     */
+    boolean tryAcquire() {
+        while (true) {
+            final int current = inFlight.get();
+            if (current >= currentLimit) {
+                rejections.inc();
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) return true;
+        }
+    }
+
+    void onSuccess(long rttNanos) {
+        final int used = inFlight.getAndDecrement();
+        update(rttNanos, false, used);
+    }
+
+    void onDropped() {
+        final int used = inFlight.getAndDecrement();
+        update(0, true, used);
+    }
+
+    /**
+     * Release without adjusting the limit, for outcomes that say nothing about scorer capacity.
+     */
+    void onIgnored() {
+        inFlight.decrementAndGet();
+    }
+
+    private synchronized void update(long rttNanos, boolean dropped, int used) {
+        if (!dropped) {
+            windowMinRtt = Math.min(windowMinRtt, rttNanos);
+            if (++windowSamples >= MIN_RTT_WINDOW || minRtt == Long.MAX_VALUE) {
+                minRtt = windowMinRtt;
+                windowMinRtt = Long.MAX_VALUE;
+                windowSamples = 0;
+            }
+        }
+
+        if (dropped || rttNanos > minRtt * rttTolerance) {
+            limit = Math.max(minLimit, limit * backoffRatio);
+        } else if (used * 2 >= limit) {
+            limit = Math.min(maxLimit, limit + 1.0 / limit);
+        }
+        currentLimit = (int) limit;
+    }
+}
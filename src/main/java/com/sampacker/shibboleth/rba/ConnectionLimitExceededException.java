@@ -0,0 +1,29 @@
+/*
+ * Copyright (c) 2025 Sam Packer
+ *
+ * This software is licensed under the PolyForm Noncommercial License 1.0.0.
+ *
+ * You may use, copy, modify, and distribute this software for noncommercial purposes only.
+ * Commercial use of this software, in whole or in part, is prohibited.
+ *
+ * See the full license text at:
+ * https://polyformproject.org/licenses/noncommercial/1.0.0/
+ * or in the LICENSE.md file included with this source code.
+ */
+
+package com.sampacker.shibboleth.rba;
+
+import java.io.IOException;
+import java.net.URI;
+
+/**
+ * Thrown instead of sending a request when this node already has the maximum number of exchanges in flight to an
+ * endpoint. It says nothing about the endpoint's health.
+ */
+final class ConnectionLimitExceededException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    ConnectionLimitExceededException(int limit, URI endpoint) {
+        super("Connection limit of " + limit + " reached for " + endpoint);
+    }
+}
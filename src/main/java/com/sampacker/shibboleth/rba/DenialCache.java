@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2025 Sam Packer
+ *
+ * This software is licensed under the PolyForm Noncommercial License 1.0.0.
+ *
+ * You may use, copy, modify, and distribute this software for noncommercial purposes only.
+ * Commercial use of this software, in whole or in part, is prohibited.
+ *
+ * See the full license text at:
+ * https://polyformproject.org/licenses/noncommercial/1.0.0/
+ * or in the LICENSE.md file included with this source code.
+ */
+
+package com.sampacker.shibboleth.rba;
+
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Recently denied clients, so retries are rejected without another round trip to the scorer.
+ * <p>
+ * Denials are tracked per (IP, username) and per IP. A user is blocked from an IP after one denial there; an IP is
+ * blocked for everyone after {@code ipStrikes} denials, so one user behind a shared NAT doesn't lock out the rest.
+ * Each denial that comes within {@code maxBlock} of the previous one doubles the block, from {@code baseBlock} up
+ * to {@code maxBlock}.
+ * <p>
+ * The table is a fixed-size, direct-mapped array of immutable entries updated by compare-and-set: no locks, no
+ * allocation on lookup, and a hard bound on memory. A colliding key simply replaces the older entry.
+ */
+final class DenialCache {
+    private final AtomicReferenceArray<Entry> table;
+    private final int mask;
+    private final long baseBlockNanos;
+    private final long maxBlockNanos;
+    private final int ipStrikes;
+
+    private record Entry(String ipAddress, String username, int strikes, long lastDenial, long blockedUntil) {
+    }
+
+    DenialCache(int size, Duration baseBlock, Duration maxBlock, int ipStrikes) {
+        final int capacity = Integer.highestOneBit(Math.max(2, size - 1)) << 1;
+        this.table = new AtomicReferenceArray<>(capacity);
+        this.mask = capacity - 1;
+        this.baseBlockNanos = baseBlock.toNanos();
+        this.maxBlockNanos = maxBlock.toNanos();
+        this.ipStrikes = ipStrikes;
+    }
+
+    /**
+     * @return whether this user, or everyone, is currently blocked from this IP
+     */
+    boolean isBlocked(String ipAddress, String username) {
+        final long now = System.nanoTime();
+        return blocked(ipAddress, username, now, 1) || blocked(ipAddress, null, now, ipStrikes);
+    }
+
+    private boolean blocked(String ipAddress, String username, long now, int minStrikes) {
+        final Entry e = table.get(slot(ipAddress, username));
+        return e != null && e.strikes() >= minStrikes && now - e.blockedUntil() < 0
+                && Objects.equals(e.ipAddress(), ipAddress) && Objects.equals(e.username(), username);
+    }
+
+    /**
+     * @param ipWide whether the denial also counts against everyone from the IP; false when {@code ipAddress} is a
+     * shared proxy address rather than a client's
+     */
+    void recordDenial(String ipAddress, String username, boolean ipWide) {
+        final long now = System.nanoTime();
+        strike(ipAddress, username, now, 1);
+        if (ipWide) strike(ipAddress, null, now, ipStrikes);
+    }
+
+    /**
+     * Forget the user's denials from this IP after they log in successfully. The IP's count is kept.
+     */
+    void recordSuccess(String ipAddress, String username) {
+        final int slot = slot(ipAddress, username);
+        final Entry e = table.get(slot);
+        if (e != null && Objects.equals(e.ipAddress(), ipAddress) && Objects.equals(e.username(), username)) {
+            table.compareAndSet(slot, e, null);
+        }
+    }
+
+    private void strike(String ipAddress, String username, long now, int minStrikes) {
+        final int slot = slot(ipAddress, username);
+        while (true) {
+            final Entry old = table.get(slot);
+            final boolean same = old != null && Objects.equals(old.ipAddress(), ipAddress)
+                    && Objects.equals(old.username(), username) && now - old.lastDenial() < maxBlockNanos;
+            final int strikes = same ? Math.min(old.strikes() + 1, 62) : 1;
+            final Entry updated = new Entry(ipAddress, username, strikes, now, now + blockNanos(strikes - minStrikes));
+            if (table.compareAndSet(slot, old, updated)) return;
+        }
+    }
+
+    /**
+     * @param doublings denials beyond the one that started the block
+     */
+    private long blockNanos(int doublings) {
+        if (doublings < 0) return 0;
+        if (doublings >= Long.numberOfLeadingZeros(baseBlockNanos) - 1) return maxBlockNanos;
+        return Math.min(baseBlockNanos << doublings, maxBlockNanos);
+    }
+
+    private int slot(String ipAddress, String username) {
+        int h = Objects.hashCode(ipAddress) * 31 + Objects.hashCode(username) + (username == null ? 0x9E3779B9 : 0);
+        h ^= h >>> 16;
+        return h & mask;
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2025 Sam Packer
+ *
+ * This software is licensed under the PolyForm Noncommercial License 1.0.0.
+ *
+ * You may use, copy, modify, and distribute this software for noncommercial purposes only.
+ * Commercial use of this software, in whole or in part, is prohibited.
+ *
+ * See the full license text at:
+ * https://polyformproject.org/licenses/noncommercial/1.0.0/
+ * or in the LICENSE.md file included with this source code.
+ */
+
+package com.sampacker.shibboleth.rba;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Local GeoIP and ASN lookups from one or more MaxMind DB files, e.g. GeoLite2-City plus GeoLite2-ASN.
+ * <p>
+ * Each address is looked up in every database and the first value found for each field wins. The files are polled
+ * for changes; a changed file is mapped and checked off the login path and swapped in atomically. A file that fails
+ * to open is logged and the previous mapping stays in use.
+ */
+final class GeoIpLookup implements AutoCloseable {
+    /**
+     * Payload fields this adds, so other enrichments can avoid them.
+     */
+    static final Set<String> FIELDS = Set.of("country", "asn", "asOrganization", "latitude", "longitude");
+
+    private static final ThreadLocal<long[]> SCRATCH = ThreadLocal.withInitial(() -> new long[2]);
+
+    private final Logger log = LoggerFactory.getLogger(GeoIpLookup.class);
+    private final Path[] files;
+    private final FileVersion[] versions;
+    private final ScheduledExecutorService reloader;
+    private volatile MmdbReader[] readers;
+
+    private record FileVersion(long modified, long size) {
+    }
+
+    /**
+     * @throws IOException if a database cannot be opened
+     */
+    GeoIpLookup(List<Path> files, Duration reloadInterval) throws IOException {
+        this.files = files.toArray(new Path[0]);
+        this.versions = new FileVersion[this.files.length];
+        final MmdbReader[] opened = new MmdbReader[this.files.length];
+        for (int i = 0; i < opened.length; i++) {
+            versions[i] = version(this.files[i]);
+            opened[i] = MmdbReader.open(this.files[i]);
+        }
+        this.readers = opened;
+
+        if (reloadInterval != null && !reloadInterval.isZero()) {
+            reloader = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("rba-geoip-reload"));
+            reloader.scheduleWithFixedDelay(this::reloadChanged, reloadInterval.toNanos(), reloadInterval.toNanos(),
+                    TimeUnit.NANOSECONDS);
+        } else {
+            reloader = null;
+        }
+    }
+
+    /**
+     * @return what the databases know about {@code ipAddress}, or null if nothing or it is not an IP literal
+     */
+    GeoRecord lookup(String ipAddress) {
+        final long[] bits = SCRATCH.get();
+        final int family = IpLiterals.parse(ipAddress, bits);
+        if (family == IpLiterals.INVALID) return null;
+        GeoRecord result = null;
+        for (MmdbReader reader : readers) {
+            final GeoRecord found = reader.lookup(family, bits[0], bits[1]);
+            if (found != null) result = result == null ? found : result.orElse(found);
+        }
+        return result;
+    }
+
+    /**
+     * @return the request with the known values of {@code geo} added
+     */
+    static ScoringRequest addFields(ScoringRequest request, GeoRecord geo) {
+        return request.toBuilder()
+                .field("country", geo.country())
+                .field("asn", geo.asn() != 0 ? geo.asn() : null)
+                .field("asOrganization", geo.asOrganization())
+                .field("latitude", geo.hasLocation() ? geo.latitude() : null)
+                .field("longitude", geo.hasLocation() ? geo.longitude() : null)
+                .build();
+    }
+
+    private void reloadChanged() {
+        MmdbReader[] updated = null;
+        for (int i = 0; i < files.length; i++) {
+            try {
+                final FileVersion current = version(files[i]);
+                if (current.equals(versions[i])) continue;
+                // Recorded first so a broken file is reported once, not on every poll.
+                versions[i] = current;
+                final MmdbReader reader = MmdbReader.open(files[i]);
+                if (updated == null) updated = readers.clone();
+                updated[i] = reader;
+                log.info("Reloaded GeoIP database {}", files[i]);
+            } catch (IOException | RuntimeException e) {
+                log.error("Could not reload GeoIP database {}, keeping the previous one", files[i], e);
+            }
+        }
+        if (updated != null) readers = updated;
+    }
+
+    private static FileVersion version(Path file) throws IOException {
+        final BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        return new FileVersion(attributes.lastModifiedTime().toMillis(), attributes.size());
+    }
+
+    @Override
+    public void close() {
+        if (reloader != null) reloader.shutdownNow();
+    }
+}
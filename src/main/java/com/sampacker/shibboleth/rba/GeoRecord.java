@@ -0,0 +1,35 @@
+/*
+ * Copyright (c) 2025 Sam Packer
+ *
+ * This software is licensed under the PolyForm Noncommercial License 1.0.0.
+ *
+ * You may use, copy, modify, and distribute this software for noncommercial purposes only.
+ * Commercial use of this software, in whole or in part, is prohibited.
+ *
+ * See the full license text at:
+ * https://polyformproject.org/licenses/noncommercial/1.0.0/
+ * or in the LICENSE.md file included with this source code.
+ */
+
+package com.sampacker.shibboleth.rba;
+
+/**
+ * What the local GeoIP databases know about a client IP. Missing values are null, 0 for the ASN and NaN for the
+ * coordinates.
+ */
+record GeoRecord(String country, long asn, String asOrganization, double latitude, double longitude) {
+    static final GeoRecord EMPTY = new GeoRecord(null, 0, null, Double.NaN, Double.NaN);
+
+    boolean hasLocation() {
+        return !Double.isNaN(latitude) && !Double.isNaN(longitude);
+    }
+
+    /**
+     * @return this record with its missing values taken from {@code other}
+     */
+    GeoRecord orElse(GeoRecord other) {
+        return new GeoRecord(country != null ? country : other.country, asn != 0 ? asn : other.asn,
+                asOrganization != null ? asOrganization : other.asOrganization,
+                hasLocation() ? latitude : other.latitude, hasLocation() ? longitude : other.longitude);
+    }
+}
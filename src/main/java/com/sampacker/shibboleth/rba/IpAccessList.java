@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2025 Sam Packer
+ *
+ * This software is licensed under the PolyForm Noncommercial License 1.0.0.
+ *
+ * You may use, copy, modify, and distribute this software for noncommercial purposes only.
+ * Commercial use of this software, in whole or in part, is prohibited.
+ *
+ * See the full license text at:
+ * https://polyformproject.org/licenses/noncommercial/1.0.0/
+ * or in the LICENSE.md file included with this source code.
+ */
+
+package com.sampacker.shibboleth.rba;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CIDR allow and deny lists checked before any scoring: an allowed client proceeds, a denied one is rejected.
+ * <p>
+ * Prefixes come from bean properties and optionally a file of {@code allow <cidr>} / {@code deny <cidr>} lines
+ * ({@code #} starts a comment). The longest matching prefix decides; a prefix on both lists is denied. When a file
+ * is configured it is polled for changes and a new trie is built off the login path and swapped in atomically, so a
+ * reload never blocks a lookup. A file that fails to parse is logged and the previous lists stay in force.
+ */
+final class IpAccessList implements AutoCloseable {
+    enum Action {
+        ALLOW,
+        DENY
+    }
+
+    private static final ThreadLocal<long[]> SCRATCH = ThreadLocal.withInitial(() -> new long[2]);
+
+    private final Logger log = LoggerFactory.getLogger(IpAccessList.class);
+    private final List<String> allow;
+    private final List<String> deny;
+    private final Path file;
+    private final ScheduledExecutorService reloader;
+    private volatile CidrTrie<Action> trie;
+    private FileVersion loadedVersion;
+
+    private record FileVersion(long modified, long size) {
+    }
+
+    /**
+     * @throws IllegalArgumentException if a prefix is invalid
+     * @throws IOException if the file cannot be read
+     */
+    IpAccessList(List<String> allow, List<String> deny, Path file, Duration reloadInterval, RbaMetrics metrics)
+            throws IOException {
+        this.allow = allow != null ? List.copyOf(allow) : List.of();
+        this.deny = deny != null ? List.copyOf(deny) : List.of();
+        this.file = file;
+        this.loadedVersion = file != null ? version(file) : null;
+        this.trie = build();
+        metrics.gauge("ipList.prefixes", () -> trie.size());
+
+        if (file != null && reloadInterval != null && !reloadInterval.isZero()) {
+            reloader = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("rba-iplist-reload"));
+            reloader.scheduleWithFixedDelay(this::reloadIfChanged, reloadInterval.toNanos(),
+                    reloadInterval.toNanos(), TimeUnit.NANOSECONDS);
+        } else {
+            reloader = null;
+        }
+    }
+
+    /**
+     * @return the action for the longest prefix containing {@code ipAddress}, or null if none does or it is not an
+     * IP literal
+     */
+    Action lookup(String ipAddress) {
+        final long[] bits = SCRATCH.get();
+        if (IpLiterals.parse(ipAddress, bits) == IpLiterals.INVALID) return null;
+        return trie.find(bits[0], bits[1]);
+    }
+
+    private void reloadIfChanged() {
+        try {
+            final FileVersion current = version(file);
+            if (current.equals(loadedVersion)) return;
+            // Recorded before building so a broken file is reported once, not on every poll.
+            loadedVersion = current;
+            final CidrTrie<Action> rebuilt = build();
+            trie = rebuilt;
+            log.info("Reloaded RBA IP list from {}: {} prefixes", file, rebuilt.size());
+        } catch (IOException | RuntimeException e) {
+            log.error("Could not reload RBA IP list from {}, keeping the previous lists", file, e);
+        }
+    }
+
+    private CidrTrie<Action> build() throws IOException {
+        final CidrTrie<Action> built = new CidrTrie<>();
+        for (String cidr : allow) add(built, cidr, Action.ALLOW);
+        for (String cidr : deny) add(built, cidr, Action.DENY);
+        if (file != null) {
+            int lineNumber = 0;
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                lineNumber++;
+                final int comment = line.indexOf('#');
+                final String entry = (comment >= 0 ? line.substring(0, comment) : line).trim();
+                if (entry.isEmpty()) continue;
+                final String[] parts = entry.split("\\s+");
+                final Action action = parts.length == 2 ? parseAction(parts[0]) : null;
+                if (action == null) {
+                    throw new IllegalArgumentException(file + " line " + lineNumber
+                            + ": expected 'allow <cidr>' or 'deny <cidr>'");
+                }
+                add(built, parts[1], action);
+            }
+        }
+        return built;
+    }
+
+    private static Action parseAction(String s) {
+        if (s.equalsIgnoreCase("allow")) return Action.ALLOW;
+        if (s.equalsIgnoreCase("deny")) return Action.DENY;
+        return null;
+    }
+
+    private static void add(CidrTrie<Action> trie, String cidr, Action action) {
+        trie.put(cidr, action, (a, b) -> a == Action.DENY ? a : b);
+    }
+
+    private static FileVersion version(Path file) throws IOException {
+        final BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        return new FileVersion(attributes.lastModifiedTime().toMillis(), attributes.size());
+    }
+
+    @Override
+    public void close() {
+        if (reloader != null) reloader.shutdownNow();
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2025 Sam Packer
+ *
+ * This software is licensed under the PolyForm Noncommercial License 1.0.0.
+ *
+ * You may use, copy, modify, and distribute this software for noncommercial purposes only.
+ * Commercial use of this software, in whole or in part, is prohibited.
+ *
+ * See the full license text at:
+ * https://polyformproject.org/licenses/noncommercial/1.0.0/
+ * or in the LICENSE.md file included with this source code.
+ */
+
+package com.sampacker.shibboleth.rba;
+
+/**
+ * Parses IPv4 and IPv6 address literals without ever doing a DNS lookup, unlike {@code InetAddress.getByName},
+ * which would resolve a hostname smuggled into X-Forwarded-For.
+ * <p>
+ * The core parser writes the address as two longs and allocates nothing. IPv4 addresses come out in their
+ * IPv4-mapped IPv6 form ({@code ::ffff:a.b.c.d}), so both families can share one 128-bit key space.
+ */
+final class IpLiterals {
+    static final int INVALID = 0;
+    static final int IPV4 = 4;
+    static final int IPV6 = 6;
+
+    /**
+     * High 64 bits of {@code ::ffff:0:0/96} is zero; the low half carries the 0xffff marker above the IPv4 bits.
+     */
+    static final long IPV4_MAPPED_LO = 0xFFFF_0000_0000L;
+
+    private IpLiterals() {
+    }
+
+    /**
+     * @return the 4 or 16 address bytes, or null if {@code s} is not an IP literal
+     */
+    static byte[] parse(String s) {
+        final long[] bits = new long[2];
+        final int family = parse(s, bits);
+        if (family == INVALID) return null;
+        final byte[] out = new byte[family == IPV4 ? 4 : 16];
+        for (int i = 0; i < out.length; i++) {
+            final int bit = 128 - (out.length - i) * 8;
+            out[i] = (byte) (bit < 64 ? bits[0] >>> (56 - bit) : bits[1] >>> (120 - bit));
+        }
+        return out;
+    }
+
+    /**
+     * Parse into {@code out[0]} (high 64 bits) and {@code out[1]} (low 64 bits). Brackets and an IPv6 zone id are
+     * accepted and ignored.
+     *
+     * @return {@link #IPV4} (including IPv4-mapped IPv6), {@link #IPV6} or {@link #INVALID}; {@code out} is
+     * undefined when invalid
+     */
+    static int parse(String s, long[] out) {
+        if (s == null || s.isEmpty()) return INVALID;
+        int start = 0;
+        int end = s.length();
+        if (s.charAt(0) == '[' && s.charAt(end - 1) == ']') {
+            start++;
+            end--;
+        }
+        final int zone = s.indexOf('%', start);
+        if (zone >= 0 && zone < end) end = zone;
+        if (s.indexOf(':', start) >= 0) {
+            if (!parseIpv6(s, start, end, out)) return INVALID;
+            // An IPv4-mapped address is the IPv4 client, as InetAddress also treats it.
+            return out[0] == 0 && (out[1] >>> 32) == (IPV4_MAPPED_LO >>> 32) ? IPV4 : IPV6;
+        }
+        final long v4 = parseIpv4(s, start, end);
+        if (v4 < 0) return INVALID;
+        out[0] = 0;
+        out[1] = IPV4_MAPPED_LO | v4;
+        return IPV4;
+    }
+
+    /**
+     * @return the address as an unsigned 32-bit value, or -1 if invalid
+     */
+    private static long parseIpv4(String s, int start, int end) {
+        long value = 0;
+        int octet = 0;
+        int digits = 0;
+        int octets = 0;
+        for (int i = start; i <= end; i++) {
+            final char c = i < end ? s.charAt(i) : '.';
+            if (c >= '0' && c <= '9') {
+                if (digits == 3 || (digits > 0 && octet == 0)) return -1;  // No leading zeros (octal ambiguity).
+                octet = octet * 10 + (c - '0');
+                digits++;
+            } else if (c == '.') {
+                if (digits == 0 || octet > 255 || octets == 4) return -1;
+                value = (value << 8) | octet;
+                octets++;
+                octet = 0;
+                digits = 0;
+            } else {
+                return -1;
+            }
+        }
+        return octets == 4 ? value : -1;
+    }
+
+    private static boolean parseIpv6(String s, int start, int end, long[] out) {
+        long hi = 0;
+        long lo = 0;
+        int groups = 0;
+        int gap = -1;
+        int i = start;
+        if (end - start >= 2 && s.charAt(i) == ':' && s.charAt(i + 1) == ':') {
+            gap = 0;
+            i += 2;
+        }
+        while (i < end) {
+            if (groups == 8) return false;
+            final int groupStart = i;
+            int value = 0;
+            while (i < end && i - groupStart < 5) {
+                final int digit = hexDigit(s.charAt(i));
+                if (digit < 0) break;
+                value = (value << 4) | digit;
+                i++;
+            }
+            if (i < end && s.charAt(i) == '.') {
+                // Embedded IPv4 in the last 32 bits.
+                final long v4 = groups <= 6 ? parseIpv4(s, groupStart, end) : -1;
+                if (v4 < 0) return false;
+                hi = (hi << 32) | (lo >>> 32);
+                lo = (lo << 32) | v4;
+                groups += 2;
+                i = end;
+                break;
+            }
+            final int length = i - groupStart;
+            if (length == 0 || length > 4) return false;
+            hi = (hi << 16) | (lo >>> 48);
+            lo = (lo << 16) | value;
+            groups++;
+            if (i == end) break;
+            if (s.charAt(i) != ':') return false;
+            i++;
+            if (i < end && s.charAt(i) == ':') {
+                if (gap >= 0) return false;
+                gap = groups;
+                i++;
+            } else if (i == end) {
+                return false;
+            }
+        }
+        if (gap >= 0) {
+            if (groups == 8) return false;
+            // Groups after the gap are in the low bits already; shifting the ones before it up opens the gap.
+            final int tailBits = (groups - gap) * 16;
+            final int shift = (8 - groups) * 16;
+            final long headHi = tailBits >= 64 ? hi & ~mask(tailBits - 64) : hi;
+            final long headLo = tailBits >= 64 ? 0 : lo & ~mask(tailBits);
+            final long tailHi = tailBits >= 64 ? hi & mask(tailBits - 64) : 0;
+            final long tailLo = tailBits >= 64 ? lo : lo & mask(tailBits);
+            // head << shift, as a 128-bit value
+            long shiftedHi;
+            long shiftedLo;
+            if (shift >= 64) {
+                shiftedHi = headLo << (shift - 64);
+                shiftedLo = 0;
+            } else if (shift == 0) {
+                shiftedHi = headHi;
+                shiftedLo = headLo;
+            } else {
+                shiftedHi = (headHi << shift) | (headLo >>> (64 - shift));
+                shiftedLo = headLo << shift;
+            }
+            hi = shiftedHi | tailHi;
+            lo = shiftedLo | tailLo;
+        } else if (groups != 8) {
+            return false;
+        }
+        out[0] = hi;
+        out[1] = lo;
+        return true;
+    }
+
+    /**
+     * @return the value of an ASCII hex digit, or -1; unlike {@link Character#digit} this rejects the other Unicode
+     * digits, which no proxy writes and which would give one address many spellings
+     */
+    private static int hexDigit(char c) {
+        if (c >= '0' && c <= '9') return c - '0';
+        if (c >= 'a' && c <= 'f') return c - 'a' + 10;
+        if (c >= 'A' && c <= 'F') return c - 'A' + 10;
+        return -1;
+    }
+
+    /**
+     * @return a mask of the low {@code bits} bits, 0 to 64
+     */
+    private static long mask(int bits) {
+        return bits >= 64 ? -1L : (1L << bits) - 1;
+    }
+}
@@ -0,0 +1,449 @@
+/*
+ * Copyright (c) 2025 Sam Packer
+ *
+ * This software is licensed under the PolyForm Noncommercial License 1.0.0.
+ *
+ * You may use, copy, modify, and distribute this software for noncommercial purposes only.
+ * Commercial use of this software, in whole or in part, is prohibited.
+ *
+ * See the full license text at:
+ * https://polyformproject.org/licenses/noncommercial/1.0.0/
+ * or in the LICENSE.md file included with this source code.
+ */
+
+package com.sampacker.shibboleth.rba;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Classifies client IPs against local range feeds (datacenter, VPN, Tor exit, ...) so the scorer gets the
+ * categories as payload flags instead of working them out itself.
+ * <p>
+ * Each feed is one category: a text file of CIDR prefixes, single addresses or {@code start-end} ranges, one per
+ * line, {@code #} starting a comment. Its ranges are sorted and merged into primitive arrays, 8 bytes per IPv4 range
+ * and 32 per IPv6 range, and looked up by binary search without allocating. Lines that do not parse are skipped
+ * and counted, since feeds are third-party data.
+ * <p>
+ * With watching enabled, a {@link WatchService} thread notices feed changes, rebuilds the changed feeds in parallel
+ * and swaps the new index in atomically; lookups keep using the old index until then. Replace feed files by
+ * renaming a complete file over them, so a half-written file is never read. A feed that fails to load keeps its
+ * previous ranges.
+ */
+final class IpRangeClassifier implements AutoCloseable {
+    static final int MAX_CATEGORIES = 32;
+
+    /**
+     * Quiet period after a change before rebuilding, so a burst of writes leads to one rebuild.
+     */
+    private static final long SETTLE_MILLIS = 500;
+
+    private static final ThreadLocal<long[]> SCRATCH = ThreadLocal.withInitial(() -> new long[2]);
+
+    private final Logger log = LoggerFactory.getLogger(IpRangeClassifier.class);
+    private final String[] names;
+    private final Path[] files;
+    private final WatchService watcher;
+    private final Thread watchThread;
+    private volatile Category[] index;
+
+    /**
+     * @param feeds category name to feed file, at most {@link #MAX_CATEGORIES}
+     * @throws IOException if a feed cannot be read
+     */
+    IpRangeClassifier(Map<String, Path> feeds, boolean watch, RbaMetrics metrics) throws IOException {
+        if (feeds.size() > MAX_CATEGORIES) {
+            throw new IllegalArgumentException("At most " + MAX_CATEGORIES + " IP range feeds are supported");
+        }
+        this.names = feeds.keySet().toArray(new String[0]);
+        this.files = feeds.values().stream().map(p -> p.toAbsolutePath().normalize()).toArray(Path[]::new);
+        try {
+            this.index = load(new Category[names.length], allIndexes());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        metrics.gauge("ipRanges.ranges", () -> Arrays.stream(index).mapToLong(Category::size).sum());
+
+        if (watch) {
+            watcher = files[0].getFileSystem().newWatchService();
+            final Set<Path> directories = new HashSet<>();
+            for (Path file : files) {
+                if (directories.add(file.getParent())) {
+                    file.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_MODIFY);
+                }
+            }
+            watchThread = new DaemonThreadFactory("rba-iprange-watch").newThread(this::watchLoop);
+            watchThread.start();
+        } else {
+            watcher = null;
+            watchThread = null;
+        }
+    }
+
+    /**
+     * @return a bit set of the categories {@code ipAddress} falls in, bit {@code i} for the {@code i}-th feed;
+     * 0 if none or it is not an IP literal
+     */
+    int classify(String ipAddress) {
+        final long[] bits = SCRATCH.get();
+        final int family = IpLiterals.parse(ipAddress, bits);
+        if (family == IpLiterals.INVALID) return 0;
+        final Category[] categories = index;
+        int mask = 0;
+        for (int i = 0; i < categories.length; i++) {
+            final boolean member = family == IpLiterals.IPV4
+                    ? categories[i].contains4(bits[1] & 0xFFFF_FFFFL)
+                    : categories[i].contains6(bits[0], bits[1]);
+            if (member) mask |= 1 << i;
+        }
+        return mask;
+    }
+
+    /**
+     * @return the request with one boolean field per category, named after the category
+     */
+    ScoringRequest addCategories(ScoringRequest request, String ipAddress) {
+        final int mask = classify(ipAddress);
+        final ScoringRequest.Builder enriched = request.toBuilder();
+        for (int i = 0; i < names.length; i++) {
+            enriched.field(names[i], (mask & (1 << i)) != 0);
+        }
+        return enriched.build();
+    }
+
+    private void watchLoop() {
+        try {
+            while (true) {
+                final Set<Integer> changed = new HashSet<>();
+                WatchKey key = watcher.take();
+                while (key != null) {
+                    final Path directory = (Path) key.watchable();
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            changed.addAll(allIndexes());
+                            continue;
+                        }
+                        final Path changedFile = directory.resolve((Path) event.context());
+                        for (int i = 0; i < files.length; i++) {
+                            if (files[i].equals(changedFile)) changed.add(i);
+                        }
+                    }
+                    key.reset();
+                    key = watcher.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+                }
+                if (!changed.isEmpty()) reload(changed);
+            }
+        } catch (ClosedWatchServiceException | InterruptedException e) {
+            // Closed.
+        }
+    }
+
+    private void reload(Set<Integer> changed) {
+        final long start = System.nanoTime();
+        index = load(index.clone(), changed);
+        log.info("Reloaded {} IP range feed(s) in {} ms", changed.size(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    /**
+     * Build the given feeds in parallel into a copy of {@code categories}. On reload a feed that fails keeps its
+     * previous ranges; on the first load there are none, so the failure is thrown.
+     */
+    private Category[] load(Category[] categories, Iterable<Integer> which) {
+        final List<Integer> feeds = new ArrayList<>();
+        which.forEach(feeds::add);
+        feeds.parallelStream().forEach(i -> {
+            try {
+                categories[i] = Category.read(files[i], names[i], log);
+            } catch (IOException | RuntimeException e) {
+                if (categories[i] == null) {
+                    throw e instanceof IOException io ? new UncheckedIOException(io) : (RuntimeException) e;
+                }
+                log.error("Could not reload IP range feed '{}' from {}, keeping its previous ranges",
+                        names[i], files[i], e);
+            }
+        });
+        return categories;
+    }
+
+    private List<Integer> allIndexes() {
+        final List<Integer> all = new ArrayList<>();
+        for (int i = 0; i < files.length; i++) all.add(i);
+        return all;
+    }
+
+    /**
+     * @return the configured categories in bit order
+     */
+    List<String> categories() {
+        return List.of(names);
+    }
+
+    @Override
+    public void close() {
+        if (watcher == null) return;
+        try {
+            watcher.close();
+        } catch (IOException ignored) {
+            // The thread exits either way once interrupted.
+        }
+        watchThread.interrupt();
+    }
+
+    /**
+     * Merged, sorted ranges of one feed.
+     */
+    private static final class Category {
+        /**
+         * IPv4 ranges packed as {@code start << 32 | end}, sign bit flipped so that signed order is unsigned order.
+         */
+        private final long[] v4;
+
+        /**
+         * IPv6 ranges as {@code startHi, startLo, endHi, endLo} quadruples, sorted by start.
+         */
+        private final long[] v6;
+
+        private Category(long[] v4, long[] v6) {
+            this.v4 = v4;
+            this.v6 = v6;
+        }
+
+        long size() {
+            return v4.length + v6.length / 4;
+        }
+
+        boolean contains4(long address) {
+            final long key = (address << 32 | 0xFFFF_FFFFL) ^ Long.MIN_VALUE;
+            int low = 0;
+            int high = v4.length - 1;
+            // Last range starting at or before the address; merged ranges do not overlap, so it is the only one.
+            while (low <= high) {
+                final int mid = (low + high) >>> 1;
+                if (v4[mid] <= key) {
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return high >= 0 && ((v4[high] ^ Long.MIN_VALUE) & 0xFFFF_FFFFL) >= address;
+        }
+
+        boolean contains6(long hi, long lo) {
+            int low = 0;
+            int high = v6.length / 4 - 1;
+            while (low <= high) {
+                final int mid = (low + high) >>> 1;
+                if (compare(v6[mid * 4], v6[mid * 4 + 1], hi, lo) <= 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return high >= 0 && compare(v6[high * 4 + 2], v6[high * 4 + 3], hi, lo) >= 0;
+        }
+
+        static Category read(Path file, String name, Logger log) throws IOException {
+            final LongList v4 = new LongList();
+            final LongList v6 = new LongList();
+            final long[] start = new long[2];
+            final long[] end = new long[2];
+            long skipped = 0;
+            try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    final int comment = line.indexOf('#');
+                    final String entry = (comment >= 0 ? line.substring(0, comment) : line).trim();
+                    if (entry.isEmpty()) continue;
+                    final int family = parseRange(entry, start, end);
+                    if (family == IpLiterals.IPV4) {
+                        v4.add((start[1] << 32 | (end[1] & 0xFFFF_FFFFL)) ^ Long.MIN_VALUE);
+                    } else if (family == IpLiterals.IPV6) {
+                        v6.add(start[0]);
+                        v6.add(start[1]);
+                        v6.add(end[0]);
+                        v6.add(end[1]);
+                    } else {
+                        skipped++;
+                    }
+                }
+            }
+            if (skipped > 0) log.warn("Skipped {} unparseable line(s) in IP range feed '{}' ({})", skipped, name, file);
+            return new Category(merge4(v4.toArray()), merge6(v6.toArray()));
+        }
+
+        /**
+         * Parse a CIDR prefix, single address or {@code start-end} range. IPv4 bounds are returned as 32-bit values
+         * in the low word.
+         *
+         * @return the family, or {@link IpLiterals#INVALID}
+         */
+        static int parseRange(String entry, long[] start, long[] end) {
+            final int dash = entry.indexOf('-');
+            if (dash >= 0) {
+                final int family = IpLiterals.parse(entry.substring(0, dash).trim(), start);
+                if (family == IpLiterals.INVALID
+                        || IpLiterals.parse(entry.substring(dash + 1).trim(), end) != family) {
+                    return IpLiterals.INVALID;
+                }
+                if (family == IpLiterals.IPV4) {
+                    start[1] &= 0xFFFF_FFFFL;
+                    end[1] &= 0xFFFF_FFFFL;
+                }
+                return compare(start[0], start[1], end[0], end[1]) <= 0 ? family : IpLiterals.INVALID;
+            }
+            final int slash = entry.indexOf('/');
+            final String address = slash >= 0 ? entry.substring(0, slash) : entry;
+            final int family = IpLiterals.parse(address, start);
+            if (family == IpLiterals.INVALID) return family;
+            // An IPv4-mapped prefix in IPv6 notation has an IPv6 length, which must stay within ::ffff:0:0/96.
+            final int offset = family == IpLiterals.IPV4 && address.indexOf(':') >= 0 ? 96 : 0;
+            final int maxLength = family == IpLiterals.IPV4 ? 32 : 128;
+            int length = maxLength;
+            if (slash >= 0) {
+                try {
+                    length = Integer.parseInt(entry.substring(slash + 1)) - offset;
+                } catch (NumberFormatException e) {
+                    return IpLiterals.INVALID;
+                }
+                if (length < 0 || length > maxLength) return IpLiterals.INVALID;
+            }
+            if (family == IpLiterals.IPV4) {
+                final long hostMask = length == 0 ? 0xFFFF_FFFFL : (1L << (32 - length)) - 1;
+                start[1] &= 0xFFFF_FFFFL & ~hostMask;
+                end[0] = 0;
+                end[1] = start[1] | hostMask;
+            } else {
+                final long hiHost = length >= 64 ? 0 : -1L >>> length;
+                final long loHost = length <= 64 ? -1L : length == 128 ? 0 : -1L >>> (length - 64);
+                start[0] &= ~hiHost;
+                start[1] &= ~loHost;
+                end[0] = start[0] | hiHost;
+                end[1] = start[1] | loHost;
+            }
+            return family;
+        }
+
+        private static long[] merge4(long[] ranges) {
+            Arrays.parallelSort(ranges);
+            int out = 0;
+            for (long range : ranges) {
+                final long start = (range ^ Long.MIN_VALUE) >>> 32;
+                final long end = range & 0xFFFF_FFFFL;
+                if (out > 0) {
+                    final long last = ranges[out - 1];
+                    final long lastEnd = last & 0xFFFF_FFFFL;
+                    if (start <= lastEnd + 1) {
+                        if (end > lastEnd) ranges[out - 1] = (last & 0xFFFF_FFFF_0000_0000L) | end;
+                        continue;
+                    }
+                }
+                ranges[out++] = range;
+            }
+            return Arrays.copyOf(ranges, out);
+        }
+
+        private static long[] merge6(long[] ranges) {
+            sort6(ranges);
+            int out = 0;
+            for (int i = 0; i < ranges.length; i += 4) {
+                if (out > 0) {
+                    final int last = out - 4;
+                    // Adjacent or overlapping: start <= lastEnd + 1, written as start - 1 <= lastEnd to avoid overflow.
+                    final long prevHi = ranges[i + 1] == 0 ? ranges[i] - 1 : ranges[i];
+                    final long prevLo = ranges[i + 1] - 1;
+                    final boolean startsAtZero = ranges[i] == 0 && ranges[i + 1] == 0;
+                    if (startsAtZero || compare(prevHi, prevLo, ranges[last + 2], ranges[last + 3]) <= 0) {
+                        if (compare(ranges[i + 2], ranges[i + 3], ranges[last + 2], ranges[last + 3]) > 0) {
+                            ranges[last + 2] = ranges[i + 2];
+                            ranges[last + 3] = ranges[i + 3];
+                        }
+                        continue;
+                    }
+                }
+                System.arraycopy(ranges, i, ranges, out, 4);
+                out += 4;
+            }
+            return Arrays.copyOf(ranges, out);
+        }
+
+        /**
+         * Heapsort of the quadruples by start address, to sort in place without boxing.
+         */
+        private static void sort6(long[] ranges) {
+            final int n = ranges.length / 4;
+            for (int i = n / 2 - 1; i >= 0; i--) siftDown(ranges, i, n);
+            for (int end = n - 1; end > 0; end--) {
+                swap(ranges, 0, end);
+                siftDown(ranges, 0, end);
+            }
+        }
+
+        private static void siftDown(long[] ranges, int node, int n) {
+            while (true) {
+                int largest = node;
+                final int left = 2 * node + 1;
+                final int right = left + 1;
+                if (left < n && greater(ranges, left, largest)) largest = left;
+                if (right < n && greater(ranges, right, largest)) largest = right;
+                if (largest == node) return;
+                swap(ranges, node, largest);
+                node = largest;
+            }
+        }
+
+        private static boolean greater(long[] ranges, int a, int b) {
+            return compare(ranges[a * 4], ranges[a * 4 + 1], ranges[b * 4], ranges[b * 4 + 1]) > 0;
+        }
+
+        private static void swap(long[] ranges, int a, int b) {
+            for (int k = 0; k < 4; k++) {
+                final long t = ranges[a * 4 + k];
+                ranges[a * 4 + k] = ranges[b * 4 + k];
+                ranges[b * 4 + k] = t;
+            }
+        }
+
+        private static int compare(long hi1, long lo1, long hi2, long lo2) {
+            final int c = Long.compareUnsigned(hi1, hi2);
+            return c != 0 ? c : Long.compareUnsigned(lo1, lo2);
+        }
+    }
+
+    /**
+     * Growable primitive list, so loading millions of ranges does not box them.
+     */
+    private static final class LongList {
+        private long[] values = new long[1024];
+        private int size;
+
+        void add(long value) {
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
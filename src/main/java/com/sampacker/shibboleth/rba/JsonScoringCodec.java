@@ -0,0 +1,501 @@
+/*
+ * Copyright (c) 2025 Sam Packer
+ *
+ * This software is licensed under the PolyForm Noncommercial License 1.0.0.
+ *
+ * You may use, copy, modify, and distribute this software for noncommercial purposes only.
+ * Commercial use of this software, in whole or in part, is prohibited.
+ *
+ * See the full license text at:
+ * https://polyformproject.org/licenses/noncommercial/1.0.0/
+ * or in the LICENSE.md file included with this source code.
+ */
+
+package com.sampacker.shibboleth.rba;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * JSON wire format, as understood by the reference Flask scorer.
+ * <p>
+ * Requests are written as escaped UTF-8 directly into the payload buffer, from precomputed field name fragments,
+ * with no intermediate strings. Null fields are sent as JSON null.
+ * <p>
+ * Responses are pulled straight from the stream through a small per-thread buffer: only "threatScore", "ttl"
+ * and "modelVersion" are materialised, everything else is skipped byte by byte, and reading stops as soon as all
+ * three have been seen. Bodies over {@link ScoringCodec#MAX_RESPONSE_BYTES} are rejected without being buffered.
+ */
+final class JsonScoringCodec implements ScoringCodec {
+    static final JsonScoringCodec INSTANCE = new JsonScoringCodec();
+
+    private static final int READ_BUFFER_SIZE = 2048;
+    private static final int MAX_DEPTH = 16;
+    private static final int MAX_NUMBER_LENGTH = 64;
+    private static final ThreadLocal<Reader> READERS = ThreadLocal.withInitial(Reader::new);
+
+    private static final byte[] USERNAME_PREFIX = ascii("{\"username\":");
+    private static final byte[] IP_ADDRESS_PREFIX = ascii(",\"ipAddress\":");
+    private static final byte[] USER_AGENT_PREFIX = ascii(",\"userAgent\":");
+    private static final byte[] NULL = ascii("null");
+    private static final byte[] TRUE = ascii("true");
+    private static final byte[] FALSE = ascii("false");
+    private static final byte[] HEX = ascii("0123456789abcdef");
+
+    private JsonScoringCodec() {
+    }
+
+    @Override
+    public String contentType() {
+        return "application/json; charset=utf-8";
+    }
+
+    @Override
+    public String accept() {
+        return "application/json";
+    }
+
+    @Override
+    public void encode(ScoringRequest request, PayloadBuffer out) {
+        out.write(USERNAME_PREFIX);
+        writeString(request.username(), out);
+        out.write(IP_ADDRESS_PREFIX);
+        writeString(request.ipAddress(), out);
+        out.write(USER_AGENT_PREFIX);
+        writeString(request.userAgent(), out);
+        for (Map.Entry<String, Object> field : request.fields().entrySet()) {
+            out.write(',');
+            writeString(field.getKey(), out);
+            out.write(':');
+            writeValue(field.getValue(), out);
+        }
+        out.write('}');
+    }
+
+    @Override
+    public void encodeBatch(List<ScoringRequest> requests, PayloadBuffer out) {
+        out.write('[');
+        for (int i = 0; i < requests.size(); i++) {
+            if (i > 0) out.write(',');
+            encode(requests.get(i), out);
+        }
+        out.write(']');
+    }
+
+    /**
+     * Write a JSON string literal, escaping quotes, backslashes and control characters; null becomes JSON null.
+     * Runs of characters that need no escaping are encoded straight into the buffer.
+     */
+    static void writeString(String s, PayloadBuffer out) {
+        if (s == null) {
+            out.write(NULL);
+            return;
+        }
+        out.write('"');
+        final int n = s.length();
+        int run = 0;
+        for (int i = 0; i < n; i++) {
+            final char c = s.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\') continue;
+            out.writeUtf8(s, run, i);
+            run = i + 1;
+            out.write('\\');
+            switch (c) {
+                case '"' -> out.write('"');
+                case '\\' -> out.write('\\');
+                case '\n' -> out.write('n');
+                case '\r' -> out.write('r');
+                case '\t' -> out.write('t');
+                case '\b' -> out.write('b');
+                case '\f' -> out.write('f');
+                default -> {
+                    out.write('u');
+                    out.write('0');
+                    out.write('0');
+                    out.write(HEX[c >> 4]);
+                    out.write(HEX[c & 0xF]);
+                }
+            }
+        }
+        out.writeUtf8(s, run, n);
+        out.write('"');
+    }
+
+    private static void writeValue(Object value, PayloadBuffer out) {
+        if (value instanceof String) {
+            writeString((String) value, out);
+        } else if (value instanceof Boolean) {
+            out.write((Boolean) value ? TRUE : FALSE);
+        } else if (value instanceof Double || value instanceof Float) {
+            final double d = ((Number) value).doubleValue();
+            if (Double.isFinite(d)) {
+                out.writeUtf8(Double.toString(d));
+            } else {
+                out.write(NULL);
+            }
+        } else if (value instanceof Number) {
+            out.writeUtf8(value.toString());
+        } else {
+            out.write(NULL);
+        }
+    }
+
+    @Override
+    public ScoreResult decode(InputStream in) throws IOException {
+        final Reader reader = READERS.get().open(in);
+        try {
+            return reader.readScoreObject(true);
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Override
+    public ScoreResult[] decodeBatch(InputStream in, int expected) throws IOException {
+        final Reader reader = READERS.get().open(in);
+        try {
+            if (reader.nextNonSpace() != '[') throw new IOException("RBA batch response is not a JSON array");
+            final ScoreResult[] results = new ScoreResult[expected];
+            int count = 0;
+            int c = reader.nextNonSpace();
+            if (c != ']') {
+                reader.unread();
+                while (true) {
+                    if (count == expected) throw new IOException("RBA batch response has more than "
+                            + expected + " results");
+                    results[count++] = reader.readScoreObject(false);
+                    c = reader.nextNonSpace();
+                    if (c == ']') break;
+                    if (c != ',') throw reader.syntaxError();
+                }
+            }
+            if (count != expected) {
+                throw new IOException("RBA batch response has " + count + " results for " + expected + " requests");
+            }
+            return results;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Pull parser over a response body. One per thread; the read and scratch buffers are reused across responses.
+     */
+    private static final class Reader {
+        private final byte[] buf = new byte[READ_BUFFER_SIZE];
+        private final char[] scratch = new char[ScoreResult.MAX_MODEL_VERSION_LENGTH];
+        private InputStream in;
+        private int pos;
+        private int limit;
+        private long consumed;
+
+        Reader open(InputStream in) throws IOException {
+            if (in == null) throw new IOException("RBA response has no body");
+            this.in = in;
+            pos = 0;
+            limit = 0;
+            consumed = 0;
+            return this;
+        }
+
+        void close() {
+            in = null;
+        }
+
+        /**
+         * Read one object, keeping the fields we know. With {@code stopEarly} the rest of the body is left unread
+         * once all of them have been seen.
+         */
+        ScoreResult readScoreObject(boolean stopEarly) throws IOException {
+            if (nextNonSpace() != '{') throw new IOException("RBA response is not a JSON object");
+            double threatScore = Double.NaN;
+            boolean found = false;
+            double ttlSeconds = Double.NaN;
+            String modelVersion = null;
+            boolean sawModelVersion = false;
+
+            int c = nextNonSpace();
+            if (c != '}') {
+                unread();
+                while (true) {
+                    if (nextNonSpace() != '"') throw syntaxError();
+                    final int field = readFieldName();
+                    if (nextNonSpace() != ':') throw syntaxError();
+                    switch (field) {
+                        case FIELD_THREAT_SCORE -> {
+                            threatScore = readNumber("threatScore");
+                            found = true;
+                        }
+                        case FIELD_TTL -> ttlSeconds = readOptionalNumber();
+                        case FIELD_MODEL_VERSION -> {
+                            modelVersion = readOptionalString();
+                            sawModelVersion = true;
+                        }
+                        default -> skipValue(1);
+                    }
+                    if (stopEarly && found && !Double.isNaN(ttlSeconds) && sawModelVersion) break;
+                    c = nextNonSpace();
+                    if (c == '}') break;
+                    if (c != ',') throw syntaxError();
+                }
+            }
+            if (!found) throw new IOException("RBA response missing required 'threatScore'.");
+            return new ScoreResult(ScoringCodec.checkScore(threatScore), ScoreResult.ttlFromSeconds(ttlSeconds),
+                    modelVersion);
+        }
+
+        private static final int FIELD_OTHER = 0;
+        private static final int FIELD_THREAT_SCORE = 1;
+        private static final int FIELD_TTL = 2;
+        private static final int FIELD_MODEL_VERSION = 3;
+
+        /**
+         * Consume a field name (opening quote already read) and identify it without building a String.
+         */
+        private int readFieldName() throws IOException {
+            int length = 0;
+            boolean fits = true;
+            int c;
+            while ((c = next()) != '"') {
+                if (c == '\\') {
+                    next();
+                    fits = false;
+                } else if (fits && length < scratch.length) {
+                    scratch[length++] = (char) c;
+                } else {
+                    fits = false;
+                }
+            }
+            if (!fits) return FIELD_OTHER;
+            if (matches("threatScore", length)) return FIELD_THREAT_SCORE;
+            if (matches("ttl", length)) return FIELD_TTL;
+            if (matches("modelVersion", length)) return FIELD_MODEL_VERSION;
+            return FIELD_OTHER;
+        }
+
+        private boolean matches(String name, int length) {
+            if (name.length() != length) return false;
+            for (int i = 0; i < length; i++) {
+                if (scratch[i] != name.charAt(i)) return false;
+            }
+            return true;
+        }
+
+        private double readNumber(String field) throws IOException {
+            final int c = nextNonSpace();
+            if (c != '-' && (c < '0' || c > '9')) throw new IOException("RBA '" + field + "' is not a number");
+            unread();
+            return parseNumber();
+        }
+
+        /**
+         * @return the number, or NaN if the value is something else (which is skipped)
+         */
+        private double readOptionalNumber() throws IOException {
+            final int c = nextNonSpace();
+            unread();
+            if (c == '-' || (c >= '0' && c <= '9')) return parseNumber();
+            skipValue(1);
+            return Double.NaN;
+        }
+
+        /**
+         * @return the string, or null if the value is not a string or is too long (either is skipped)
+         */
+        private String readOptionalString() throws IOException {
+            if (nextNonSpace() != '"') {
+                unread();
+                skipValue(1);
+                return null;
+            }
+            int length = 0;
+            boolean fits = true;
+            int c;
+            while ((c = next()) != '"') {
+                if (c == '\\') c = readEscape();
+                if (c >= 0x80) c = '?';  // Versions are expected to be ASCII; don't decode UTF-8 for them.
+                if (fits && length < scratch.length) {
+                    scratch[length++] = (char) c;
+                } else {
+                    fits = false;
+                }
+            }
+            return fits ? new String(scratch, 0, length) : null;
+        }
+
+        private int readEscape() throws IOException {
+            final int c = next();
+            switch (c) {
+                case 'b':
+                    return '\b';
+                case 'f':
+                    return '\f';
+                case 'n':
+                    return '\n';
+                case 'r':
+                    return '\r';
+                case 't':
+                    return '\t';
+                case 'u':
+                    int cp = 0;
+                    for (int i = 0; i < 4; i++) {
+                        final int digit = Character.digit(next(), 16);
+                        if (digit < 0) throw syntaxError();
+                        cp = (cp << 4) | digit;
+                    }
+                    return cp;
+                default:
+                    return c;
+            }
+        }
+
+        /**
+         * Parse a JSON number. Plain decimals with up to 15 significant digits are converted exactly from a long
+         * mantissa and a power of ten; anything else goes through {@link Double#parseDouble}.
+         */
+        private double parseNumber() throws IOException {
+            int length = 0;
+            long mantissa = 0;
+            int digits = 0;
+            int fractionDigits = 0;
+            boolean negative = false;
+            boolean simple = true;
+            boolean inFraction = false;
+            while (true) {
+                final int c = read();
+                if (c < 0) break;
+                if (c >= '0' && c <= '9') {
+                    if (digits > 0 || c != '0') digits++;
+                    if (digits > 15) simple = false;
+                    mantissa = mantissa * 10 + (c - '0');
+                    if (inFraction) fractionDigits++;
+                } else if (c == '-' && length == 0) {
+                    negative = true;
+                } else if (c == '.' && !inFraction) {
+                    inFraction = true;
+                } else if (c == 'e' || c == 'E' || c == '+' || c == '-') {
+                    simple = false;
+                } else {
+                    unread();
+                    break;
+                }
+                if (length == MAX_NUMBER_LENGTH) throw new IOException("Number too long in RBA response");
+                scratch[length++] = (char) c;
+            }
+            if (length == 0 || (negative && length == 1)) throw syntaxError();
+            if (simple && fractionDigits < POWERS_OF_TEN.length) {
+                final double value = mantissa / POWERS_OF_TEN[fractionDigits];
+                return negative ? -value : value;
+            }
+            try {
+                return Double.parseDouble(new String(scratch, 0, length));
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed number in RBA response", e);
+            }
+        }
+
+        private void skipValue(int depth) throws IOException {
+            if (depth > MAX_DEPTH) throw new IOException("RBA response nested too deeply");
+            final int c = nextNonSpace();
+            switch (c) {
+                case '"' -> skipString();
+                case '{', '[' -> {
+                    final int close = c == '{' ? '}' : ']';
+                    int next = nextNonSpace();
+                    if (next == close) return;
+                    unread();
+                    while (true) {
+                        if (c == '{') {
+                            if (nextNonSpace() != '"') throw syntaxError();
+                            skipString();
+                            if (nextNonSpace() != ':') throw syntaxError();
+                        }
+                        skipValue(depth + 1);
+                        next = nextNonSpace();
+                        if (next == close) return;
+                        if (next != ',') throw syntaxError();
+                    }
+                }
+                default -> {
+                    // Number or literal: consume up to the next delimiter.
+                    int b = c;
+                    while (b >= 0 && b != ',' && b != '}' && b != ']' && !isSpace(b)) {
+                        b = read();
+                    }
+                    if (b >= 0) unread();
+                }
+            }
+        }
+
+        private void skipString() throws IOException {
+            int c;
+            while ((c = next()) != '"') {
+                if (c == '\\') next();
+            }
+        }
+
+        int nextNonSpace() throws IOException {
+            int c;
+            do {
+                c = next();
+            } while (isSpace(c));
+            return c;
+        }
+
+        private static boolean isSpace(int c) {
+            return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+        }
+
+        private int next() throws IOException {
+            final int c = read();
+            if (c < 0) throw new EOFException("Truncated JSON response from RBA service");
+            return c;
+        }
+
+        /**
+         * @return the next byte, or -1 at end of body
+         */
+        private int read() throws IOException {
+            if (pos == limit) {
+                limit = in.read(buf, 0, buf.length);
+                pos = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    return -1;
+                }
+                consumed += limit;
+                if (consumed > MAX_RESPONSE_BYTES) throw new IOException("RBA response too large");
+            }
+            return buf[pos++] & 0xFF;
+        }
+
+        /**
+         * Push back the byte just read. Only valid directly after a successful read.
+         */
+        void unread() {
+            pos--;
+        }
+
+        IOException syntaxError() {
+            return new IOException("Invalid JSON from RBA service.");
+        }
+
+        private static final double[] POWERS_OF_TEN = {
+                1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17,
+                1e18, 1e19, 1e20, 1e21, 1e22
+        };
+    }
+
+    @Override
+    public String toString() {
+        return "JSON";
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2025 Sam Packer
+ *
+ * This software is licensed under the PolyForm Noncommercial License 1.0.0.
+ *
+ * You may use, copy, modify, and distribute this software for noncommercial purposes only.
+ * Commercial use of this software, in whole or in part, is prohibited.
+ *
+ * See the full license text at:
+ * https://polyformproject.org/licenses/noncommercial/1.0.0/
+ * or in the LICENSE.md file included with this source code.
+ */
+
+package com.sampacker.shibboleth.rba;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Streaming latency histogram with log-linear buckets over microseconds (8 sub-buckets per power of two,
+ * so bucket bounds are within 12.5% of any recorded value).
+ * <p>
+ * Recording is lock-free. To follow the scorer's current behaviour rather than its all-time history, every
+ * count is halved once {@code decayThreshold} samples have accumulated, so older samples fade out
+ * geometrically.
+ */
+final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong recorded = new AtomicLong();
+    private final long decayThreshold;
+    private final ReentrantLock decayLock = new ReentrantLock();
+
+    LatencyHistogram(long decayThreshold) {
+        this.decayThreshold = decayThreshold;
+    }
+
+    void record(long nanos) {
+        counts.incrementAndGet(bucketOf(Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos))));
+        recorded.incrementAndGet();
+        if (total.incrementAndGet() >= decayThreshold && decayLock.tryLock()) {
+            try {
+                if (total.get() >= decayThreshold) decay();
+            } finally {
+                decayLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Total samples ever recorded, ignoring decay.
+     */
+    long samples() {
+        return recorded.get();
+    }
+
+    /**
+     * @return the upper bound, in nanoseconds, of the bucket holding the given quantile, or 0 when empty
+     */
+    long percentileNanos(double quantile) {
+        long sum = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            sum += counts.get(i);
+        }
+        if (sum == 0) return 0;
+        final long target = Math.max(1, (long) Math.ceil(quantile * sum));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target) return TimeUnit.MICROSECONDS.toNanos(upperBoundOf(i));
+        }
+        return TimeUnit.MICROSECONDS.toNanos(upperBoundOf(BUCKETS - 1));
+    }
+
+    private void decay() {
+        long remaining = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            final long c = counts.get(i);
+            if (c == 0) continue;
+            // Concurrent increments landing between get and add are kept rather than lost.
+            remaining += counts.addAndGet(i, -(c - c / 2));
+        }
+        total.set(remaining);
+    }
+
+    static int bucketOf(long micros) {
+        if (micros < SUB_BUCKETS) return (int) micros;
+        final int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        final int sub = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        final int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        final int sub = bucket % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + sub + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright (c) 2025 Sam Packer
+ *
+ * This software is licensed under the PolyForm Noncommercial License 1.0.0.
+ *
+ * You may use, copy, modify, and distribute this software for noncommercial purposes only.
+ * Commercial use of this software, in whole or in part, is prohibited.
+ *
+ * See the full license text at:
+ * https://polyformproject.org/licenses/noncommercial/1.0.0/
+ * or in the LICENSE.md file included with this source code.
+ */
+
+package com.sampacker.shibboleth.rba;
+
+/**
+ * How the power-of-two-choices balancer compares two candidate scorer endpoints.
+ */
+public enum LoadBalancingStrategy {
+    /**
+     * Prefer the endpoint with fewer requests in flight.
+     */
+    LEAST_OUTSTANDING,
+
+    /**
+     * Prefer the endpoint with the lower EWMA latency weighted by its requests in flight, which favours faster
+     * replicas when they are unevenly sized.
+     */
+    EWMA
+}
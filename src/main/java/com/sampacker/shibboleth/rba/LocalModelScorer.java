@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2025 Sam Packer
+ *
+ * This software is licensed under the PolyForm Noncommercial License 1.0.0.
+ *
+ * You may use, copy, modify, and distribute this software for noncommercial purposes only.
+ * Commercial use of this software, in whole or in part, is prohibited.
+ *
+ * See the full license text at:
+ * https://polyformproject.org/licenses/noncommercial/1.0.0/
+ * or in the LICENSE.md file included with this source code.
+ */
+
+package com.sampacker.shibboleth.rba;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+/**
+ * Scores logins in process with a small feed-forward network exported from the scoring service, so no network call
+ * is needed.
+ * <p>
+ * The model's inputs are named request fields (enrichments such as range categories, GeoIP values or velocity
+ * counters): numbers are used as they are, booleans as 0 or 1, and a missing field as the input's mean. Each input
+ * is standardised with the exported mean and standard deviation, then run through the dense layers. The last layer
+ * has one output, the threat score.
+ * <p>
+ * Weights are held in flat {@code float} arrays, row-major by output unit, and activations in two per-thread scratch
+ * buffers, so inference allocates nothing but the result. Each dot product keeps four partial sums, which breaks the
+ * floating-point dependency chain so the JIT can overlap the multiplies.
+ * <p>
+ * The file is big-endian:
+ * <pre>
+ * magic "RBAN", int format version (1), UTF model version
+ * int inputs, then per input: UTF field name, float mean, float standard deviation
+ * int layers, then per layer: int in, int out, byte activation (0 linear, 1 ReLU, 2 sigmoid, 3 tanh),
+ *     float[out * in] weights, float[out] biases
+ * int references, then per reference: float[inputs] raw input values, float expected score
+ * </pre>
+ * UTF strings are a two-byte length followed by UTF-8. The references are reference outputs from the exporting
+ * framework; the model is only accepted if it reproduces every one of them, which guards against exporter bugs and
+ * mismatched files.
+ */
+final class LocalModelScorer implements RiskScorer {
+    /**
+     * Largest difference from a reference output accepted; float32 accumulation order differs between frameworks.
+     */
+    static final double PARITY_TOLERANCE = 1e-4;
+
+    private static final int MAGIC = 0x5242_414E;  // "RBAN"
+    private static final int FORMAT_VERSION = 1;
+    private static final int MAX_PARAMETERS = 1 << 24;
+
+    private static final byte LINEAR = 0;
+    private static final byte RELU = 1;
+    private static final byte SIGMOID = 2;
+    private static final byte TANH = 3;
+
+    private final String modelVersion;
+    private final String[] inputNames;
+    private final float[] means;
+    private final float[] inverseStdDevs;
+    private final Layer[] layers;
+    private final ThreadLocal<float[][]> scratch;
+
+    private record Layer(int in, int out, byte activation, float[] weights, float[] biases) {
+    }
+
+    private LocalModelScorer(String modelVersion, String[] inputNames, float[] means, float[] inverseStdDevs,
+                             Layer[] layers) {
+        this.modelVersion = modelVersion;
+        this.inputNames = inputNames;
+        this.means = means;
+        this.inverseStdDevs = inverseStdDevs;
+        this.layers = layers;
+        int width = inputNames.length;
+        for (Layer layer : layers) width = Math.max(width, layer.out());
+        final int maxWidth = width;
+        this.scratch = ThreadLocal.withInitial(() -> new float[][] {new float[maxWidth], new float[maxWidth]});
+    }
+
+    /**
+     * Load a model and check it against its reference outputs.
+     *
+     * @throws IOException if the file cannot be read, is malformed, or fails the parity check
+     */
+    static LocalModelScorer load(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file);
+             DataInputStream data = new DataInputStream(new BufferedInputStream(in))) {
+            if (data.readInt() != MAGIC) throw new IOException(file + " is not an RBA model file");
+            final int format = data.readInt();
+            if (format != FORMAT_VERSION) throw new IOException(file + " has unsupported format version " + format);
+            final String version = data.readUTF();
+
+            final int inputs = data.readInt();
+            if (inputs < 1 || inputs > 4096) throw new IOException(file + " has an invalid input count " + inputs);
+            final String[] names = new String[inputs];
+            final float[] means = new float[inputs];
+            final float[] inverseStdDevs = new float[inputs];
+            for (int i = 0; i < inputs; i++) {
+                names[i] = data.readUTF();
+                means[i] = data.readFloat();
+                final float stdDev = data.readFloat();
+                if (!(stdDev > 0) || !Float.isFinite(means[i])) {
+                    throw new IOException(file + " input '" + names[i] + "' has invalid normalization parameters");
+                }
+                inverseStdDevs[i] = 1 / stdDev;
+            }
+
+            final int layerCount = data.readInt();
+            if (layerCount < 1 || layerCount > 64) throw new IOException(file + " has " + layerCount + " layers");
+            final Layer[] layers = new Layer[layerCount];
+            long parameters = 0;
+            int width = inputs;
+            for (int l = 0; l < layerCount; l++) {
+                final int layerIn = data.readInt();
+                final int layerOut = data.readInt();
+                final byte activation = data.readByte();
+                parameters += ((long) layerIn + 1) * Math.max(layerOut, 0);
+                if (layerIn != width || layerOut < 1 || parameters > MAX_PARAMETERS
+                        || activation < LINEAR || activation > TANH) {
+                    throw new IOException(file + " layer " + l + " is invalid: " + layerIn + " x " + layerOut
+                            + ", activation " + activation);
+                }
+                final float[] weights = readFloats(data, layerIn * layerOut);
+                final float[] biases = readFloats(data, layerOut);
+                layers[l] = new Layer(layerIn, layerOut, activation, weights, biases);
+                width = layerOut;
+            }
+            if (width != 1) throw new IOException(file + " must have a single output, not " + width);
+
+            final LocalModelScorer scorer = new LocalModelScorer(version, names, means, inverseStdDevs, layers);
+            final int references = data.readInt();
+            if (references < 1) throw new IOException(file + " has no reference outputs to check the model against");
+            for (int r = 0; r < references; r++) {
+                final float[] raw = readFloats(data, inputs);
+                final float expected = data.readFloat();
+                final double actual = scorer.infer(raw);
+                if (!(Math.abs(actual - expected) <= PARITY_TOLERANCE)) {
+                    throw new IOException(file + " fails its parity check: reference " + r + " expected "
+                            + expected + " but scored " + actual);
+                }
+            }
+            if (data.read() != -1) throw new IOException(file + " has trailing data");
+            return scorer;
+        }
+    }
+
+    @Override
+    public ScoreResult score(ScoringRequest request) {
+        final float[] input = scratch.get()[0];
+        final Map<String, Object> fields = request.fields();
+        for (int i = 0; i < inputNames.length; i++) {
+            final Object value = fields.get(inputNames[i]);
+            if (value instanceof Number n) {
+                input[i] = n.floatValue();
+            } else if (value instanceof Boolean b) {
+                input[i] = b ? 1f : 0f;
+            } else {
+                input[i] = means[i];
+            }
+        }
+        return new ScoreResult(infer(input), null, modelVersion);
+    }
+
+    String modelVersion() {
+        return modelVersion;
+    }
+
+    /**
+     * @return the names of the request fields the model reads
+     */
+    String[] inputNames() {
+        return inputNames.clone();
+    }
+
+    /**
+     * Run the network on raw (unstandardised) inputs.
+     */
+    private double infer(float[] raw) {
+        final float[][] buffers = scratch.get();
+        float[] current = buffers[0];
+        float[] next = buffers[1];
+        for (int i = 0; i < inputNames.length; i++) {
+            final float value = Float.isFinite(raw[i]) ? raw[i] : means[i];
+            current[i] = (value - means[i]) * inverseStdDevs[i];
+        }
+        for (Layer layer : layers) {
+            dense(layer, current, next);
+            final float[] swap = current;
+            current = next;
+            next = swap;
+        }
+        return current[0];
+    }
+
+    private static void dense(Layer layer, float[] input, float[] output) {
+        final float[] w = layer.weights();
+        final int in = layer.in();
+        final int unrolled = in & ~3;
+        for (int o = 0, row = 0; o < layer.out(); o++, row += in) {
+            float s0 = 0;
+            float s1 = 0;
+            float s2 = 0;
+            float s3 = 0;
+            int i = 0;
+            for (; i < unrolled; i += 4) {
+                s0 += w[row + i] * input[i];
+                s1 += w[row + i + 1] * input[i + 1];
+                s2 += w[row + i + 2] * input[i + 2];
+                s3 += w[row + i + 3] * input[i + 3];
+            }
+            for (; i < in; i++) s0 += w[row + i] * input[i];
+            output[o] = activate(layer.activation(), (s0 + s1) + (s2 + s3) + layer.biases()[o]);
+        }
+    }
+
+    private static float activate(byte activation, float x) {
+        switch (activation) {
+            case RELU:
+                return Math.max(x, 0f);
+            case SIGMOID:
+                return (float) (1 / (1 + Math.exp(-x)));
+            case TANH:
+                return (float) Math.tanh(x);
+            default:
+                return x;
+        }
+    }
+
+    private static float[] readFloats(DataInputStream data, int count) throws IOException {
+        final float[] values = new float[count];
+        for (int i = 0; i < count; i++) values[i] = data.readFloat();
+        return values;
+    }
+
+    @Override
+    public String toString() {
+        return "local model " + modelVersion;
+    }
+}
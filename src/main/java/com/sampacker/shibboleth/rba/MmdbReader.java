@@ -0,0 +1,445 @@
+/*
+ * Copyright (c) 2025 Sam Packer
+ *
+ * This software is licensed under the PolyForm Noncommercial License 1.0.0.
+ *
+ * You may use, copy, modify, and distribute this software for noncommercial purposes only.
+ * Commercial use of this software, in whole or in part, is prohibited.
+ *
+ * See the full license text at:
+ * https://polyformproject.org/licenses/noncommercial/1.0.0/
+ * or in the LICENSE.md file included with this source code.
+ */
+
+package com.sampacker.shibboleth.rba;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Reader for one MaxMind DB (.mmdb) file, memory-mapped read-only.
+ * <p>
+ * A lookup walks the binary search tree straight in the mapped buffer with absolute reads, so it copies and
+ * allocates nothing; only the data record it lands on is decoded, and only the fields we send to the scorer
+ * (country, ASN and organisation, coordinates). Many addresses share a record, so decoded records are kept in a
+ * small direct-mapped cache keyed by record offset.
+ * <p>
+ * The mapping stays valid if the file is replaced by a rename, which is how geoipupdate installs new databases.
+ * A file rewritten in place can yield garbage, which lookups report as no data rather than failing the login.
+ *
+ * @see <a href="https://maxmind.github.io/MaxMind-DB/">MaxMind DB file format</a>
+ */
+final class MmdbReader {
+    private static final byte[] METADATA_MARKER = "\u00AB\u00CD\u00EFMaxMind.com".getBytes(StandardCharsets.ISO_8859_1);
+    private static final int METADATA_SEARCH_BYTES = 128 * 1024;
+    private static final int DATA_SECTION_SEPARATOR = 16;
+    private static final int CACHE_SIZE = 4096;
+
+    private static final int POINTER = 1;
+    private static final int STRING = 2;
+    private static final int DOUBLE = 3;
+    private static final int UINT16 = 5;
+    private static final int UINT32 = 6;
+    private static final int MAP = 7;
+    private static final int INT32 = 8;
+    private static final int UINT64 = 9;
+    private static final int ARRAY = 11;
+    private static final int BOOLEAN = 14;
+    private static final int FLOAT = 15;
+
+    private static final byte[] COUNTRY = ascii("country");
+    private static final byte[] REGISTERED_COUNTRY = ascii("registered_country");
+    private static final byte[] ISO_CODE = ascii("iso_code");
+    private static final byte[] LOCATION = ascii("location");
+    private static final byte[] LATITUDE = ascii("latitude");
+    private static final byte[] LONGITUDE = ascii("longitude");
+    private static final byte[] TRAITS = ascii("traits");
+    private static final byte[] ASN = ascii("autonomous_system_number");
+    private static final byte[] AS_ORGANIZATION = ascii("autonomous_system_organization");
+    private static final byte[] NODE_COUNT = ascii("node_count");
+    private static final byte[] RECORD_SIZE = ascii("record_size");
+    private static final byte[] IP_VERSION = ascii("ip_version");
+
+    private final Path file;
+    private final ByteBuffer buffer;
+    private final int nodeCount;
+    private final int recordSize;
+    private final int ipVersion;
+    private final int dataStart;
+    private final int ipv4Start;
+    private final AtomicReferenceArray<CachedRecord> cache = new AtomicReferenceArray<>(CACHE_SIZE);
+
+    private record CachedRecord(int offset, GeoRecord record) {
+    }
+
+    private MmdbReader(Path file, ByteBuffer buffer, int nodeCount, int recordSize, int ipVersion) {
+        this.file = file;
+        this.buffer = buffer;
+        this.nodeCount = nodeCount;
+        this.recordSize = recordSize;
+        this.ipVersion = ipVersion;
+        this.dataStart = nodeCount * recordSize / 4 + DATA_SECTION_SEPARATOR;
+        int node = 0;
+        if (ipVersion == 6) {
+            // IPv4 addresses live under ::/96; find that subtree once.
+            for (int i = 0; i < 96 && node < nodeCount; i++) node = readRecord(node, 0);
+        }
+        this.ipv4Start = node;
+    }
+
+    /**
+     * Map and validate a database file.
+     *
+     * @throws IOException if the file cannot be read or is not a MaxMind DB
+     */
+    static MmdbReader open(Path file) throws IOException {
+        final MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) throw new IOException(file + " is too large");
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        final int metadata = findMetadata(buffer);
+        if (metadata < 0) throw new IOException(file + " is not a MaxMind DB: no metadata marker");
+
+        long nodeCount = -1;
+        long recordSize = -1;
+        long ipVersion = -1;
+        try {
+            final Decoder decoder = new Decoder(buffer, metadata);
+            int pos = decoder.header(metadata);
+            if (decoder.type != MAP) throw new IOException(file + " has invalid metadata");
+            for (int i = 0, pairs = decoder.size; i < pairs; i++) {
+                pos = decoder.header(pos);
+                final int keyStart = decoder.payload;
+                final int keyLength = decoder.type == STRING ? decoder.size : -1;
+                final int valuePos = pos;
+                pos = decoder.skip(valuePos);
+                if (keyLength < 0) continue;
+                if (decoder.keyEquals(keyStart, keyLength, NODE_COUNT)) {
+                    nodeCount = decoder.unsigned(valuePos);
+                } else if (decoder.keyEquals(keyStart, keyLength, RECORD_SIZE)) {
+                    recordSize = decoder.unsigned(valuePos);
+                } else if (decoder.keyEquals(keyStart, keyLength, IP_VERSION)) {
+                    ipVersion = decoder.unsigned(valuePos);
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException(file + " has truncated metadata", e);
+        }
+        if (recordSize != 24 && recordSize != 28 && recordSize != 32) {
+            throw new IOException(file + " has unsupported record size " + recordSize);
+        }
+        if ((ipVersion != 4 && ipVersion != 6) || nodeCount < 0 || nodeCount * recordSize / 4 > metadata) {
+            throw new IOException(file + " has invalid metadata");
+        }
+        return new MmdbReader(file, buffer, (int) nodeCount, (int) recordSize, (int) ipVersion);
+    }
+
+    /**
+     * Look up an address as parsed by {@link IpLiterals#parse(String, long[])}.
+     *
+     * @return what the database holds for the address, or null if it has nothing
+     */
+    GeoRecord lookup(int family, long hi, long lo) {
+        final int offset;
+        try {
+            offset = findRecord(family, hi, lo);
+            if (offset < 0) return null;
+        } catch (IndexOutOfBoundsException e) {
+            return null;
+        }
+        final int slot = (offset * 0x9E3779B9 >>> 20) & (CACHE_SIZE - 1);
+        final CachedRecord cached = cache.get(slot);
+        if (cached != null && cached.offset() == offset) return cached.record();
+        GeoRecord record;
+        try {
+            record = decodeRecord(offset);
+        } catch (IndexOutOfBoundsException e) {
+            record = null;
+        }
+        cache.set(slot, new CachedRecord(offset, record));
+        return record;
+    }
+
+    Path file() {
+        return file;
+    }
+
+    /**
+     * @return the data section offset of the address's record, or -1
+     */
+    private int findRecord(int family, long hi, long lo) {
+        final int bits;
+        int node;
+        if (family == IpLiterals.IPV4) {
+            bits = 32;
+            node = ipv4Start;
+        } else if (ipVersion == 6) {
+            bits = 128;
+            node = 0;
+        } else {
+            return -1;
+        }
+        for (int i = 128 - bits; i < 128 && node < nodeCount; i++) {
+            final int bit = (int) (i < 64 ? hi >>> (63 - i) : lo >>> (127 - i)) & 1;
+            node = readRecord(node, bit);
+        }
+        if (node <= nodeCount) return -1;  // == nodeCount means no data
+        return node - nodeCount - DATA_SECTION_SEPARATOR;
+    }
+
+    private int readRecord(int node, int bit) {
+        switch (recordSize) {
+            case 24: {
+                final int p = node * 6 + bit * 3;
+                return uint24(p);
+            }
+            case 28: {
+                final int p = node * 7;
+                final int middle = buffer.get(p + 3) & 0xFF;
+                return bit == 0
+                        ? ((middle & 0xF0) << 20) | uint24(p)
+                        : ((middle & 0x0F) << 24) | uint24(p + 4);
+            }
+            default: {
+                // Record values beyond 2^31 cannot address a mapped file anyway.
+                final int value = buffer.getInt(node * 8 + bit * 4);
+                return value < 0 ? nodeCount : value;
+            }
+        }
+    }
+
+    private int uint24(int p) {
+        return (buffer.get(p) & 0xFF) << 16 | (buffer.get(p + 1) & 0xFF) << 8 | buffer.get(p + 2) & 0xFF;
+    }
+
+    private GeoRecord decodeRecord(int offset) {
+        final Decoder decoder = new Decoder(buffer, dataStart);
+        final Fields fields = new Fields();
+        decoder.readMap(dataStart + offset, fields, 0);
+        final GeoRecord record = new GeoRecord(fields.country != null ? fields.country : fields.registeredCountry,
+                fields.asn, fields.asOrganization, fields.latitude, fields.longitude);
+        return record.equals(GeoRecord.EMPTY) ? null : record;
+    }
+
+    private static int findMetadata(ByteBuffer buffer) {
+        final int limit = buffer.limit();
+        final int stop = Math.max(0, limit - METADATA_SEARCH_BYTES);
+        outer:
+        for (int i = limit - METADATA_MARKER.length; i >= stop; i--) {
+            for (int j = 0; j < METADATA_MARKER.length; j++) {
+                if (buffer.get(i + j) != METADATA_MARKER[j]) continue outer;
+            }
+            return i + METADATA_MARKER.length;
+        }
+        return -1;
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * The fields collected while decoding one record.
+     */
+    private static final class Fields {
+        String country;
+        String registeredCountry;
+        long asn;
+        String asOrganization;
+        double latitude = Double.NaN;
+        double longitude = Double.NaN;
+    }
+
+    /**
+     * Decodes values in place. {@link #header} reads one control byte sequence, following a pointer, and leaves the
+     * value's type, size and payload position in fields.
+     */
+    private static final class Decoder {
+        private static final int IN_RECORD = 0;
+        private static final int IN_COUNTRY = 1;
+        private static final int IN_REGISTERED_COUNTRY = 2;
+        private static final int IN_LOCATION = 3;
+
+        private final ByteBuffer buffer;
+        private final int pointerBase;
+        int type;
+        int size;
+        int payload;
+        boolean viaPointer;
+
+        Decoder(ByteBuffer buffer, int pointerBase) {
+            this.buffer = buffer;
+            this.pointerBase = pointerBase;
+        }
+
+        /**
+         * @return the position after the value if it is not a container or was reached through a pointer, otherwise
+         * the position of its first element
+         */
+        int header(int pos) {
+            int control = buffer.get(pos++) & 0xFF;
+            int t = control >>> 5;
+            viaPointer = false;
+            if (t == POINTER) {
+                final int sizeBits = (control >>> 3) & 3;
+                final int high = control & 7;
+                final int target;
+                switch (sizeBits) {
+                    case 0 -> target = (high << 8 | u8(pos));
+                    case 1 -> target = (high << 16 | u8(pos) << 8 | u8(pos + 1)) + 2048;
+                    case 2 -> target = (high << 24 | u8(pos) << 16 | u8(pos + 1) << 8 | u8(pos + 2)) + 526_336;
+                    default -> target = buffer.getInt(pos);
+                }
+                final int after = pos + sizeBits + 1;
+                header(pointerBase + target);
+                viaPointer = true;
+                return after;
+            }
+            if (t == 0) t = 7 + u8(pos++);
+            int s = control & 0x1F;
+            if (t != BOOLEAN) {
+                if (s == 29) {
+                    s = 29 + u8(pos++);
+                } else if (s == 30) {
+                    s = 285 + (u8(pos) << 8 | u8(pos + 1));
+                    pos += 2;
+                } else if (s == 31) {
+                    s = 65_821 + (u8(pos) << 16 | u8(pos + 1) << 8 | u8(pos + 2));
+                    pos += 3;
+                }
+            }
+            type = t;
+            size = s;
+            payload = pos;
+            return t == MAP || t == ARRAY || t == BOOLEAN ? pos : pos + s;
+        }
+
+        /**
+         * @return the position after the value starting at {@code pos}
+         */
+        int skip(int pos) {
+            final int after = header(pos);
+            if (viaPointer) return after;
+            final int t = type;
+            final int count = t == MAP ? size * 2 : t == ARRAY ? size : 0;
+            int p = after;
+            for (int i = 0; i < count; i++) p = skip(p);
+            return p;
+        }
+
+        /**
+         * Collect the fields we want from the map at {@code pos}.
+         *
+         * @return the position after the map
+         */
+        int readMap(int pos, Fields fields, int context) {
+            final int after = header(pos);
+            if (type != MAP) return skipRest(after);
+            final boolean pointed = viaPointer;
+            int p = payload;
+            for (int i = 0, pairs = size; i < pairs; i++) {
+                p = header(p);
+                final int keyStart = payload;
+                final int keyLength = type == STRING ? size : -1;
+                final int valuePos = p;
+                if (keyLength >= 0) {
+                    p = readValue(valuePos, keyStart, keyLength, fields, context);
+                } else {
+                    p = skip(valuePos);
+                }
+            }
+            return pointed ? after : p;
+        }
+
+        private int skipRest(int after) {
+            if (viaPointer) return after;
+            final int count = type == MAP ? size * 2 : type == ARRAY ? size : 0;
+            int p = after;
+            for (int i = 0; i < count; i++) p = skip(p);
+            return p;
+        }
+
+        private int readValue(int pos, int keyStart, int keyLength, Fields fields, int context) {
+            switch (context) {
+                case IN_RECORD:
+                    if (keyEquals(keyStart, keyLength, COUNTRY)) return readMap(pos, fields, IN_COUNTRY);
+                    if (keyEquals(keyStart, keyLength, REGISTERED_COUNTRY)) {
+                        return readMap(pos, fields, IN_REGISTERED_COUNTRY);
+                    }
+                    if (keyEquals(keyStart, keyLength, LOCATION)) return readMap(pos, fields, IN_LOCATION);
+                    // ASN databases have these at the top level, enterprise databases under traits.
+                    if (keyEquals(keyStart, keyLength, TRAITS)) return readMap(pos, fields, IN_RECORD);
+                    if (keyEquals(keyStart, keyLength, ASN)) {
+                        fields.asn = unsigned(pos);
+                    } else if (keyEquals(keyStart, keyLength, AS_ORGANIZATION)) {
+                        fields.asOrganization = string(pos);
+                    }
+                    break;
+                case IN_COUNTRY:
+                case IN_REGISTERED_COUNTRY:
+                    if (keyEquals(keyStart, keyLength, ISO_CODE)) {
+                        final String code = string(pos);
+                        if (context == IN_COUNTRY) {
+                            fields.country = code;
+                        } else {
+                            fields.registeredCountry = code;
+                        }
+                    }
+                    break;
+                default:
+                    if (keyEquals(keyStart, keyLength, LATITUDE)) {
+                        fields.latitude = number(pos);
+                    } else if (keyEquals(keyStart, keyLength, LONGITUDE)) {
+                        fields.longitude = number(pos);
+                    }
+                    break;
+            }
+            return skip(pos);
+        }
+
+        boolean keyEquals(int start, int length, byte[] expected) {
+            if (length != expected.length) return false;
+            for (int i = 0; i < length; i++) {
+                if (buffer.get(start + i) != expected[i]) return false;
+            }
+            return true;
+        }
+
+        /**
+         * @return the unsigned or int32 value at {@code pos}, or 0 if it is another type
+         */
+        long unsigned(int pos) {
+            header(pos);
+            if (type != UINT16 && type != UINT32 && type != UINT64 && type != INT32) return 0;
+            long value = 0;
+            for (int i = 0; i < size && i < 8; i++) value = value << 8 | u8(payload + i);
+            return value;
+        }
+
+        private String string(int pos) {
+            header(pos);
+            if (type != STRING) return null;
+            final byte[] bytes = new byte[size];
+            buffer.get(payload, bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private double number(int pos) {
+            header(pos);
+            if (type == DOUBLE && size == 8) return buffer.getDouble(payload);
+            if (type == FLOAT && size == 4) return buffer.getFloat(payload);
+            return Double.NaN;
+        }
+
+        private int u8(int pos) {
+            return buffer.get(pos) & 0xFF;
+        }
+    }
+}
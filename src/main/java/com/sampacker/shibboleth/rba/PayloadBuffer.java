@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2025 Sam Packer
+ *
+ * This software is licensed under the PolyForm Noncommercial License 1.0.0.
+ *
+ * You may use, copy, modify, and distribute this software for noncommercial purposes only.
+ * Commercial use of this software, in whole or in part, is prohibited.
+ *
+ * See the full license text at:
+ * https://polyformproject.org/licenses/noncommercial/1.0.0/
+ * or in the LICENSE.md file included with this source code.
+ */
+
+package com.sampacker.shibboleth.rba;
+
+import java.util.Arrays;
+
+/**
+ * Growable byte buffer that request bodies are encoded into, reused per thread so a login does not allocate a
+ * fresh body. Unlike ByteArrayOutputStream it is unsynchronized and exposes its backing array, which is handed to
+ * the transport as-is.
+ * <p>
+ * The calling thread must not encode another request while the previous body may still be in use. Scoring calls
+ * block until the exchange completes or is cancelled, which satisfies this.
+ */
+final class PayloadBuffer {
+    private static final int INITIAL_CAPACITY = 512;
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+    private static final ThreadLocal<PayloadBuffer> PER_THREAD = ThreadLocal.withInitial(PayloadBuffer::new);
+
+    private byte[] buf = new byte[INITIAL_CAPACITY];
+    private int length;
+
+    /**
+     * @return this thread's buffer, emptied
+     */
+    static PayloadBuffer forCurrentThread() {
+        final PayloadBuffer buffer = PER_THREAD.get();
+        buffer.reset();
+        return buffer;
+    }
+
+    /**
+     * Stop reusing this thread's buffer, because a request that may still read it outlived the caller (a timed-out
+     * or losing hedged exchange). The next {@link #forCurrentThread()} allocates a fresh one.
+     */
+    static void detachFromCurrentThread() {
+        PER_THREAD.remove();
+    }
+
+    void reset() {
+        if (buf.length > MAX_RETAINED_CAPACITY) {
+            // Don't pin a huge buffer to a pooled servlet thread because of one oversized request.
+            buf = new byte[INITIAL_CAPACITY];
+        }
+        length = 0;
+    }
+
+    byte[] array() {
+        return buf;
+    }
+
+    int length() {
+        return length;
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(buf, length);
+    }
+
+    void write(int b) {
+        ensure(1);
+        buf[length++] = (byte) b;
+    }
+
+    void write(byte[] b) {
+        write(b, 0, b.length);
+    }
+
+    void write(byte[] b, int off, int len) {
+        ensure(len);
+        System.arraycopy(b, off, buf, length, len);
+        length += len;
+    }
+
+    /**
+     * Append the UTF-8 encoding of {@code s} without an intermediate byte array. Unpaired surrogates become '?'.
+     */
+    void writeUtf8(CharSequence s) {
+        writeUtf8(s, 0, s.length());
+    }
+
+    /**
+     * Append the UTF-8 encoding of {@code s[start, end)}.
+     */
+    void writeUtf8(CharSequence s, int start, int end) {
+        final int n = end;
+        for (int i = start; i < n; i++) {
+            final char c = s.charAt(i);
+            if (c < 0x80) {
+                ensure(1);
+                buf[length++] = (byte) c;
+            } else if (c < 0x800) {
+                ensure(2);
+                buf[length++] = (byte) (0xC0 | (c >> 6));
+                buf[length++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                final int cp = Character.toCodePoint(c, s.charAt(++i));
+                ensure(4);
+                buf[length++] = (byte) (0xF0 | (cp >> 18));
+                buf[length++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                buf[length++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                buf[length++] = (byte) (0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                ensure(1);
+                buf[length++] = '?';
+            } else {
+                ensure(3);
+                buf[length++] = (byte) (0xE0 | (c >> 12));
+                buf[length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buf[length++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    /**
+     * Number of bytes {@link #writeUtf8} will produce for {@code s}.
+     */
+    static int utf8Length(CharSequence s) {
+        final int n = s.length();
+        int bytes = 0;
+        for (int i = 0; i < n; i++) {
+            final char c = s.charAt(i);
+            if (c < 0x80) {
+                bytes++;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                bytes++;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+
+    private void ensure(int extra) {
+        if (length + extra > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, length + extra));
+        }
+    }
+}
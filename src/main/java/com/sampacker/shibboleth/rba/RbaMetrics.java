@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2025 Sam Packer
+ *
+ * This software is licensed under the PolyForm Noncommercial License 1.0.0.
+ *
+ * You may use, copy, modify, and distribute this software for noncommercial purposes only.
+ * Commercial use of this software, in whole or in part, is prohibited.
+ *
+ * See the full license text at:
+ * https://polyformproject.org/licenses/noncommercial/1.0.0/
+ * or in the LICENSE.md file included with this source code.
+ */
+
+package com.sampacker.shibboleth.rba;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registers the plugin's metrics with the IdP metric registry, when one is configured.
+ * Without a registry the counters still work, they just are not exported.
+ */
+final class RbaMetrics {
+    static final String PREFIX = "com.sampacker.shibboleth.rba";
+
+    private final MetricRegistry registry;
+    private final Set<String> registered = ConcurrentHashMap.newKeySet();
+
+    RbaMetrics(MetricRegistry registry) {
+        this.registry = registry;
+    }
+
+    Counter counter(String name) {
+        if (registry == null) return new Counter();
+        final String fullName = MetricRegistry.name(PREFIX, name);
+        registered.add(fullName);
+        return registry.counter(fullName);
+    }
+
+    <T> void gauge(String name, Gauge<T> gauge) {
+        if (registry == null) return;
+        final String fullName = MetricRegistry.name(PREFIX, name);
+        registry.remove(fullName);
+        registry.register(fullName, gauge);
+        registered.add(fullName);
+    }
+
+    /**
+     * Unregister everything this instance registered, so a reloaded action does not leak gauges
+     * that still reference the old instance.
+     */
+    void unregisterAll() {
+        if (registry == null) return;
+        for (String name : registered) {
+            registry.remove(name);
+        }
+        registered.clear();
+    }
+}
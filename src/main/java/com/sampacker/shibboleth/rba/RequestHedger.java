@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2025 Sam Packer
+ *
+ * This software is licensed under the PolyForm Noncommercial License 1.0.0.
+ *
+ * You may use, copy, modify, and distribute this software for noncommercial purposes only.
+ * Commercial use of this software, in whole or in part, is prohibited.
+ *
+ * See the full license text at:
+ * https://polyformproject.org/licenses/noncommercial/1.0.0/
+ * or in the LICENSE.md file included with this source code.
+ */
+
+package com.sampacker.shibboleth.rba;
+
+import com.codahale.metrics.Counter;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * Sends a second ("hedge") request when the first has not answered within a percentile of observed latency,
+ * takes whichever answer arrives first, and cancels the other.
+ * <p>
+ * Hedges are paid for from a token bucket: every primary request deposits {@code budgetRatio} tokens and every
+ * hedge spends one, so hedges never exceed that fraction of traffic over time (plus a small burst allowance).
+ * No hedges are sent until the histogram has {@link AdaptiveTimeout#MIN_SAMPLES} samples.
+ */
+final class RequestHedger {
+    private static final long TOKEN_SCALE = 1000;
+    private static final long MAX_TOKENS = 10 * TOKEN_SCALE;
+
+    private final ScheduledExecutorService scheduler;
+    private final LatencyHistogram histogram;
+    private final double delayPercentile;
+    private final long minDelayNanos;
+    private final long depositPerRequest;
+    private final AtomicLong tokens = new AtomicLong();
+    private final Counter hedgesSent;
+    private final Counter hedgesWon;
+    private final Counter hedgesOverBudget;
+
+    RequestHedger(ScheduledExecutorService scheduler, LatencyHistogram histogram, double delayPercentile,
+                  Duration minDelay, double budgetRatio, RbaMetrics metrics) {
+        this.scheduler = scheduler;
+        this.histogram = histogram;
+        this.delayPercentile = delayPercentile;
+        this.minDelayNanos = minDelay.toNanos();
+        this.depositPerRequest = Math.round(budgetRatio * TOKEN_SCALE);
+        this.hedgesSent = metrics.counter("hedge.sent");
+        this.hedgesWon = metrics.counter("hedge.won");
+        this.hedgesOverBudget = metrics.counter("hedge.overBudget");
+    }
+
+    <T> CompletableFuture<T> execute(Supplier<CompletableFuture<T>> primary, Supplier<CompletableFuture<T>> hedge) {
+        tokens.getAndUpdate(t -> Math.min(MAX_TOKENS, t + depositPerRequest));
+
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        // Attempts that have not completed yet; the result fails only once every attempt has failed.
+        final AtomicInteger outstanding = new AtomicInteger(1);
+        final AtomicReference<CompletableFuture<T>> hedgeRef = new AtomicReference<>();
+
+        final CompletableFuture<T> first = primary.get();
+        first.whenComplete((v, e) -> settle(result, outstanding, v, e, hedgeRef.get()));
+
+        if (histogram.samples() >= AdaptiveTimeout.MIN_SAMPLES) {
+            final long delay = Math.max(minDelayNanos, histogram.percentileNanos(delayPercentile));
+            scheduler.schedule(() -> {
+                if (result.isDone()) return;
+                if (!takeToken()) {
+                    hedgesOverBudget.inc();
+                    return;
+                }
+                if (outstanding.getAndUpdate(n -> n == 0 ? 0 : n + 1) == 0) return;
+                hedgesSent.inc();
+                final CompletableFuture<T> second = hedge.get();
+                hedgeRef.set(second);
+                second.whenComplete((v, e) -> {
+                    if (e == null && !result.isDone()) hedgesWon.inc();
+                    settle(result, outstanding, v, e, first);
+                });
+            }, delay, TimeUnit.NANOSECONDS);
+        }
+
+        result.whenComplete((v, e) -> {
+            first.cancel(true);
+            final CompletableFuture<T> second = hedgeRef.get();
+            if (second != null) second.cancel(true);
+        });
+        return result;
+    }
+
+    private static <T> void settle(CompletableFuture<T> result, AtomicInteger outstanding, T value, Throwable error,
+                                   CompletableFuture<T> other) {
+        if (error == null) {
+            if (result.complete(value) && other != null) other.cancel(true);
+        } else if (outstanding.decrementAndGet() == 0) {
+            result.completeExceptionally(error);
+        }
+    }
+
+    private boolean takeToken() {
+        while (true) {
+            final long t = tokens.get();
+            if (t < TOKEN_SCALE) return false;
+            if (tokens.compareAndSet(t, t - TOKEN_SCALE)) return true;
+        }
+    }
+}
@@ -13,38 +13,52 @@
 
 package com.sampacker.shibboleth.rba;
 
-import com.google.gson.Gson;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonSyntaxException;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import jakarta.servlet.http.Cookie;
 import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import net.shibboleth.idp.authn.AuthenticationResult;
 import net.shibboleth.idp.authn.context.AuthenticationContext;
 import net.shibboleth.idp.authn.principal.UsernamePrincipal;
+import net.shibboleth.shared.component.ComponentInitializationException;
 import net.shibboleth.shared.servlet.impl.HttpServletRequestResponseContext;
 import org.opensaml.profile.action.AbstractProfileAction;
 import org.opensaml.profile.action.EventIds;
 import org.opensaml.profile.context.EventContext;
 import org.opensaml.profile.context.ProfileRequestContext;
+import org.opensaml.storage.StorageService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
-import java.io.BufferedReader;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.nio.charset.StandardCharsets;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpTimeoutException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Calls an external RBA service and decides based on "threatScore".
  */
 public class RiskBasedAuthAction extends AbstractProfileAction {
-    private static final Gson GSON = new Gson();
-    private static final int CONNECT_TIMEOUT_MS = 5000;
-    private static final int READ_TIMEOUT_MS = 5000;
 
     private final Logger log = LoggerFactory.getLogger(RiskBasedAuthAction.class);
 
@@ -53,25 +67,1449 @@ public class RiskBasedAuthAction extends AbstractProfileAction {
      */
     private String rbaEndpoint;
 
+    /**
+     * Replicas of the scorer, used instead of rbaEndpoint when set.
+     */
+    private List<String> rbaEndpoints;
+
     /**
      * Deny when threatScore >= failureThreshold (required)
      */
     private double failureThreshold;
 
-    public String getRbaEndpoint() {
-        return rbaEndpoint;
+    /**
+     * Timeout for establishing a connection to the scorer.
+     */
+    private Duration connectTimeout = Duration.ofSeconds(5);
+
+    /**
+     * Timeout for the scorer's response; the fixed value, or the fallback and default ceiling in adaptive mode.
+     */
+    private Duration readTimeout = Duration.ofSeconds(5);
+
+    /**
+     * Derive the read timeout from observed scorer latency instead of using readTimeout directly.
+     */
+    private boolean adaptiveTimeoutEnabled;
+    private double adaptiveTimeoutPercentile = 0.99;
+    private double adaptiveTimeoutMultiplier = 3.0;
+    private Duration adaptiveTimeoutFloor = Duration.ofMillis(50);
+    private Duration adaptiveTimeoutCeiling;
+
+    /**
+     * How requests are spread over rbaEndpoints, and when a failing replica is taken out of rotation.
+     */
+    private LoadBalancingStrategy loadBalancingStrategy = LoadBalancingStrategy.LEAST_OUTSTANDING;
+    private int outlierConsecutiveFailures = 5;
+    private Duration outlierEjectionDuration = Duration.ofSeconds(30);
+
+    /**
+     * Send a second request to another replica when the first is slower than hedgeDelayPercentile.
+     */
+    private boolean hedgingEnabled;
+    private double hedgeDelayPercentile = 0.95;
+    private Duration hedgeMinDelay = Duration.ofMillis(10);
+    private double hedgeBudgetRatio = 0.05;
+
+    /**
+     * Let concurrent logins with the same user, IP and User-Agent share one scorer call.
+     */
+    private boolean coalescingEnabled = true;
+
+    /**
+     * How long a coalesced login waits for the shared call; defaults to the overall scorer deadline.
+     */
+    private Duration coalescingMaxWait;
+
+    /**
+     * Reuse recent scores for the same user, IP and User-Agent instead of asking the scorer again.
+     */
+    private boolean scoreCacheEnabled;
+    private long scoreCacheMaxSize = 10_000;
+
+    /**
+     * How long a score is reused when the scorer sends no "ttl".
+     */
+    private Duration scoreCacheTtl = Duration.ofMinutes(5);
+
+    /**
+     * Upper bound on the scorer's "ttl".
+     */
+    private Duration scoreCacheMaxTtl = Duration.ofHours(1);
+
+    /**
+     * Age after which a cached score that is read again is refreshed in the background.
+     */
+    private Duration scoreCacheRefreshAfter = Duration.ofMinutes(4);
+
+    /**
+     * Optional StorageService shared by the IdP nodes, used as a second cache tier behind the per-node one.
+     */
+    private StorageService scoreCacheStorage;
+
+    /**
+     * Base64-encoded HMAC key for the shared tier's record keys, at least 32 bytes once decoded and the same on
+     * every node.
+     */
+    private String scoreCacheStorageSecret;
+
+    /**
+     * How long a login waits for the shared tier before going to the scorer.
+     */
+    private Duration scoreCacheStorageReadWait = Duration.ofMillis(25);
+
+    /**
+     * How often queued scores are written to the shared tier.
+     */
+    private Duration scoreCacheStorageFlushInterval = Duration.ofMillis(100);
+
+    /**
+     * Model file exported from the scoring service, to score with in process instead of calling rbaEndpoint.
+     */
+    private String localModel;
+
+    /**
+     * With both localModel and rbaEndpoint set, only logins whose local score is within this distance of
+     * failureThreshold are sent to rbaEndpoint; the rest are decided locally. 0 disables tiering.
+     */
+    private double tieredScoringBand;
+
+    /**
+     * Candidate scorer that every scored login is also sent to, in the background; its answers are only logged and
+     * compared, never acted on.
+     */
+    private String shadowEndpoint;
+    private double shadowSampleRate = 1.0;
+    private int shadowThreads = 2;
+    private int shadowQueueSize = 100;
+
+    /**
+     * Send scoring requests in batches to batchEndpoint instead of one request per login.
+     */
+    private boolean batchingEnabled;
+    private String batchEndpoint;
+    private int batchMaxSize = 32;
+    private Duration batchLinger = Duration.ofMillis(2);
+
+    /**
+     * How long a login waits for its batched score; defaults to the overall scorer deadline.
+     */
+    private Duration batchDeadline;
+
+    /**
+     * Adaptive cap on logins waiting for the scorer at once; logins over it are decided immediately.
+     */
+    private boolean concurrencyLimitEnabled;
+    private int concurrencyLimitInitial = 20;
+    private int concurrencyLimitMin = 4;
+    private int concurrencyLimitMax = 200;
+    private double concurrencyLimitRttTolerance = 2.0;
+    private double concurrencyLimitBackoffRatio = 0.9;
+
+    /**
+     * Decision for logins rejected by the concurrency limit; defaults to failurePolicy.
+     */
+    private ScorerFailurePolicy concurrencyLimitPolicy;
+
+    /**
+     * CIDR prefixes of the reverse proxies in front of the IdP; X-Forwarded-For is only believed from these.
+     */
+    private List<String> trustedProxies;
+
+    /**
+     * CIDR prefixes whose clients skip scoring (e.g. corporate egress) or are denied outright.
+     */
+    private List<String> ipAllowList;
+    private List<String> ipDenyList;
+
+    /**
+     * Optional file of "allow CIDR" and "deny CIDR" lines, merged with the lists above and
+     * reloaded when it changes.
+     */
+    private String ipListFile;
+    private Duration ipListReloadInterval = Duration.ofSeconds(30);
+
+    /**
+     * Range feeds (category name to file) whose membership is sent to the scorer as one boolean field per category.
+     */
+    private Map<String, String> ipRangeFeeds;
+
+    /**
+     * Rebuild the range index when a feed file changes.
+     */
+    private boolean ipRangeFeedsWatch = true;
+
+    /**
+     * MaxMind DB files (e.g. GeoLite2-City and GeoLite2-ASN) used to add country, ASN and coordinates to the request.
+     */
+    private List<String> geoIpDatabases;
+    private Duration geoIpReloadInterval = Duration.ofMinutes(1);
+
+    /**
+     * Count logins per user, per IP and distinct users per IP over a sliding window, and send the counts to the
+     * scorer.
+     */
+    private boolean velocityEnabled;
+    private int velocityMaxKeys = 65_536;
+    private Duration velocityWindow = Duration.ofMinutes(1);
+
+    /**
+     * Remember each user's last accepted login location (needs geoIpDatabases) and send the distance and speed
+     * of travel since then to the scorer.
+     */
+    private boolean impossibleTravelEnabled;
+    private int impossibleTravelMaxUsers = 2_097_152;
+
+    /**
+     * Deny logins implying travel faster than this, in km/h, without calling the scorer; 0 never denies.
+     */
+    private double impossibleTravelDenySpeed;
+
+    /**
+     * Moves shorter than this, in km, are never denied, to allow for GeoIP inaccuracy.
+     */
+    private double impossibleTravelMinDistance = 300;
+
+    /**
+     * Reject retries from recently denied clients without calling the scorer.
+     */
+    private boolean denialCacheEnabled;
+    private int denialCacheSize = 65_536;
+
+    /**
+     * Block after a first denial; doubled for each further denial, up to denialCacheMaxBlock.
+     */
+    private Duration denialCacheBaseBlock = Duration.ofMinutes(1);
+    private Duration denialCacheMaxBlock = Duration.ofHours(1);
+
+    /**
+     * Denials from one IP, across all users, after which the whole IP is blocked.
+     */
+    private int denialCacheIpStrikes = 5;
+
+    /**
+     * Remember each authentication's verdict and reuse it when the session's result is reused for SSO from the same
+     * network and browser, instead of scoring again.
+     */
+    private boolean sessionVerdictEnabled;
+    private Duration sessionVerdictWindow = Duration.ofHours(1);
+    private long sessionVerdictMaxSize = 100_000;
+
+    /**
+     * Issue a signed cookie after a low-risk login and let later logins presenting it skip scoring.
+     */
+    private boolean trustedDeviceEnabled;
+
+    /**
+     * Base64-encoded HMAC key for the device cookie, at least 32 bytes once decoded.
+     */
+    private String trustedDeviceKey;
+
+    /**
+     * Scores below this earn the device a cookie.
+     */
+    private double trustedDeviceMaxScore = 0.2;
+    private Duration trustedDeviceLifetime = Duration.ofDays(30);
+    private String trustedDeviceCookieName = "shib_idp_rba_device";
+
+    /**
+     * The cookie is bound to the client's network: an address prefix of this length.
+     */
+    private int trustedDeviceIpv4PrefixLength = 24;
+    private int trustedDeviceIpv6PrefixLength = 48;
+
+    /**
+     * Encoding of scoring requests. The scorer's response is decoded according to its Content-Type.
+     */
+    private WireFormat wireFormat = WireFormat.JSON;
+
+    /**
+     * Cap on concurrent exchanges (HTTP/1.1 connections or HTTP/2 streams) per scorer endpoint.
+     */
+    private int maxConnectionsPerEndpoint = 64;
+
+    /**
+     * What to do when the scorer fails or the circuit breaker is open.
+     */
+    private ScorerFailurePolicy failurePolicy = ScorerFailurePolicy.ERROR;
+
+    private boolean circuitBreakerEnabled = true;
+    private int circuitWindowSize = 50;
+    private int circuitMinimumCalls = 20;
+    private double circuitFailureRateThreshold = 0.5;
+    private double circuitSlowCallRateThreshold = 0.8;
+    private Duration circuitSlowCallDuration = Duration.ofSeconds(2);
+    private Duration circuitOpenDuration = Duration.ofSeconds(10);
+    private int circuitHalfOpenProbes = 3;
+
+    /**
+     * Optional IdP metric registry, e.g. shibboleth.metrics.MetricRegistry.
+     */
+    private MetricRegistry metricRegistry;
+
+    private ScorerEndpointPool endpointPool;
+    private RiskScorer scorer;
+    private String scorerName;
+    private Duration overallTimeout;
+    private ScheduledExecutorService scheduler;
+    private RequestHedger hedger;
+    private SingleFlight<ScoringKey, ScoreResult> coalescer;
+    private ScoreCache scoreCache;
+    private SharedScoreStore sharedScores;
+    private TrustedDeviceCookie trustedDevice;
+    private SessionVerdicts sessionVerdicts;
+    private DenialCache denialCache;
+    private TrustedProxies proxies;
+    private Counter untrustedForwards;
+    private final AtomicLong nextUntrustedForwardWarning = new AtomicLong(System.nanoTime());
+    private IpAccessList ipAccessList;
+    private IpRangeClassifier ipRanges;
+    private GeoIpLookup geoIp;
+    private VelocityCounters velocity;
+    private TravelHistory travelHistory;
+    private Counter impossibleTravelDenials;
+    private Counter ipListAllowed;
+    private Counter ipListDenied;
+    private Counter fastRejects;
+    private Counter sessionVerdictReuses;
+    private Counter trustedDeviceLogins;
+    private Counter trustedDeviceCookiesIssued;
+    private Counter coalescedCalls;
+    private BatchDispatcher batcher;
+    private ShadowScorer shadow;
+    private ConcurrencyLimiter concurrencyLimiter;
+    private ScorerTransport transport;
+    private ScoringCodec codec;
+    private LatencyHistogram latencyHistogram;
+    private AdaptiveTimeout adaptiveTimeout;
+    private CircuitBreaker circuitBreaker;
+    private RbaMetrics metrics;
+    private Counter shortCircuitedCalls;
+    private Counter scorerFailures;
+
+    public String getRbaEndpoint() {
+        return rbaEndpoint;
+    }
+
+    public void setRbaEndpoint(String rbaEndpoint) {
+        this.rbaEndpoint = rbaEndpoint;
+    }
+
+    public List<String> getRbaEndpoints() {
+        return rbaEndpoints;
+    }
+
+    public void setRbaEndpoints(List<String> rbaEndpoints) {
+        this.rbaEndpoints = rbaEndpoints;
+    }
+
+    public double getFailureThreshold() {
+        return failureThreshold;
+    }
+
+    public void setFailureThreshold(double failureThreshold) {
+        this.failureThreshold = failureThreshold;
+    }
+
+    public Duration getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public void setConnectTimeout(Duration connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public Duration getReadTimeout() {
+        return readTimeout;
+    }
+
+    public void setReadTimeout(Duration readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    public boolean isAdaptiveTimeoutEnabled() {
+        return adaptiveTimeoutEnabled;
+    }
+
+    public void setAdaptiveTimeoutEnabled(boolean adaptiveTimeoutEnabled) {
+        this.adaptiveTimeoutEnabled = adaptiveTimeoutEnabled;
+    }
+
+    public double getAdaptiveTimeoutPercentile() {
+        return adaptiveTimeoutPercentile;
+    }
+
+    public void setAdaptiveTimeoutPercentile(double adaptiveTimeoutPercentile) {
+        this.adaptiveTimeoutPercentile = adaptiveTimeoutPercentile;
+    }
+
+    public double getAdaptiveTimeoutMultiplier() {
+        return adaptiveTimeoutMultiplier;
+    }
+
+    public void setAdaptiveTimeoutMultiplier(double adaptiveTimeoutMultiplier) {
+        this.adaptiveTimeoutMultiplier = adaptiveTimeoutMultiplier;
+    }
+
+    public Duration getAdaptiveTimeoutFloor() {
+        return adaptiveTimeoutFloor;
+    }
+
+    public void setAdaptiveTimeoutFloor(Duration adaptiveTimeoutFloor) {
+        this.adaptiveTimeoutFloor = adaptiveTimeoutFloor;
+    }
+
+    public Duration getAdaptiveTimeoutCeiling() {
+        return adaptiveTimeoutCeiling;
+    }
+
+    /**
+     * Upper bound for the adaptive read timeout; defaults to readTimeout.
+     */
+    public void setAdaptiveTimeoutCeiling(Duration adaptiveTimeoutCeiling) {
+        this.adaptiveTimeoutCeiling = adaptiveTimeoutCeiling;
+    }
+
+    public LoadBalancingStrategy getLoadBalancingStrategy() {
+        return loadBalancingStrategy;
+    }
+
+    public void setLoadBalancingStrategy(LoadBalancingStrategy loadBalancingStrategy) {
+        this.loadBalancingStrategy = loadBalancingStrategy;
+    }
+
+    public int getOutlierConsecutiveFailures() {
+        return outlierConsecutiveFailures;
+    }
+
+    public void setOutlierConsecutiveFailures(int outlierConsecutiveFailures) {
+        this.outlierConsecutiveFailures = outlierConsecutiveFailures;
+    }
+
+    public Duration getOutlierEjectionDuration() {
+        return outlierEjectionDuration;
+    }
+
+    public void setOutlierEjectionDuration(Duration outlierEjectionDuration) {
+        this.outlierEjectionDuration = outlierEjectionDuration;
+    }
+
+    public boolean isHedgingEnabled() {
+        return hedgingEnabled;
+    }
+
+    public void setHedgingEnabled(boolean hedgingEnabled) {
+        this.hedgingEnabled = hedgingEnabled;
+    }
+
+    public double getHedgeDelayPercentile() {
+        return hedgeDelayPercentile;
+    }
+
+    public void setHedgeDelayPercentile(double hedgeDelayPercentile) {
+        this.hedgeDelayPercentile = hedgeDelayPercentile;
+    }
+
+    public Duration getHedgeMinDelay() {
+        return hedgeMinDelay;
+    }
+
+    public void setHedgeMinDelay(Duration hedgeMinDelay) {
+        this.hedgeMinDelay = hedgeMinDelay;
+    }
+
+    public double getHedgeBudgetRatio() {
+        return hedgeBudgetRatio;
+    }
+
+    /**
+     * Maximum fraction of requests that may be hedged, e.g. 0.05 for 5%.
+     */
+    public void setHedgeBudgetRatio(double hedgeBudgetRatio) {
+        this.hedgeBudgetRatio = hedgeBudgetRatio;
+    }
+
+    public boolean isCoalescingEnabled() {
+        return coalescingEnabled;
+    }
+
+    public void setCoalescingEnabled(boolean coalescingEnabled) {
+        this.coalescingEnabled = coalescingEnabled;
+    }
+
+    public Duration getCoalescingMaxWait() {
+        return coalescingMaxWait;
+    }
+
+    public void setCoalescingMaxWait(Duration coalescingMaxWait) {
+        this.coalescingMaxWait = coalescingMaxWait;
+    }
+
+    public boolean isScoreCacheEnabled() {
+        return scoreCacheEnabled;
+    }
+
+    public void setScoreCacheEnabled(boolean scoreCacheEnabled) {
+        this.scoreCacheEnabled = scoreCacheEnabled;
+    }
+
+    public long getScoreCacheMaxSize() {
+        return scoreCacheMaxSize;
+    }
+
+    public void setScoreCacheMaxSize(long scoreCacheMaxSize) {
+        this.scoreCacheMaxSize = scoreCacheMaxSize;
+    }
+
+    public Duration getScoreCacheTtl() {
+        return scoreCacheTtl;
+    }
+
+    public void setScoreCacheTtl(Duration scoreCacheTtl) {
+        this.scoreCacheTtl = scoreCacheTtl;
+    }
+
+    public Duration getScoreCacheMaxTtl() {
+        return scoreCacheMaxTtl;
+    }
+
+    public void setScoreCacheMaxTtl(Duration scoreCacheMaxTtl) {
+        this.scoreCacheMaxTtl = scoreCacheMaxTtl;
+    }
+
+    public Duration getScoreCacheRefreshAfter() {
+        return scoreCacheRefreshAfter;
+    }
+
+    public void setScoreCacheRefreshAfter(Duration scoreCacheRefreshAfter) {
+        this.scoreCacheRefreshAfter = scoreCacheRefreshAfter;
+    }
+
+    public String getLocalModel() {
+        return localModel;
+    }
+
+    public void setLocalModel(String localModel) {
+        this.localModel = localModel;
+    }
+
+    public double getTieredScoringBand() {
+        return tieredScoringBand;
+    }
+
+    public void setTieredScoringBand(double tieredScoringBand) {
+        this.tieredScoringBand = tieredScoringBand;
+    }
+
+    public String getShadowEndpoint() {
+        return shadowEndpoint;
+    }
+
+    public void setShadowEndpoint(String shadowEndpoint) {
+        this.shadowEndpoint = shadowEndpoint;
+    }
+
+    public double getShadowSampleRate() {
+        return shadowSampleRate;
+    }
+
+    public void setShadowSampleRate(double shadowSampleRate) {
+        this.shadowSampleRate = shadowSampleRate;
+    }
+
+    public int getShadowThreads() {
+        return shadowThreads;
+    }
+
+    public void setShadowThreads(int shadowThreads) {
+        this.shadowThreads = shadowThreads;
+    }
+
+    public int getShadowQueueSize() {
+        return shadowQueueSize;
+    }
+
+    public void setShadowQueueSize(int shadowQueueSize) {
+        this.shadowQueueSize = shadowQueueSize;
+    }
+
+    public boolean isBatchingEnabled() {
+        return batchingEnabled;
+    }
+
+    public void setBatchingEnabled(boolean batchingEnabled) {
+        this.batchingEnabled = batchingEnabled;
+    }
+
+    public String getBatchEndpoint() {
+        return batchEndpoint;
+    }
+
+    public void setBatchEndpoint(String batchEndpoint) {
+        this.batchEndpoint = batchEndpoint;
+    }
+
+    public int getBatchMaxSize() {
+        return batchMaxSize;
+    }
+
+    public void setBatchMaxSize(int batchMaxSize) {
+        this.batchMaxSize = batchMaxSize;
+    }
+
+    public Duration getBatchLinger() {
+        return batchLinger;
+    }
+
+    public void setBatchLinger(Duration batchLinger) {
+        this.batchLinger = batchLinger;
+    }
+
+    public Duration getBatchDeadline() {
+        return batchDeadline;
+    }
+
+    public void setBatchDeadline(Duration batchDeadline) {
+        this.batchDeadline = batchDeadline;
+    }
+
+    public boolean isConcurrencyLimitEnabled() {
+        return concurrencyLimitEnabled;
+    }
+
+    public void setConcurrencyLimitEnabled(boolean concurrencyLimitEnabled) {
+        this.concurrencyLimitEnabled = concurrencyLimitEnabled;
+    }
+
+    public int getConcurrencyLimitInitial() {
+        return concurrencyLimitInitial;
+    }
+
+    public void setConcurrencyLimitInitial(int concurrencyLimitInitial) {
+        this.concurrencyLimitInitial = concurrencyLimitInitial;
+    }
+
+    public int getConcurrencyLimitMin() {
+        return concurrencyLimitMin;
+    }
+
+    public void setConcurrencyLimitMin(int concurrencyLimitMin) {
+        this.concurrencyLimitMin = concurrencyLimitMin;
+    }
+
+    public int getConcurrencyLimitMax() {
+        return concurrencyLimitMax;
+    }
+
+    public void setConcurrencyLimitMax(int concurrencyLimitMax) {
+        this.concurrencyLimitMax = concurrencyLimitMax;
+    }
+
+    public double getConcurrencyLimitRttTolerance() {
+        return concurrencyLimitRttTolerance;
+    }
+
+    public void setConcurrencyLimitRttTolerance(double concurrencyLimitRttTolerance) {
+        this.concurrencyLimitRttTolerance = concurrencyLimitRttTolerance;
+    }
+
+    public double getConcurrencyLimitBackoffRatio() {
+        return concurrencyLimitBackoffRatio;
+    }
+
+    public void setConcurrencyLimitBackoffRatio(double concurrencyLimitBackoffRatio) {
+        this.concurrencyLimitBackoffRatio = concurrencyLimitBackoffRatio;
+    }
+
+    public ScorerFailurePolicy getConcurrencyLimitPolicy() {
+        return concurrencyLimitPolicy;
+    }
+
+    public void setConcurrencyLimitPolicy(ScorerFailurePolicy concurrencyLimitPolicy) {
+        this.concurrencyLimitPolicy = concurrencyLimitPolicy;
+    }
+
+    public StorageService getScoreCacheStorage() {
+        return scoreCacheStorage;
+    }
+
+    public void setScoreCacheStorage(StorageService scoreCacheStorage) {
+        this.scoreCacheStorage = scoreCacheStorage;
+    }
+
+    public String getScoreCacheStorageSecret() {
+        return scoreCacheStorageSecret;
+    }
+
+    public void setScoreCacheStorageSecret(String scoreCacheStorageSecret) {
+        this.scoreCacheStorageSecret = scoreCacheStorageSecret;
+    }
+
+    public Duration getScoreCacheStorageReadWait() {
+        return scoreCacheStorageReadWait;
+    }
+
+    public void setScoreCacheStorageReadWait(Duration scoreCacheStorageReadWait) {
+        this.scoreCacheStorageReadWait = scoreCacheStorageReadWait;
+    }
+
+    public Duration getScoreCacheStorageFlushInterval() {
+        return scoreCacheStorageFlushInterval;
+    }
+
+    public void setScoreCacheStorageFlushInterval(Duration scoreCacheStorageFlushInterval) {
+        this.scoreCacheStorageFlushInterval = scoreCacheStorageFlushInterval;
+    }
+
+    public List<String> getTrustedProxies() {
+        return trustedProxies;
+    }
+
+    public void setTrustedProxies(List<String> trustedProxies) {
+        this.trustedProxies = trustedProxies;
+    }
+
+    public List<String> getIpAllowList() {
+        return ipAllowList;
+    }
+
+    public void setIpAllowList(List<String> ipAllowList) {
+        this.ipAllowList = ipAllowList;
+    }
+
+    public List<String> getIpDenyList() {
+        return ipDenyList;
+    }
+
+    public void setIpDenyList(List<String> ipDenyList) {
+        this.ipDenyList = ipDenyList;
+    }
+
+    public String getIpListFile() {
+        return ipListFile;
+    }
+
+    public void setIpListFile(String ipListFile) {
+        this.ipListFile = ipListFile;
+    }
+
+    public Duration getIpListReloadInterval() {
+        return ipListReloadInterval;
+    }
+
+    public void setIpListReloadInterval(Duration ipListReloadInterval) {
+        this.ipListReloadInterval = ipListReloadInterval;
+    }
+
+    public Map<String, String> getIpRangeFeeds() {
+        return ipRangeFeeds;
+    }
+
+    public void setIpRangeFeeds(Map<String, String> ipRangeFeeds) {
+        this.ipRangeFeeds = ipRangeFeeds;
+    }
+
+    public boolean isIpRangeFeedsWatch() {
+        return ipRangeFeedsWatch;
+    }
+
+    public void setIpRangeFeedsWatch(boolean ipRangeFeedsWatch) {
+        this.ipRangeFeedsWatch = ipRangeFeedsWatch;
+    }
+
+    public List<String> getGeoIpDatabases() {
+        return geoIpDatabases;
+    }
+
+    public void setGeoIpDatabases(List<String> geoIpDatabases) {
+        this.geoIpDatabases = geoIpDatabases;
+    }
+
+    public Duration getGeoIpReloadInterval() {
+        return geoIpReloadInterval;
+    }
+
+    public void setGeoIpReloadInterval(Duration geoIpReloadInterval) {
+        this.geoIpReloadInterval = geoIpReloadInterval;
+    }
+
+    public boolean isVelocityEnabled() {
+        return velocityEnabled;
+    }
+
+    public void setVelocityEnabled(boolean velocityEnabled) {
+        this.velocityEnabled = velocityEnabled;
+    }
+
+    public int getVelocityMaxKeys() {
+        return velocityMaxKeys;
+    }
+
+    public void setVelocityMaxKeys(int velocityMaxKeys) {
+        this.velocityMaxKeys = velocityMaxKeys;
+    }
+
+    public Duration getVelocityWindow() {
+        return velocityWindow;
+    }
+
+    public void setVelocityWindow(Duration velocityWindow) {
+        this.velocityWindow = velocityWindow;
+    }
+
+    public boolean isImpossibleTravelEnabled() {
+        return impossibleTravelEnabled;
+    }
+
+    public void setImpossibleTravelEnabled(boolean impossibleTravelEnabled) {
+        this.impossibleTravelEnabled = impossibleTravelEnabled;
+    }
+
+    public int getImpossibleTravelMaxUsers() {
+        return impossibleTravelMaxUsers;
+    }
+
+    public void setImpossibleTravelMaxUsers(int impossibleTravelMaxUsers) {
+        this.impossibleTravelMaxUsers = impossibleTravelMaxUsers;
+    }
+
+    public double getImpossibleTravelDenySpeed() {
+        return impossibleTravelDenySpeed;
+    }
+
+    public void setImpossibleTravelDenySpeed(double impossibleTravelDenySpeed) {
+        this.impossibleTravelDenySpeed = impossibleTravelDenySpeed;
+    }
+
+    public double getImpossibleTravelMinDistance() {
+        return impossibleTravelMinDistance;
+    }
+
+    public void setImpossibleTravelMinDistance(double impossibleTravelMinDistance) {
+        this.impossibleTravelMinDistance = impossibleTravelMinDistance;
+    }
+
+    public boolean isDenialCacheEnabled() {
+        return denialCacheEnabled;
+    }
+
+    public void setDenialCacheEnabled(boolean denialCacheEnabled) {
+        this.denialCacheEnabled = denialCacheEnabled;
+    }
+
+    public int getDenialCacheSize() {
+        return denialCacheSize;
+    }
+
+    public void setDenialCacheSize(int denialCacheSize) {
+        this.denialCacheSize = denialCacheSize;
+    }
+
+    public Duration getDenialCacheBaseBlock() {
+        return denialCacheBaseBlock;
+    }
+
+    public void setDenialCacheBaseBlock(Duration denialCacheBaseBlock) {
+        this.denialCacheBaseBlock = denialCacheBaseBlock;
+    }
+
+    public Duration getDenialCacheMaxBlock() {
+        return denialCacheMaxBlock;
+    }
+
+    public void setDenialCacheMaxBlock(Duration denialCacheMaxBlock) {
+        this.denialCacheMaxBlock = denialCacheMaxBlock;
+    }
+
+    public int getDenialCacheIpStrikes() {
+        return denialCacheIpStrikes;
+    }
+
+    public void setDenialCacheIpStrikes(int denialCacheIpStrikes) {
+        this.denialCacheIpStrikes = denialCacheIpStrikes;
+    }
+
+    public boolean isSessionVerdictEnabled() {
+        return sessionVerdictEnabled;
+    }
+
+    public void setSessionVerdictEnabled(boolean sessionVerdictEnabled) {
+        this.sessionVerdictEnabled = sessionVerdictEnabled;
+    }
+
+    public Duration getSessionVerdictWindow() {
+        return sessionVerdictWindow;
+    }
+
+    public void setSessionVerdictWindow(Duration sessionVerdictWindow) {
+        this.sessionVerdictWindow = sessionVerdictWindow;
+    }
+
+    public long getSessionVerdictMaxSize() {
+        return sessionVerdictMaxSize;
+    }
+
+    public void setSessionVerdictMaxSize(long sessionVerdictMaxSize) {
+        this.sessionVerdictMaxSize = sessionVerdictMaxSize;
+    }
+
+    public boolean isTrustedDeviceEnabled() {
+        return trustedDeviceEnabled;
+    }
+
+    public void setTrustedDeviceEnabled(boolean trustedDeviceEnabled) {
+        this.trustedDeviceEnabled = trustedDeviceEnabled;
+    }
+
+    public String getTrustedDeviceKey() {
+        return trustedDeviceKey;
+    }
+
+    public void setTrustedDeviceKey(String trustedDeviceKey) {
+        this.trustedDeviceKey = trustedDeviceKey;
+    }
+
+    public double getTrustedDeviceMaxScore() {
+        return trustedDeviceMaxScore;
+    }
+
+    public void setTrustedDeviceMaxScore(double trustedDeviceMaxScore) {
+        this.trustedDeviceMaxScore = trustedDeviceMaxScore;
+    }
+
+    public Duration getTrustedDeviceLifetime() {
+        return trustedDeviceLifetime;
+    }
+
+    public void setTrustedDeviceLifetime(Duration trustedDeviceLifetime) {
+        this.trustedDeviceLifetime = trustedDeviceLifetime;
+    }
+
+    public String getTrustedDeviceCookieName() {
+        return trustedDeviceCookieName;
+    }
+
+    public void setTrustedDeviceCookieName(String trustedDeviceCookieName) {
+        this.trustedDeviceCookieName = trustedDeviceCookieName;
+    }
+
+    public int getTrustedDeviceIpv4PrefixLength() {
+        return trustedDeviceIpv4PrefixLength;
+    }
+
+    public void setTrustedDeviceIpv4PrefixLength(int trustedDeviceIpv4PrefixLength) {
+        this.trustedDeviceIpv4PrefixLength = trustedDeviceIpv4PrefixLength;
+    }
+
+    public int getTrustedDeviceIpv6PrefixLength() {
+        return trustedDeviceIpv6PrefixLength;
+    }
+
+    public void setTrustedDeviceIpv6PrefixLength(int trustedDeviceIpv6PrefixLength) {
+        this.trustedDeviceIpv6PrefixLength = trustedDeviceIpv6PrefixLength;
+    }
+
+    public WireFormat getWireFormat() {
+        return wireFormat;
+    }
+
+    public void setWireFormat(WireFormat wireFormat) {
+        this.wireFormat = wireFormat;
+    }
+
+    public int getMaxConnectionsPerEndpoint() {
+        return maxConnectionsPerEndpoint;
+    }
+
+    public void setMaxConnectionsPerEndpoint(int maxConnectionsPerEndpoint) {
+        this.maxConnectionsPerEndpoint = maxConnectionsPerEndpoint;
+    }
+
+    public ScorerFailurePolicy getFailurePolicy() {
+        return failurePolicy;
+    }
+
+    public void setFailurePolicy(ScorerFailurePolicy failurePolicy) {
+        this.failurePolicy = failurePolicy;
+    }
+
+    public boolean isCircuitBreakerEnabled() {
+        return circuitBreakerEnabled;
+    }
+
+    public void setCircuitBreakerEnabled(boolean circuitBreakerEnabled) {
+        this.circuitBreakerEnabled = circuitBreakerEnabled;
+    }
+
+    public int getCircuitWindowSize() {
+        return circuitWindowSize;
     }
 
-    public void setRbaEndpoint(String rbaEndpoint) {
-        this.rbaEndpoint = rbaEndpoint;
+    public void setCircuitWindowSize(int circuitWindowSize) {
+        this.circuitWindowSize = circuitWindowSize;
     }
 
-    public double getFailureThreshold() {
-        return failureThreshold;
+    public int getCircuitMinimumCalls() {
+        return circuitMinimumCalls;
     }
 
-    public void setFailureThreshold(double failureThreshold) {
-        this.failureThreshold = failureThreshold;
+    public void setCircuitMinimumCalls(int circuitMinimumCalls) {
+        this.circuitMinimumCalls = circuitMinimumCalls;
+    }
+
+    public double getCircuitFailureRateThreshold() {
+        return circuitFailureRateThreshold;
+    }
+
+    public void setCircuitFailureRateThreshold(double circuitFailureRateThreshold) {
+        this.circuitFailureRateThreshold = circuitFailureRateThreshold;
+    }
+
+    public double getCircuitSlowCallRateThreshold() {
+        return circuitSlowCallRateThreshold;
+    }
+
+    public void setCircuitSlowCallRateThreshold(double circuitSlowCallRateThreshold) {
+        this.circuitSlowCallRateThreshold = circuitSlowCallRateThreshold;
+    }
+
+    public Duration getCircuitSlowCallDuration() {
+        return circuitSlowCallDuration;
+    }
+
+    public void setCircuitSlowCallDuration(Duration circuitSlowCallDuration) {
+        this.circuitSlowCallDuration = circuitSlowCallDuration;
+    }
+
+    public Duration getCircuitOpenDuration() {
+        return circuitOpenDuration;
+    }
+
+    public void setCircuitOpenDuration(Duration circuitOpenDuration) {
+        this.circuitOpenDuration = circuitOpenDuration;
+    }
+
+    public int getCircuitHalfOpenProbes() {
+        return circuitHalfOpenProbes;
+    }
+
+    public void setCircuitHalfOpenProbes(int circuitHalfOpenProbes) {
+        this.circuitHalfOpenProbes = circuitHalfOpenProbes;
+    }
+
+    public MetricRegistry getMetricRegistry() {
+        return metricRegistry;
+    }
+
+    public void setMetricRegistry(MetricRegistry metricRegistry) {
+        this.metricRegistry = metricRegistry;
+    }
+
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+        if (maxConnectionsPerEndpoint < 1) {
+            throw new ComponentInitializationException("maxConnectionsPerEndpoint must be at least 1");
+        }
+        final List<String> configured = rbaEndpoints != null && !rbaEndpoints.isEmpty()
+                ? rbaEndpoints
+                : rbaEndpoint != null && !rbaEndpoint.isBlank() ? List.of(rbaEndpoint) : List.of();
+        final List<ScorerEndpoint> endpoints = new ArrayList<>();
+        for (String endpoint : configured) {
+            try {
+                endpoints.add(new ScorerEndpoint(URI.create(endpoint.trim())));
+            } catch (IllegalArgumentException e) {
+                throw new ComponentInitializationException("Invalid RBA endpoint: " + endpoint, e);
+            }
+        }
+        if (loadBalancingStrategy == null || outlierConsecutiveFailures < 1 || outlierEjectionDuration == null) {
+            throw new ComponentInitializationException(
+                    "loadBalancingStrategy and outlierEjectionDuration must be set, outlierConsecutiveFailures >= 1");
+        }
+        if (failurePolicy == null) {
+            throw new ComponentInitializationException("failurePolicy cannot be null");
+        }
+        if (connectTimeout == null || connectTimeout.isNegative() || connectTimeout.isZero()
+                || readTimeout == null || readTimeout.isNegative() || readTimeout.isZero()) {
+            throw new ComponentInitializationException("connectTimeout and readTimeout must be positive");
+        }
+        latencyHistogram = new LatencyHistogram(10_000);
+        if (adaptiveTimeoutEnabled) {
+            if (adaptiveTimeoutPercentile <= 0 || adaptiveTimeoutPercentile > 1 || adaptiveTimeoutMultiplier <= 0) {
+                throw new ComponentInitializationException(
+                        "adaptiveTimeoutPercentile must be in (0, 1] and adaptiveTimeoutMultiplier positive");
+            }
+            final Duration ceiling = adaptiveTimeoutCeiling != null ? adaptiveTimeoutCeiling : readTimeout;
+            if (adaptiveTimeoutFloor == null || adaptiveTimeoutFloor.compareTo(ceiling) > 0) {
+                throw new ComponentInitializationException("adaptiveTimeoutFloor must not exceed the ceiling");
+            }
+            adaptiveTimeout = new AdaptiveTimeout(latencyHistogram, adaptiveTimeoutPercentile,
+                    adaptiveTimeoutMultiplier, adaptiveTimeoutFloor, ceiling, readTimeout);
+        }
+
+        metrics = new RbaMetrics(metricRegistry);
+        endpointPool = endpoints.isEmpty() ? null : new ScorerEndpointPool(endpoints, loadBalancingStrategy,
+                outlierConsecutiveFailures, outlierEjectionDuration, metrics);
+        shortCircuitedCalls = metrics.counter("circuit.shortCircuited");
+        scorerFailures = metrics.counter("scorer.failures");
+        if (circuitBreakerEnabled) {
+            if (circuitWindowSize < 1 || circuitHalfOpenProbes < 1) {
+                throw new ComponentInitializationException(
+                        "circuitWindowSize and circuitHalfOpenProbes must be at least 1");
+            }
+            circuitBreaker = new CircuitBreaker(circuitWindowSize, circuitMinimumCalls,
+                    circuitFailureRateThreshold, circuitSlowCallRateThreshold,
+                    circuitSlowCallDuration, circuitOpenDuration, circuitHalfOpenProbes);
+            metrics.gauge("circuit.state", () -> circuitBreaker.state().name());
+        }
+
+        final Duration maxReadTimeout = adaptiveTimeout != null && adaptiveTimeoutCeiling != null
+                && adaptiveTimeoutCeiling.compareTo(readTimeout) > 0 ? adaptiveTimeoutCeiling : readTimeout;
+        // Safety net for bodies that stall after the headers; a hedge can start up to one read timeout late.
+        overallTimeout = connectTimeout.plus(maxReadTimeout.multipliedBy(hedgingEnabled ? 2 : 1));
+
+        if (hedgingEnabled) {
+            if (hedgeDelayPercentile <= 0 || hedgeDelayPercentile > 1 || hedgeBudgetRatio < 0
+                    || hedgeMinDelay == null) {
+                throw new ComponentInitializationException(
+                        "hedgeDelayPercentile must be in (0, 1], hedgeBudgetRatio non-negative, hedgeMinDelay set");
+            }
+            if (endpointPool == null || endpointPool.endpoints().size() < 2) {
+                log.warn("Hedging is enabled but only one RBA endpoint is configured; hedges will hit the same one.");
+            }
+            scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("rba-scheduler"));
+            hedger = new RequestHedger(scheduler, latencyHistogram, hedgeDelayPercentile, hedgeMinDelay,
+                    hedgeBudgetRatio, metrics);
+        }
+
+        coalescedCalls = metrics.counter("coalesce.shared");
+        if (coalescingEnabled) {
+            if (coalescingMaxWait == null) {
+                coalescingMaxWait = overallTimeout;
+            }
+            coalescer = new SingleFlight<>();
+            metrics.gauge("coalesce.inFlight", coalescer::size);
+        }
+
+        if (scoreCacheEnabled) {
+            if (scoreCacheMaxSize < 1 || !isPositive(scoreCacheTtl) || !isPositive(scoreCacheMaxTtl)
+                    || !isPositive(scoreCacheRefreshAfter)) {
+                throw new ComponentInitializationException(
+                        "scoreCacheMaxSize must be at least 1 and the scoreCache durations positive");
+            }
+            if (scoreCacheRefreshAfter.compareTo(scoreCacheTtl) >= 0) {
+                log.warn("scoreCacheRefreshAfter is not shorter than scoreCacheTtl; cached scores will expire "
+                        + "before they are refreshed");
+            }
+            scoreCache = new ScoreCache(scoreCacheMaxSize, scoreCacheTtl, scoreCacheMaxTtl, scoreCacheRefreshAfter,
+                    this::refreshScore, metrics);
+        }
+        if (scoreCacheStorage != null) {
+            if (scoreCache == null) {
+                throw new ComponentInitializationException("scoreCacheStorage requires scoreCacheEnabled");
+            }
+            if (scoreCacheStorageReadWait == null || scoreCacheStorageReadWait.isNegative()
+                    || !isPositive(scoreCacheStorageFlushInterval)) {
+                throw new ComponentInitializationException("scoreCacheStorageReadWait must be non-negative and "
+                        + "scoreCacheStorageFlushInterval positive");
+            }
+            final String unsupported = SharedScoreStore.checkCapabilities(scoreCacheStorage);
+            if (unsupported != null) {
+                throw new ComponentInitializationException("scoreCacheStorage is too small for RBA scores: "
+                        + unsupported);
+            }
+            final byte[] secret;
+            try {
+                secret = scoreCacheStorageSecret != null
+                        ? Base64.getDecoder().decode(scoreCacheStorageSecret.trim()) : new byte[0];
+            } catch (IllegalArgumentException e) {
+                throw new ComponentInitializationException("scoreCacheStorageSecret is not valid base64", e);
+            }
+            if (secret.length < 32) {
+                throw new ComponentInitializationException("scoreCacheStorageSecret must be at least 32 bytes");
+            }
+            sharedScores = new SharedScoreStore(scoreCacheStorage, secret, scoreCacheStorageReadWait,
+                    scoreCacheStorageFlushInterval, scoreCacheTtl, scoreCacheMaxTtl, metrics);
+        }
+
+        if (trustedProxies != null && !trustedProxies.isEmpty()) {
+            try {
+                proxies = new TrustedProxies(trustedProxies);
+            } catch (IllegalArgumentException e) {
+                throw new ComponentInitializationException("Invalid trustedProxies", e);
+            }
+        }
+
+        untrustedForwards = metrics.counter("clientIp.untrustedForwards");
+        ipListAllowed = metrics.counter("ipList.allowed");
+        ipListDenied = metrics.counter("ipList.denied");
+        final boolean hasIpLists = ipAllowList != null && !ipAllowList.isEmpty()
+                || ipDenyList != null && !ipDenyList.isEmpty();
+        if (hasIpLists || ipListFile != null && !ipListFile.isBlank()) {
+            if (ipListReloadInterval == null || ipListReloadInterval.isNegative()) {
+                throw new ComponentInitializationException("ipListReloadInterval must be non-negative");
+            }
+            try {
+                ipAccessList = new IpAccessList(ipAllowList, ipDenyList,
+                        ipListFile != null && !ipListFile.isBlank() ? Path.of(ipListFile.trim()) : null,
+                        ipListReloadInterval, metrics);
+            } catch (IOException | IllegalArgumentException e) {
+                throw new ComponentInitializationException("Could not load the RBA IP lists", e);
+            }
+        }
+
+        if (ipRangeFeeds != null && !ipRangeFeeds.isEmpty()) {
+            final Map<String, Path> feeds = new LinkedHashMap<>();
+            for (Map.Entry<String, String> feed : ipRangeFeeds.entrySet()) {
+                final String category = feed.getKey();
+                if (category == null || !category.matches("[A-Za-z][A-Za-z0-9_]*")
+                        || Set.of("username", "ipAddress", "userAgent").contains(category)
+                        || GeoIpLookup.FIELDS.contains(category) || VelocityCounters.FIELDS.contains(category)
+                        || TravelHistory.FIELDS.contains(category)
+                        || feed.getValue() == null || feed.getValue().isBlank()) {
+                    throw new ComponentInitializationException("Invalid IP range feed '" + category
+                            + "': the category must be an identifier not used by another field, with a file");
+                }
+                feeds.put(category, Path.of(feed.getValue().trim()));
+            }
+            if (feeds.size() > IpRangeClassifier.MAX_CATEGORIES) {
+                throw new ComponentInitializationException("At most " + IpRangeClassifier.MAX_CATEGORIES
+                        + " IP range feeds are supported");
+            }
+            try {
+                ipRanges = new IpRangeClassifier(feeds, ipRangeFeedsWatch, metrics);
+            } catch (IOException e) {
+                throw new ComponentInitializationException("Could not load the IP range feeds", e);
+            }
+        }
+
+        if (geoIpDatabases != null && !geoIpDatabases.isEmpty()) {
+            if (geoIpReloadInterval == null || geoIpReloadInterval.isNegative()) {
+                throw new ComponentInitializationException("geoIpReloadInterval must be non-negative");
+            }
+            final List<Path> databases = new ArrayList<>();
+            for (String database : geoIpDatabases) {
+                databases.add(Path.of(database.trim()));
+            }
+            try {
+                geoIp = new GeoIpLookup(databases, geoIpReloadInterval);
+            } catch (IOException e) {
+                throw new ComponentInitializationException("Could not open the GeoIP databases", e);
+            }
+        }
+
+        if (velocityEnabled) {
+            if (velocityMaxKeys < 1 || velocityMaxKeys > 1 << 24 || velocityWindow == null
+                    || velocityWindow.compareTo(Duration.ofSeconds(VelocityCounters.BUCKETS)) < 0) {
+                throw new ComponentInitializationException("velocityMaxKeys must be between 1 and 2^24 and "
+                        + "velocityWindow at least " + VelocityCounters.BUCKETS + " seconds");
+            }
+            velocity = new VelocityCounters(velocityMaxKeys, velocityWindow);
+            if (scoreCache != null || coalescer != null) {
+                log.info("Velocity features change every login, so scores are no longer cached or coalesced");
+            }
+        }
+
+        impossibleTravelDenials = metrics.counter("travel.denied");
+        if (impossibleTravelEnabled) {
+            if (geoIp == null) {
+                throw new ComponentInitializationException("impossibleTravelEnabled requires geoIpDatabases");
+            }
+            if (impossibleTravelMaxUsers < 1 || impossibleTravelMaxUsers > 1 << 28 || impossibleTravelDenySpeed < 0
+                    || impossibleTravelMinDistance < 0) {
+                throw new ComponentInitializationException("impossibleTravelMaxUsers must be between 1 and 2^28 "
+                        + "and impossibleTravelDenySpeed and impossibleTravelMinDistance non-negative");
+            }
+            travelHistory = new TravelHistory(impossibleTravelMaxUsers);
+        }
+
+        fastRejects = metrics.counter("denial.fastRejects");
+        if (denialCacheEnabled) {
+            if (denialCacheSize < 1 || denialCacheSize > 1 << 24 || denialCacheIpStrikes < 1
+                    || !isPositive(denialCacheBaseBlock) || denialCacheMaxBlock == null
+                    || denialCacheMaxBlock.compareTo(denialCacheBaseBlock) < 0) {
+                throw new ComponentInitializationException("Invalid denial cache settings: need 1 <= size <= 2^24, "
+                        + "ipStrikes >= 1 and 0 < baseBlock <= maxBlock");
+            }
+            denialCache = new DenialCache(denialCacheSize, denialCacheBaseBlock, denialCacheMaxBlock,
+                    denialCacheIpStrikes);
+        }
+
+        if (proxies == null && (ipAccessList != null || ipRanges != null || geoIp != null || velocity != null
+                || denialCache != null)) {
+            log.warn("trustedProxies is not set, so X-Forwarded-For is ignored and the client IP is the address of "
+                    + "the connection. Behind a reverse proxy or load balancer, every login will appear to come "
+                    + "from it: list it in trustedProxies for the IP lists, GeoIP, velocity and denial cache to work");
+        }
+
+        sessionVerdictReuses = metrics.counter("session.reusedVerdicts");
+        if (sessionVerdictEnabled) {
+            if (!isPositive(sessionVerdictWindow) || sessionVerdictMaxSize < 1) {
+                throw new ComponentInitializationException(
+                        "sessionVerdictWindow must be positive and sessionVerdictMaxSize at least 1");
+            }
+            sessionVerdicts = new SessionVerdicts(sessionVerdictWindow, sessionVerdictMaxSize, metrics);
+        }
+
+        trustedDeviceLogins = metrics.counter("device.trustedLogins");
+        trustedDeviceCookiesIssued = metrics.counter("device.cookiesIssued");
+        if (trustedDeviceEnabled) {
+            final byte[] key;
+            try {
+                key = trustedDeviceKey != null ? Base64.getDecoder().decode(trustedDeviceKey.trim()) : new byte[0];
+            } catch (IllegalArgumentException e) {
+                throw new ComponentInitializationException("trustedDeviceKey is not valid base64", e);
+            }
+            if (key.length < 32) {
+                throw new ComponentInitializationException("trustedDeviceKey must be at least 32 bytes");
+            }
+            if (!isPositive(trustedDeviceLifetime) || trustedDeviceCookieName == null
+                    || trustedDeviceCookieName.isBlank() || trustedDeviceMaxScore > failureThreshold
+                    || trustedDeviceIpv4PrefixLength < 0 || trustedDeviceIpv4PrefixLength > 32
+                    || trustedDeviceIpv6PrefixLength < 0 || trustedDeviceIpv6PrefixLength > 128) {
+                throw new ComponentInitializationException("Invalid trusted device settings: need a positive "
+                        + "lifetime, a cookie name, trustedDeviceMaxScore <= failureThreshold and valid prefixes");
+            }
+            trustedDevice = new TrustedDeviceCookie(key, trustedDeviceLifetime.toSeconds(),
+                    trustedDeviceIpv4PrefixLength, trustedDeviceIpv6PrefixLength);
+        }
+
+        if (concurrencyLimitEnabled) {
+            if (concurrencyLimitMin < 1 || concurrencyLimitMax < concurrencyLimitMin
+                    || concurrencyLimitRttTolerance < 1 || concurrencyLimitBackoffRatio <= 0
+                    || concurrencyLimitBackoffRatio >= 1) {
+                throw new ComponentInitializationException("Invalid concurrency limit settings: need "
+                        + "1 <= min <= max, rttTolerance >= 1 and 0 < backoffRatio < 1");
+            }
+            concurrencyLimiter = new ConcurrencyLimiter(concurrencyLimitInitial, concurrencyLimitMin,
+                    concurrencyLimitMax, concurrencyLimitRttTolerance, concurrencyLimitBackoffRatio, metrics);
+        }
+
+        URI batchUri = null;
+        if (batchingEnabled) {
+            if (batchEndpoint == null || batchEndpoint.isBlank() || batchMaxSize < 1 || batchLinger == null
+                    || batchLinger.isNegative()) {
+                throw new ComponentInitializationException(
+                        "Batching requires batchEndpoint, batchMaxSize >= 1 and a non-negative batchLinger");
+            }
+            try {
+                batchUri = URI.create(batchEndpoint.trim());
+            } catch (IllegalArgumentException e) {
+                throw new ComponentInitializationException("Invalid batchEndpoint: " + batchEndpoint, e);
+            }
+        }
+
+        if (wireFormat == null) {
+            throw new ComponentInitializationException("wireFormat must be set");
+        }
+        codec = ScoringCodec.of(wireFormat);
+
+        transport = new ScorerTransports(connectTimeout, maxConnectionsPerEndpoint);
+        if (batchUri != null) {
+            batcher = new BatchDispatcher(transport, codec, batchUri, batchMaxSize, batchLinger,
+                    batchDeadline != null ? batchDeadline : overallTimeout, this::effectiveReadTimeout,
+                    this::recordLatency, metrics);
+        }
+        if (tieredScoringBand < 0 || tieredScoringBand >= 1) {
+            throw new ComponentInitializationException("tieredScoringBand must be in [0, 1)");
+        }
+        if (tieredScoringBand > 0 && (localModel == null || localModel.isBlank())) {
+            throw new ComponentInitializationException("tieredScoringBand requires localModel");
+        }
+        if (localModel != null && !localModel.isBlank()) {
+            final LocalModelScorer model;
+            try {
+                model = LocalModelScorer.load(Path.of(localModel.trim()));
+            } catch (IOException e) {
+                throw new ComponentInitializationException("Could not load localModel " + localModel, e);
+            }
+            log.info("Scoring with local model {}, inputs {}", model.modelVersion(),
+                    String.join(", ", model.inputNames()));
+            if (tieredScoringBand > 0) {
+                if (endpointPool == null) {
+                    throw new ComponentInitializationException("tieredScoringBand requires rbaEndpoint");
+                }
+                final ScorerFailurePolicy limitPolicy = concurrencyLimitPolicy != null
+                        ? concurrencyLimitPolicy : failurePolicy;
+                scorer = new TieredScorer(model, this::score, failureThreshold, tieredScoringBand,
+                        e -> (e instanceof ConcurrencyLimitExceededException ? limitPolicy : failurePolicy)
+                                == ScorerFailurePolicy.FALLBACK, metrics);
+                scorerName = "RBA service at " + endpointPool.endpoints() + " behind " + model;
+            } else {
+                if (endpointPool != null) {
+                    log.warn("localModel is set, so {} will not be called", endpointPool.endpoints());
+                }
+                scorer = model;
+                scorerName = model.toString();
+            }
+        } else if (endpointPool != null) {
+            scorer = this::score;
+            scorerName = "RBA service at " + endpointPool.endpoints();
+        }
+        if (!(scorer instanceof TieredScorer) && (failurePolicy == ScorerFailurePolicy.FALLBACK
+                || concurrencyLimitPolicy == ScorerFailurePolicy.FALLBACK)) {
+            throw new ComponentInitializationException("The FALLBACK policy requires tiered scoring");
+        }
+        if (shadowEndpoint != null && !shadowEndpoint.isBlank()) {
+            if (shadowSampleRate <= 0 || shadowSampleRate > 1 || shadowThreads < 1 || shadowQueueSize < 1) {
+                throw new ComponentInitializationException(
+                        "shadowSampleRate must be in (0, 1] and shadowThreads and shadowQueueSize at least 1");
+            }
+            final URI shadowUri;
+            try {
+                shadowUri = URI.create(shadowEndpoint.trim());
+            } catch (IllegalArgumentException e) {
+                throw new ComponentInitializationException("Invalid shadowEndpoint: " + shadowEndpoint, e);
+            }
+            shadow = new ShadowScorer(transport, codec, shadowUri, readTimeout, shadowSampleRate, failureThreshold,
+                    shadowThreads, shadowQueueSize, metrics);
+        }
+        metrics.gauge("scorer.latency.p99Ms", () -> latencyHistogram.percentileNanos(0.99) / 1_000_000.0);
+        metrics.gauge("scorer.readTimeoutMs", () -> effectiveReadTimeout().toMillis());
+    }
+
+    @Override
+    protected void doDestroy() {
+        if (ipAccessList != null) {
+            ipAccessList.close();
+            ipAccessList = null;
+        }
+        if (ipRanges != null) {
+            ipRanges.close();
+            ipRanges = null;
+        }
+        if (geoIp != null) {
+            geoIp.close();
+            geoIp = null;
+        }
+        if (sharedScores != null) {
+            sharedScores.close();
+            sharedScores = null;
+        }
+        if (scoreCache != null) {
+            scoreCache.close();
+            scoreCache = null;
+        }
+        if (batcher != null) {
+            batcher.close();
+            batcher = null;
+        }
+        if (shadow != null) {
+            shadow.close();
+            shadow = null;
+        }
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+        if (transport != null) {
+            transport.close();
+            transport = null;
+        }
+        if (metrics != null) {
+            metrics.unregisterAll();
+        }
+        super.doDestroy();
     }
 
     @Override
@@ -82,7 +1520,7 @@ public class RiskBasedAuthAction extends AbstractProfileAction {
             emit(prc, EventIds.RUNTIME_EXCEPTION);
             return;
         }
-        if (rbaEndpoint == null || rbaEndpoint.isBlank()) {
+        if (scorer == null) {
             log.error("rbaEndpoint is not configured.");
             emit(prc, EventIds.RUNTIME_EXCEPTION);
             return;
@@ -99,79 +1537,414 @@ public class RiskBasedAuthAction extends AbstractProfileAction {
         final Set<UsernamePrincipal> ups = result.getSubject().getPrincipals(UsernamePrincipal.class);
         final String username = ups.isEmpty() ? null : ups.iterator().next().getName();
 
-        final String ipAddress = extractClientIp(servletRequest);
+        final String remoteAddr = servletRequest.getRemoteAddr();
+        final String forwardedFor = servletRequest.getHeader("X-Forwarded-For");
+        if (forwardedFor != null && (proxies == null || !proxies.contains(remoteAddr))) {
+            warnUntrustedForward(remoteAddr);
+        }
+        final String ipAddress = proxies != null ? proxies.clientAddress(remoteAddr, forwardedFor) : remoteAddr;
         final String userAgent = sanitizeUserAgent(servletRequest.getHeader("User-Agent"));
 
-        log.info("Starting RBA check for user='{}', ip='{}'", username, ipAddress);
+        final IpAccessList.Action listed = ipAccessList != null ? ipAccessList.lookup(ipAddress) : null;
+        if (listed == IpAccessList.Action.ALLOW) {
+            ipListAllowed.inc();
+            log.info("Client ip='{}' is on the RBA allow list, skipping scoring for user='{}'", ipAddress, username);
+            emit(prc, EventIds.PROCEED_EVENT_ID);
+            return;
+        }
+        if (listed == IpAccessList.Action.DENY) {
+            ipListDenied.inc();
+            log.warn("Login denied by RBA: user='{}', ip='{}' is on the deny list", username, ipAddress);
+            emit(prc, EventIds.ACCESS_DENIED);
+            return;
+        }
 
-        // Build payload
-        final String payload = String.format(
-                "{\"username\":\"%s\",\"ipAddress\":\"%s\",\"userAgent\":\"%s\"}",
-                username, ipAddress, userAgent
-        );
+        // Counted before the denial cache, so rejected retries still add to the velocity.
+        if (velocity != null) velocity.record(username, ipAddress);
 
-        HttpURLConnection conn = null;
-        try {
-            final URL url = new URL(rbaEndpoint);
-            conn = (HttpURLConnection) url.openConnection();
-            conn.setRequestMethod("POST");
-            conn.setRequestProperty("Content-Type", "application/json; charset=utf-8");
-            conn.setRequestProperty("Accept", "application/json");
-            conn.setDoOutput(true);
-            conn.setConnectTimeout(CONNECT_TIMEOUT_MS);
-            conn.setReadTimeout(READ_TIMEOUT_MS);
+        if (denialCache != null && denialCache.isBlocked(ipAddress, username)) {
+            fastRejects.inc();
+            log.warn("Login denied by RBA: user='{}', ip='{}' was denied recently", username, ipAddress);
+            emit(prc, EventIds.ACCESS_DENIED);
+            return;
+        }
 
-            log.debug("Sending payload to RBA service: {}", payload);
-            try (OutputStream os = conn.getOutputStream()) {
-                os.write(payload.getBytes(StandardCharsets.UTF_8));
+        if (sessionVerdicts != null && result.isPreviousResult()) {
+            final Boolean verdict = sessionVerdicts.lookup(result, username, ipAddress, userAgent);
+            if (verdict != null) {
+                sessionVerdictReuses.inc();
+                log.info("Reusing RBA verdict from earlier in the session for user='{}', ip='{}'",
+                        username, ipAddress);
+                emit(prc, verdict ? EventIds.PROCEED_EVENT_ID : EventIds.ACCESS_DENIED);
+                return;
             }
+        }
 
-            final int status = conn.getResponseCode();
-            final boolean ok = status >= 200 && status < 300;
+        if (trustedDevice != null && isTrustedDevice(servletRequest, username, userAgent, ipAddress)) {
+            trustedDeviceLogins.inc();
+            log.info("Trusted device cookie accepted for user='{}', ip='{}', skipping RBA scoring",
+                    username, ipAddress);
+            recordVerdict(result, username, ipAddress, userAgent, true);
+            emit(prc, EventIds.PROCEED_EVENT_ID);
+            return;
+        }
 
-            final String body = readAll(ok ? conn.getInputStream() : conn.getErrorStream());
-            log.debug("RBA service HTTP {} body: {}", status, body);
+        log.info("Starting RBA check for user='{}', ip='{}'", username, ipAddress);
 
-            if (!ok) {
-                log.error("RBA service returned non-2xx status: {}", status);
-                emit(prc, EventIds.RUNTIME_EXCEPTION);
-                return;
+        ScoringRequest request = new ScoringRequest(username, ipAddress, userAgent);
+        if (ipRanges != null) request = ipRanges.addCategories(request, ipAddress);
+        final GeoRecord geo = geoIp != null ? geoIp.lookup(ipAddress) : null;
+        if (geo != null) request = GeoIpLookup.addFields(request, geo);
+        final boolean travelled = travelHistory != null && username != null && geo != null && geo.hasLocation();
+        final long now = travelled ? Instant.now().getEpochSecond() : 0;
+        if (travelled) {
+            final long previous = travelHistory.previous(username);
+            if (previous != 0) {
+                final double distance = TravelHistory.distanceKm(previous, geo.latitude(), geo.longitude());
+                final double speed = TravelHistory.speedKmh(previous, geo.latitude(), geo.longitude(), now);
+                if (impossibleTravelDenySpeed > 0 && speed > impossibleTravelDenySpeed
+                        && distance >= impossibleTravelMinDistance) {
+                    impossibleTravelDenials.inc();
+                    log.warn("Login denied by RBA: user='{}' from ip='{}' implies {} km at {} km/h", username,
+                            ipAddress, Math.round(distance), Math.round(speed));
+                    emit(prc, EventIds.ACCESS_DENIED);
+                    return;
+                }
+                // The speed changes with every second since the last login, so the score is for this login only.
+                request = request.toBuilder()
+                        .field("travelDistanceKm", Math.round(distance))
+                        .field("travelSpeedKmh", Math.round(speed))
+                        .perLogin()
+                        .build();
             }
+        }
+        if (velocity != null) request = velocity.addFeatures(request, username, ipAddress);
 
-            // Parse JSON and extract threatScore
-            final JsonObject json = GSON.fromJson(body, JsonObject.class);
-            if (json == null || !json.has("threatScore")) {
-                log.error("RBA response missing required 'threatScore'.");
-                emit(prc, EventIds.RUNTIME_EXCEPTION);
-                return;
+        final ScoreResult score;
+        try {
+            score = scorer.score(request);
+        } catch (ConcurrencyLimitExceededException e) {
+            log.warn("{}, not waiting for the scorer", e.getMessage());
+            applyFailurePolicy(prc, concurrencyLimitPolicy != null ? concurrencyLimitPolicy : failurePolicy);
+            return;
+        } catch (CircuitOpenException e) {
+            shortCircuitedCalls.inc();
+            log.debug("{}, not calling the scorer", e.getMessage());
+            applyFailurePolicy(prc, failurePolicy);
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.error("Interrupted while calling {}", scorerName);
+            emit(prc, EventIds.RUNTIME_EXCEPTION);
+            return;
+        } catch (Exception e) {
+            scorerFailures.inc();
+            log.error("Error calling {}", scorerName, e);
+            applyFailurePolicy(prc, failurePolicy);
+            return;
+        }
+
+        if (shadow != null) shadow.submit(request, score);
+
+        final double threatScore = score.threatScore();
+        log.info("RBA score={}, idpThreshold={}, modelVersion={}", threatScore, failureThreshold,
+                score.modelVersion());
+
+        if (threatScore < failureThreshold) {
+            if (trustedDevice != null && threatScore < trustedDeviceMaxScore) {
+                issueDeviceCookie(servletRequest, username, userAgent, ipAddress);
             }
+            recordVerdict(result, username, ipAddress, userAgent, true);
+            if (denialCache != null) denialCache.recordSuccess(ipAddress, username);
+            // Only accepted logins move the user, so denied attempts cannot make the real user look like the
+            // impossible traveller.
+            if (travelled) travelHistory.record(username, geo.latitude(), geo.longitude(), now);
+            emit(prc, EventIds.PROCEED_EVENT_ID); // "proceed"
+        } else {
+            log.warn("Login denied by RBA: threatScore {} >= threshold {}", threatScore, failureThreshold);
+            recordVerdict(result, username, ipAddress, userAgent, false);
+            if (denialCache != null) {
+                denialCache.recordDenial(ipAddress, username, isOwnAddress(ipAddress, forwardedFor));
+            }
+            emit(prc, EventIds.ACCESS_DENIED);
+        }
+    }
 
-            final double threatScore = json.get("threatScore").getAsDouble();
-            if (!Double.isFinite(threatScore)) {
-                log.error("RBA 'threatScore' is not a finite number: {}", threatScore);
-                emit(prc, EventIds.RUNTIME_EXCEPTION);
-                return;
+    /**
+     * Remember a verdict reached from a score or a trusted device, not from a failure policy.
+     */
+    private void recordVerdict(AuthenticationResult result, String username, String ipAddress, String userAgent,
+                               boolean proceed) {
+        if (sessionVerdicts != null) sessionVerdicts.record(result, username, ipAddress, userAgent, proceed);
+    }
+
+    private boolean isTrustedDevice(HttpServletRequest req, String username, String userAgent, String ipAddress) {
+        final Cookie[] cookies = req.getCookies();
+        if (cookies == null || username == null) return false;
+        final long now = System.currentTimeMillis() / 1000;
+        for (Cookie cookie : cookies) {
+            if (trustedDeviceCookieName.equals(cookie.getName())
+                    && trustedDevice.verify(cookie.getValue(), username, userAgent, ipAddress, now)) {
+                return true;
             }
+        }
+        return false;
+    }
 
-            log.info("RBA score={}, idpThreshold={}", threatScore, failureThreshold);
+    private void issueDeviceCookie(HttpServletRequest req, String username, String userAgent, String ipAddress) {
+        final HttpServletResponse response = HttpServletRequestResponseContext.getResponse();
+        if (response == null || username == null) return;
+        final Cookie cookie = new Cookie(trustedDeviceCookieName,
+                trustedDevice.issue(username, userAgent, ipAddress, System.currentTimeMillis() / 1000));
+        final String contextPath = req.getContextPath();
+        cookie.setPath(contextPath == null || contextPath.isEmpty() ? "/" : contextPath);
+        cookie.setMaxAge((int) Math.min(Integer.MAX_VALUE, trustedDeviceLifetime.toSeconds()));
+        cookie.setSecure(true);
+        cookie.setHttpOnly(true);
+        cookie.setAttribute("SameSite", "Lax");
+        response.addCookie(cookie);
+        trustedDeviceCookiesIssued.inc();
+    }
 
-            if (threatScore < failureThreshold) {
-                emit(prc, EventIds.PROCEED_EVENT_ID); // "proceed"
-            } else {
-                log.warn("Login denied by RBA: threatScore {} >= threshold {}", threatScore, failureThreshold);
-                emit(prc, EventIds.ACCESS_DENIED);
+    /**
+     * Serve the score from the node's cache, then the shared tier, when there is a usable one; otherwise ask the
+     * scorer and cache its answer in both. Per-login requests always go to the scorer and are not cached.
+     */
+    private ScoreResult score(ScoringRequest request) throws Exception {
+        if (scoreCache == null || request.isPerLogin()) return scoreWithinLimit(request);
+        final ScoringKey key = request.key();
+        final ScoreResult cached = scoreCache.getIfPresent(key);
+        if (cached != null) {
+            log.debug("Using cached RBA score for {}", request);
+            return cached;
+        }
+        if (sharedScores != null) {
+            final ScoreResult shared = sharedScores.lookup(key);
+            if (shared != null) {
+                log.debug("Using shared RBA score for {}", request);
+                scoreCache.put(key, shared);
+                return shared;
             }
+        }
+        final ScoreResult score = scoreWithinLimit(request);
+        scoreCache.put(key, score);
+        if (sharedScores != null) sharedScores.publish(key, score);
+        return score;
+    }
 
-        } catch (JsonSyntaxException jse) {
-            log.error("Invalid JSON from RBA service.", jse);
-            emit(prc, EventIds.RUNTIME_EXCEPTION);
+    /**
+     * Background refresh of a cached score; the new score is shared with the other nodes too. Refreshes count
+     * against the concurrency limit like logins, and are skipped (keeping the cached score until it expires) while
+     * the limit is reached or the breaker is not closed, so they never take the scorer's capacity or half-open
+     * probes from logins.
+     *
+     * @return the new score, or null if the refresh was skipped
+     */
+    private ScoreResult refreshScore(ScoringRequest request) throws Exception {
+        if (circuitBreaker != null && circuitBreaker.state() != CircuitBreaker.State.CLOSED) return null;
+        final ScoreResult score;
+        try {
+            score = scoreWithinLimit(request);
+        } catch (ConcurrencyLimitExceededException | CircuitOpenException e) {
+            return null;
+        }
+        if (sharedScores != null) sharedScores.publish(request.key(), score);
+        return score;
+    }
+
+    /**
+     * Score under the concurrency limit, which counts every login waiting on the scorer, including those
+     * sharing a coalesced call.
+     */
+    private ScoreResult scoreWithinLimit(ScoringRequest request) throws Exception {
+        if (concurrencyLimiter == null) return scoreCoalesced(request);
+        if (!concurrencyLimiter.tryAcquire()) throw new ConcurrencyLimitExceededException();
+
+        final long start = System.nanoTime();
+        try {
+            final ScoreResult score = scoreCoalesced(request);
+            concurrencyLimiter.onSuccess(System.nanoTime() - start);
+            return score;
+        } catch (CircuitOpenException | InterruptedException e) {
+            concurrencyLimiter.onIgnored();
+            throw e;
         } catch (Exception e) {
-            log.error("Error calling RBA service at {}", rbaEndpoint, e);
-            emit(prc, EventIds.RUNTIME_EXCEPTION);
+            concurrencyLimiter.onDropped();
+            throw e;
+        }
+    }
+
+    private ScoreResult scoreCoalesced(ScoringRequest request) throws Exception {
+        if (coalescer == null || request.isPerLogin()) return scoreRemotely(request);
+        final SingleFlight.Result<ScoreResult> shared =
+                coalescer.execute(request.key(), () -> scoreRemotely(request), coalescingMaxWait.toNanos());
+        if (shared.shared()) coalescedCalls.inc();
+        return shared.value();
+    }
+
+    /**
+     * Score through the circuit breaker, which sees one outcome per remote call however many logins share it.
+     */
+    private ScoreResult scoreRemotely(ScoringRequest request) throws Exception {
+        if (circuitBreaker != null && !circuitBreaker.tryAcquire()) {
+            throw new CircuitOpenException(circuitBreaker.state());
+        }
+        final long start = System.nanoTime();
+        try {
+            final ScoreResult score = batcher != null ? batcher.score(request) : fetchThreatScore(request);
+            if (circuitBreaker != null) circuitBreaker.onSuccess(System.nanoTime() - start);
+            return score;
+        } catch (Exception e) {
+            if (circuitBreaker != null) {
+                if (isLocalRejection(e)) {
+                    circuitBreaker.onIgnored();
+                } else {
+                    circuitBreaker.onFailure(System.nanoTime() - start);
+                }
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * POST the request to the scorer, hedging across replicas when enabled, and return its "threatScore".
+     * <p>
+     * The request is encoded into this thread's reusable buffer, which the transports read in place.
+     *
+     * @throws IOException on transport errors, non-2xx responses, and unusable response bodies
+     */
+    private ScoreResult fetchThreatScore(ScoringRequest request) throws IOException, InterruptedException {
+        log.debug("Sending {} request to RBA service: {}", codec, request);
+        final PayloadBuffer buffer = PayloadBuffer.forCurrentThread();
+        codec.encode(request, buffer);
+        final byte[] body = buffer.array();
+        final int length = buffer.length();
+
+        final ScorerEndpoint primary = endpointPool.choose(null);
+        final AtomicBoolean hedged = new AtomicBoolean();
+        final CompletableFuture<ScoreResult> call;
+        if (hedger != null) {
+            call = hedger.execute(() -> attempt(primary, body, length, true), () -> {
+                hedged.set(true);
+                return attempt(endpointPool.choose(primary), body, length, false);
+            });
+        } else {
+            call = attempt(primary, body, length, true);
+        }
+        try {
+            return await(call);
         } finally {
-            if (conn != null) {
-                conn.disconnect();
+            if (hedged.get() || call.isCancelled()) PayloadBuffer.detachFromCurrentThread();
+        }
+    }
+
+    /**
+     * A single request to one endpoint. Cancelling the returned future aborts the exchange.
+     */
+    private CompletableFuture<ScoreResult> attempt(ScorerEndpoint endpoint, byte[] body, int length,
+                                              boolean waitForPermit) {
+        final long start = System.nanoTime();
+        endpoint.onStart();
+        final CompletableFuture<ScorerResponse> exchange =
+                transport.postAsync(endpoint.uri(), body, length, codec, effectiveReadTimeout(), waitForPermit);
+        final CompletableFuture<ScoreResult> score = exchange.thenApply(response -> {
+            try (response) {
+                return readThreatScore(response);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        });
+        score.whenComplete((v, e) -> {
+            final long elapsed = System.nanoTime() - start;
+            if (score.isCancelled()) {
+                exchange.cancel(true);
+                endpoint.onCancel();
+                return;
+            }
+            if (e == null) {
+                endpoint.onSuccess(elapsed);
+            } else if (isLocalRejection(unwrap(e))) {
+                endpointPool.onLocalRejection(endpoint);
+            } else {
+                endpointPool.onFailure(endpoint);
             }
+            if (e == null || unwrap(e) instanceof HttpTimeoutException) {
+                recordLatency(elapsed);
+            }
+        });
+        return score;
+    }
+
+    private ScoreResult await(CompletableFuture<ScoreResult> call) throws IOException, InterruptedException {
+        try {
+            return call.get(overallTimeout.toNanos(), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            call.cancel(true);
+            throw new HttpTimeoutException("RBA service did not answer within " + overallTimeout.toMillis() + " ms");
+        } catch (InterruptedException e) {
+            call.cancel(true);
+            throw e;
+        } catch (ExecutionException e) {
+            final Throwable cause = unwrap(e);
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RejectedExecutionException) throw (RejectedExecutionException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * @return whether the call failed on this node's own limits before anything was sent to the scorer; such
+     * failures count against neither the replica nor the circuit breaker
+     */
+    private static boolean isLocalRejection(Throwable t) {
+        return t instanceof ConnectionLimitExceededException || t instanceof ConcurrencyLimitExceededException
+                || t instanceof BatchQueueFullException || t instanceof RejectedExecutionException
+                || t instanceof InterruptedException;
+    }
+
+    private static Throwable unwrap(Throwable t) {
+        while ((t instanceof CompletionException || t instanceof ExecutionException) && t.getCause() != null) {
+            t = t.getCause();
+        }
+        return t;
+    }
+
+    private ScoreResult readThreatScore(ScorerResponse response) throws IOException {
+        final int status = response.status();
+        if (!response.isOk()) {
+            throw new IOException("RBA service returned non-2xx status: " + status);
+        }
+        final ScoreResult score = ScoringCodec.forResponse(response.contentType(), codec).decode(response.body());
+        log.debug("RBA service HTTP {} result: {}", status, score);
+        return score;
+    }
+
+    private Duration effectiveReadTimeout() {
+        return adaptiveTimeout != null ? adaptiveTimeout.current() : readTimeout;
+    }
+
+    private void recordLatency(long nanos) {
+        if (adaptiveTimeout != null) {
+            adaptiveTimeout.record(nanos);
+        } else {
+            latencyHistogram.record(nanos);
+        }
+    }
+
+    /**
+     * Decide the login according to the given policy when no score is available.
+     */
+    private void applyFailurePolicy(ProfileRequestContext prc, ScorerFailurePolicy policy) {
+        switch (policy) {
+            case PROCEED -> {
+                log.warn("RBA score unavailable, allowing login per policy PROCEED");
+                emit(prc, EventIds.PROCEED_EVENT_ID);
+            }
+            case DENY -> {
+                log.warn("RBA score unavailable, denying login per policy DENY");
+                emit(prc, EventIds.ACCESS_DENIED);
+            }
+            default -> emit(prc, EventIds.RUNTIME_EXCEPTION);
         }
     }
 
@@ -185,26 +1958,32 @@ public class RiskBasedAuthAction extends AbstractProfileAction {
         log.info("RBA: emitting event='{}'", (readback != null ? readback.getEvent() : "<missing EventContext>"));
     }
 
-    private static String readAll(InputStream is) throws Exception {
-        if (is == null) return "";
-        try (BufferedReader br = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8))) {
-            final StringBuilder sb = new StringBuilder();
-            String line;
-            while ((line = br.readLine()) != null) sb.append(line);
-            return sb.toString();
-        }
+    private static boolean isPositive(Duration d) {
+        return d != null && !d.isNegative() && !d.isZero();
+    }
+
+    /**
+     * @return whether the client IP is the client's own, so denials may block everyone from it. A client IP that is
+     * still a trusted proxy stands for everyone behind it, and so does the peer of a forwarded request when no
+     * proxies are configured: striking either would lock every user out.
+     */
+    private boolean isOwnAddress(String ipAddress, String forwardedFor) {
+        if (proxies == null) return forwardedFor == null;
+        return !proxies.contains(ipAddress);
     }
 
     /**
-     * Pull client IP, preferring X-Forwarded-For safely (first non-empty token).
+     * X-Forwarded-For came from a peer that is not a trusted proxy, so it was ignored. Either a client is forging it
+     * or trustedProxies is missing a proxy; warn at most once a minute either way.
      */
-    private static String extractClientIp(HttpServletRequest req) {
-        final String xff = req.getHeader("X-Forwarded-For");
-        if (xff != null && !xff.isBlank()) {
-            final String first = xff.split(",")[0].trim();
-            if (!first.isEmpty()) return first;
+    private void warnUntrustedForward(String remoteAddr) {
+        untrustedForwards.inc();
+        final long now = System.nanoTime();
+        final long next = nextUntrustedForwardWarning.get();
+        if (now - next >= 0 && nextUntrustedForwardWarning.compareAndSet(next, now + TimeUnit.MINUTES.toNanos(1))) {
+            log.warn("Ignoring X-Forwarded-For from {}, which is not in trustedProxies; if it is your proxy, add it "
+                    + "(further occurrences are counted in clientIp.untrustedForwards)", remoteAddr);
         }
-        return req.getRemoteAddr();
     }
 
     /**
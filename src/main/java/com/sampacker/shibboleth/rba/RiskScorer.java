@@ -0,0 +1,25 @@
+/*
+ * Copyright (c) 2025 Sam Packer
+ *
+ * This software is licensed under the PolyForm Noncommercial License 1.0.0.
+ *
+ * You may use, copy, modify, and distribute this software for noncommercial purposes only.
+ * Commercial use of this software, in whole or in part, is prohibited.
+ *
+ * See the full license text at:
+ * https://polyformproject.org/licenses/noncommercial/1.0.0/
+ * or in the LICENSE.md file included with this source code.
+ */
+
+package com.sampacker.shibboleth.rba;
+
+/**
+ * Produces a threat score for a login, comparable with {@code failureThreshold}.
+ */
+@FunctionalInterface
+interface RiskScorer {
+    /**
+     * @throws Exception if no score could be produced; the action applies its failure policy
+     */
+    ScoreResult score(ScoringRequest request) throws Exception;
+}
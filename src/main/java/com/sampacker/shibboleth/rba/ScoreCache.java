@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2025 Sam Packer
+ *
+ * This software is licensed under the PolyForm Noncommercial License 1.0.0.
+ *
+ * You may use, copy, modify, and distribute this software for noncommercial purposes only.
+ * Commercial use of this software, in whole or in part, is prohibited.
+ *
+ * See the full license text at:
+ * https://polyformproject.org/licenses/noncommercial/1.0.0/
+ * or in the LICENSE.md file included with this source code.
+ */
+
+package com.sampacker.shibboleth.rba;
+
+import com.codahale.metrics.Counter;
+import com.github.benmanes.caffeine.cache.CacheLoader;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+
+import java.time.Duration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recent scores, so a user logging in again from the same address and browser is not scored a second time.
+ * <p>
+ * Eviction is Caffeine's W-TinyLFU, which keeps frequently seen logins over one-off ones. Each entry lives for the
+ * TTL the scorer sent with it, capped at {@code maxTtl}, or {@code ttl} if it sent none. An entry read again
+ * after {@code refreshAfter} is re-scored in the background while the cached score is still served, so users who
+ * log in often rarely wait for the scorer. A refresh the loader declines keeps the cached score until its original
+ * expiry. Entries scored by a model other than the latest one seen are dropped on read.
+ */
+final class ScoreCache implements AutoCloseable {
+
+    /**
+     * Scores a request on behalf of a background refresh.
+     */
+    @FunctionalInterface
+    interface Loader {
+        /**
+         * @return the new score, or null to skip this refresh and keep serving the cached one
+         */
+        ScoreResult load(ScoringRequest request) throws Exception;
+    }
+
+    /**
+     * A cached score with its absolute expiry, so returning the same entry from a skipped refresh does not extend
+     * its life.
+     */
+    private static final class Entry {
+        final ScoreResult result;
+        final long expiresAt;
+
+        Entry(ScoreResult result, long expiresAt) {
+            this.result = result;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final LoadingCache<ScoringKey, Entry> cache;
+    private final ThreadPoolExecutor refreshExecutor;
+    private final long defaultNanos;
+    private final long maxNanos;
+    private final Counter staleModelEvictions;
+    private final Counter skippedRefreshes;
+    private volatile String latestModelVersion;
+
+    ScoreCache(long maxSize, Duration ttl, Duration maxTtl, Duration refreshAfter, Loader loader,
+               RbaMetrics metrics) {
+        // Refreshes block on the scorer; keep them off the common pool and drop them rather than queue without
+        // bound when the scorer is slow (Caffeine keeps serving the old score).
+        this.refreshExecutor = new ThreadPoolExecutor(2, 2, 30, TimeUnit.SECONDS, new ArrayBlockingQueue<>(256),
+                new DaemonThreadFactory("rba-cache-refresh"), new ThreadPoolExecutor.DiscardPolicy());
+        this.refreshExecutor.allowCoreThreadTimeOut(true);
+
+        this.defaultNanos = ttl.toNanos();
+        this.maxNanos = maxTtl.toNanos();
+        this.skippedRefreshes = metrics.counter("cache.skippedRefreshes");
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfter(new Expiry<ScoringKey, Entry>() {
+                    @Override
+                    public long expireAfterCreate(ScoringKey key, Entry value, long currentTime) {
+                        return value.expiresAt - currentTime;
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(ScoringKey key, Entry value, long currentTime,
+                                                  long currentDuration) {
+                        return value.expiresAt - currentTime;
+                    }
+
+                    @Override
+                    public long expireAfterRead(ScoringKey key, Entry value, long currentTime,
+                                                long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                .refreshAfterWrite(refreshAfter)
+                .executor(refreshExecutor)
+                .recordStats()
+                .build(new CacheLoader<ScoringKey, Entry>() {
+                    @Override
+                    public Entry load(ScoringKey key) throws Exception {
+                        return entry(loader.load(ScoringRequest.of(key)));
+                    }
+
+                    @Override
+                    public Entry reload(ScoringKey key, Entry oldValue) throws Exception {
+                        final ScoreResult fresh = loader.load(ScoringRequest.of(key));
+                        if (fresh != null) return entry(fresh);
+                        // Caffeine keeps the entry when handed back the same instance
+                        skippedRefreshes.inc();
+                        return oldValue;
+                    }
+                });
+
+        this.staleModelEvictions = metrics.counter("cache.staleModelEvictions");
+        metrics.gauge("cache.size", cache::estimatedSize);
+        metrics.gauge("cache.hits", () -> cache.stats().hitCount());
+        metrics.gauge("cache.misses", () -> cache.stats().missCount());
+        metrics.gauge("cache.hitRate", () -> cache.stats().hitRate());
+        metrics.gauge("cache.evictions", () -> cache.stats().evictionCount());
+        metrics.gauge("cache.refreshes", () -> cache.stats().loadSuccessCount());
+        metrics.gauge("cache.refreshFailures", () -> cache.stats().loadFailureCount());
+    }
+
+    /**
+     * @return the cached score, or null if there is none or it came from an older model
+     */
+    ScoreResult getIfPresent(ScoringKey key) {
+        final Entry entry = cache.getIfPresent(key);
+        if (entry == null) return null;
+        final ScoreResult cached = entry.result;
+        final String latest = latestModelVersion;
+        if (cached.modelVersion() != null && latest != null && !latest.equals(cached.modelVersion())) {
+            cache.invalidate(key);
+            staleModelEvictions.inc();
+            return null;
+        }
+        return cached;
+    }
+
+    void put(ScoringKey key, ScoreResult result) {
+        cache.put(key, entry(result));
+    }
+
+    private Entry entry(ScoreResult result) {
+        if (result.modelVersion() != null) latestModelVersion = result.modelVersion();
+        final long ttl = result.ttl() != null ? Math.min(result.ttl().toNanos(), maxNanos) : defaultNanos;
+        return new Entry(result, System.nanoTime() + ttl);
+    }
+
+    @Override
+    public void close() {
+        refreshExecutor.shutdownNow();
+        cache.invalidateAll();
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2025 Sam Packer
+ *
+ * This software is licensed under the PolyForm Noncommercial License 1.0.0.
+ *
+ * You may use, copy, modify, and distribute this software for noncommercial purposes only.
+ * Commercial use of this software, in whole or in part, is prohibited.
+ *
+ * See the full license text at:
+ * https://polyformproject.org/licenses/noncommercial/1.0.0/
+ * or in the LICENSE.md file included with this source code.
+ */
+
+package com.sampacker.shibboleth.rba;
+
+import java.time.Duration;
+
+/**
+ * What the scorer said about one login: the score, and optionally how long it may be reused and which model
+ * produced it.
+ *
+ * @param ttl          how long the score may be cached, or null if the scorer did not say
+ * @param modelVersion the scorer's model version, or null if the scorer did not say
+ */
+record ScoreResult(double threatScore, Duration ttl, String modelVersion) {
+
+    /**
+     * Longest model version kept; anything longer is ignored rather than logged or cached.
+     */
+    static final int MAX_MODEL_VERSION_LENGTH = 128;
+
+    /**
+     * The "ttl" response field, in seconds, or null if it is not a usable duration.
+     */
+    static Duration ttlFromSeconds(double seconds) {
+        if (!Double.isFinite(seconds) || seconds < 0 || seconds > Integer.MAX_VALUE) return null;
+        return Duration.ofNanos((long) (seconds * 1_000_000_000L));
+    }
+}
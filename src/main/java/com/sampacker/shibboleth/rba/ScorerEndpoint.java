@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2025 Sam Packer
+ *
+ * This software is licensed under the PolyForm Noncommercial License 1.0.0.
+ *
+ * You may use, copy, modify, and distribute this software for noncommercial purposes only.
+ * Commercial use of this software, in whole or in part, is prohibited.
+ *
+ * See the full license text at:
+ * https://polyformproject.org/licenses/noncommercial/1.0.0/
+ * or in the LICENSE.md file included with this source code.
+ */
+
+package com.sampacker.shibboleth.rba;
+
+import java.net.URI;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A scorer replica together with the load and health state the balancer keeps for it.
+ */
+final class ScorerEndpoint {
+    private static final double EWMA_ALPHA = 0.2;
+
+    private final URI uri;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private volatile double ewmaNanos;
+    private volatile long ejectedUntil;
+    private volatile boolean ejected;
+
+    ScorerEndpoint(URI uri) {
+        this.uri = uri;
+    }
+
+    URI uri() {
+        return uri;
+    }
+
+    int inFlight() {
+        return inFlight.get();
+    }
+
+    double ewmaNanos() {
+        return ewmaNanos;
+    }
+
+    boolean isEjected(long now) {
+        if (!ejected) return false;
+        if (now - ejectedUntil < 0) return true;
+        // Ejection expired: let traffic back in and give it a clean slate.
+        ejected = false;
+        consecutiveFailures.set(0);
+        return false;
+    }
+
+    void onStart() {
+        inFlight.incrementAndGet();
+    }
+
+    /**
+     * Attempt was cancelled, e.g. because a hedge won; says nothing about the endpoint's health.
+     */
+    void onCancel() {
+        inFlight.decrementAndGet();
+    }
+
+    void onSuccess(long nanos) {
+        inFlight.decrementAndGet();
+        consecutiveFailures.set(0);
+        // Lost updates under contention only make the average slightly less smooth.
+        final double current = ewmaNanos;
+        ewmaNanos = current == 0 ? nanos : current + EWMA_ALPHA * (nanos - current);
+    }
+
+    /**
+     * @return true if this failure caused the endpoint to be ejected
+     */
+    boolean onFailure(int ejectAfter, long ejectionNanos) {
+        inFlight.decrementAndGet();
+        if (consecutiveFailures.incrementAndGet() < ejectAfter || ejected) return false;
+        ejectedUntil = System.nanoTime() + ejectionNanos;
+        ejected = true;
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return uri.toString();
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2025 Sam Packer
+ *
+ * This software is licensed under the PolyForm Noncommercial License 1.0.0.
+ *
+ * You may use, copy, modify, and distribute this software for noncommercial purposes only.
+ * Commercial use of this software, in whole or in part, is prohibited.
+ *
+ * See the full license text at:
+ * https://polyformproject.org/licenses/noncommercial/1.0.0/
+ * or in the LICENSE.md file included with this source code.
+ */
+
+package com.sampacker.shibboleth.rba;
+
+import com.codahale.metrics.Counter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Client-side balancer over scorer replicas using power-of-two-choices: pick two healthy endpoints at random and
+ * send to the less loaded one. Endpoints that fail {@code ejectAfter} times in a row are ejected for
+ * {@code ejectionDuration}; if every endpoint is ejected, they are all considered again rather than failing.
+ */
+final class ScorerEndpointPool {
+    private final Logger log = LoggerFactory.getLogger(ScorerEndpointPool.class);
+
+    private final List<ScorerEndpoint> endpoints;
+    private final LoadBalancingStrategy strategy;
+    private final int ejectAfter;
+    private final long ejectionNanos;
+    private final Counter ejections;
+    private final Counter localRejections;
+
+    ScorerEndpointPool(List<ScorerEndpoint> endpoints, LoadBalancingStrategy strategy, int ejectAfter,
+                       Duration ejectionDuration, RbaMetrics metrics) {
+        this.endpoints = List.copyOf(endpoints);
+        this.strategy = strategy;
+        this.ejectAfter = ejectAfter;
+        this.ejectionNanos = ejectionDuration.toNanos();
+        this.ejections = metrics.counter("endpoint.ejections");
+        this.localRejections = metrics.counter("endpoint.localRejections");
+        metrics.gauge("endpoint.ejected", () -> {
+            final long now = System.nanoTime();
+            return endpoints.stream().filter(e -> e.isEjected(now)).count();
+        });
+    }
+
+    List<ScorerEndpoint> endpoints() {
+        return endpoints;
+    }
+
+    /**
+     * @param exclude an endpoint to avoid (e.g. the one a hedge is racing against), or null
+     */
+    ScorerEndpoint choose(ScorerEndpoint exclude) {
+        final int n = endpoints.size();
+        if (n == 1) return endpoints.get(0);
+
+        final long now = System.nanoTime();
+        ScorerEndpoint a = pick(exclude, now, true);
+        if (a == null) a = pick(exclude, now, false);
+        if (a == null) return endpoints.get(0);
+        ScorerEndpoint b = pick(exclude, now, true);
+        if (b == null || b == a) return a;
+        return cost(a) <= cost(b) ? a : b;
+    }
+
+    /**
+     * The attempt never reached the endpoint because this node was saturated; counted, but not against the
+     * endpoint, so local load cannot eject a healthy replica.
+     */
+    void onLocalRejection(ScorerEndpoint endpoint) {
+        endpoint.onCancel();
+        localRejections.inc();
+    }
+
+    /**
+     * A transport error, timeout or unusable response from the endpoint.
+     */
+    void onFailure(ScorerEndpoint endpoint) {
+        if (endpoint.onFailure(ejectAfter, ejectionNanos)) {
+            ejections.inc();
+            log.warn("Ejecting RBA endpoint {} for {} ms after {} consecutive failures",
+                    endpoint, ejectionNanos / 1_000_000, ejectAfter);
+        }
+    }
+
+    /**
+     * Random endpoint, skipping the excluded one and, if requested, ejected ones. Gives up after a few tries.
+     */
+    private ScorerEndpoint pick(ScorerEndpoint exclude, long now, boolean healthyOnly) {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < endpoints.size() * 2; i++) {
+            final ScorerEndpoint e = endpoints.get(random.nextInt(endpoints.size()));
+            if (e == exclude) continue;
+            if (healthyOnly && e.isEjected(now)) continue;
+            return e;
+        }
+        return null;
+    }
+
+    private double cost(ScorerEndpoint e) {
+        if (strategy == LoadBalancingStrategy.EWMA) {
+            return e.ewmaNanos() * (e.inFlight() + 1);
+        }
+        return e.inFlight();
+    }
+}
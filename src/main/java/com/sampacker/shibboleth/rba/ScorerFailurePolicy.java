@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2025 Sam Packer
+ *
+ * This software is licensed under the PolyForm Noncommercial License 1.0.0.
+ *
+ * You may use, copy, modify, and distribute this software for noncommercial purposes only.
+ * Commercial use of this software, in whole or in part, is prohibited.
+ *
+ * See the full license text at:
+ * https://polyformproject.org/licenses/noncommercial/1.0.0/
+ * or in the LICENSE.md file included with this source code.
+ */
+
+package com.sampacker.shibboleth.rba;
+
+/**
+ * What to do with a login when no usable score is available from the scorer.
+ */
+public enum ScorerFailurePolicy {
+    /**
+     * Fail open: let the login through.
+     */
+    PROCEED,
+
+    /**
+     * Fail closed: treat the login as denied.
+     */
+    DENY,
+
+    /**
+     * Emit a runtime error, as if the scorer call had failed.
+     */
+    ERROR,
+
+    /**
+     * With tiered scoring, use the local model's provisional score when the remote scorer fails.
+     */
+    FALLBACK
+}
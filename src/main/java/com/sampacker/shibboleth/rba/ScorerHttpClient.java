@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2025 Sam Packer
+ *
+ * This software is licensed under the PolyForm Noncommercial License 1.0.0.
+ *
+ * You may use, copy, modify, and distribute this software for noncommercial purposes only.
+ * Commercial use of this software, in whole or in part, is prohibited.
+ *
+ * See the full license text at:
+ * https://polyformproject.org/licenses/noncommercial/1.0.0/
+ * or in the LICENSE.md file included with this source code.
+ */
+
+package com.sampacker.shibboleth.rba;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Long-lived HTTP client for the RBA scorer.
+ * <p>
+ * Connections are kept alive and reused across logins; HTTP/2 is negotiated when the scorer supports it
+ * (ALPN for https, upgrade for plain http) so concurrent logins multiplex over a single connection.
+ * The number of exchanges in flight per endpoint is capped, which on HTTP/1.1 is also the connection cap.
+ */
+final class ScorerHttpClient implements ScorerTransport {
+    private final HttpClient client;
+    private final ExecutorService executor;
+    private final Duration connectTimeout;
+    private final int maxConnectionsPerEndpoint;
+    private final ConcurrentMap<URI, Semaphore> permits = new ConcurrentHashMap<>();
+
+    ScorerHttpClient(Duration connectTimeout, int maxConnectionsPerEndpoint) {
+        this.connectTimeout = connectTimeout;
+        this.maxConnectionsPerEndpoint = maxConnectionsPerEndpoint;
+
+        this.executor = Executors.newCachedThreadPool(new DaemonThreadFactory("rba-http"));
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(connectTimeout)
+                .followRedirects(HttpClient.Redirect.NEVER)
+                .executor(executor)
+                .build();
+    }
+
+    @Override
+    public CompletableFuture<ScorerResponse> postAsync(URI endpoint, byte[] body, int length, ScoringCodec codec,
+                                                       Duration readTimeout, boolean waitForPermit) {
+        final Semaphore permit = permits.computeIfAbsent(endpoint, k -> new Semaphore(maxConnectionsPerEndpoint));
+        final Throwable denied = acquire(permit, waitForPermit ? connectTimeout : Duration.ZERO,
+                maxConnectionsPerEndpoint, endpoint);
+        if (denied != null) return CompletableFuture.failedFuture(denied);
+
+        final CompletableFuture<HttpResponse<InputStream>> exchange;
+        try {
+            final HttpRequest request = HttpRequest.newBuilder(endpoint)
+                    .timeout(readTimeout)
+                    .header("Content-Type", codec.contentType())
+                    .header("Accept", codec.accept())
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(body, 0, length))
+                    .build();
+            exchange = client.sendAsync(request, HttpResponse.BodyHandlers.ofInputStream());
+        } catch (RuntimeException e) {
+            permit.release();
+            return CompletableFuture.failedFuture(e);
+        }
+
+        final CompletableFuture<ScorerResponse> result = new CompletableFuture<>();
+        exchange.whenComplete((r, e) -> {
+            if (e != null) {
+                permit.release();
+                result.completeExceptionally(e instanceof CompletionException && e.getCause() != null
+                        ? e.getCause() : e);
+                return;
+            }
+            // The exchange holds its connection (or HTTP/2 stream) until the body is consumed.
+            final ScorerResponse response = new ScorerResponse(r.statusCode(),
+                    r.headers().firstValue("Content-Type").orElse(null), r.body(), permit::release);
+            if (!result.complete(response)) {
+                // Cancelled while the headers were arriving.
+                closeQuietly(response);
+            }
+        });
+        result.whenComplete((r, e) -> {
+            if (result.isCancelled()) exchange.cancel(true);
+        });
+        return result;
+    }
+
+    /**
+     * Take an endpoint permit, waiting at most {@code wait}.
+     *
+     * @return null on success, otherwise the error to fail the request with
+     */
+    static Throwable acquire(Semaphore permit, Duration wait, int limit, URI endpoint) {
+        try {
+            if (permit.tryAcquire(wait.toNanos(), TimeUnit.NANOSECONDS)) return null;
+            return new ConnectionLimitExceededException(limit, endpoint);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return e;
+        }
+    }
+
+    static void closeQuietly(ScorerResponse response) {
+        try {
+            response.close();
+        } catch (IOException ignored) {
+            // Nothing useful to do; the permit is released regardless.
+        }
+    }
+
+    @Override
+    public void close() {
+        // HttpClient has no close() before Java 21; shutting down its executor releases the pool threads.
+        executor.shutdownNow();
+    }
+}
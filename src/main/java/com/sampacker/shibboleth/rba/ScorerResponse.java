@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2025 Sam Packer
+ *
+ * This software is licensed under the PolyForm Noncommercial License 1.0.0.
+ *
+ * You may use, copy, modify, and distribute this software for noncommercial purposes only.
+ * Commercial use of this software, in whole or in part, is prohibited.
+ *
+ * See the full license text at:
+ * https://polyformproject.org/licenses/noncommercial/1.0.0/
+ * or in the LICENSE.md file included with this source code.
+ */
+
+package com.sampacker.shibboleth.rba;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Status and unread body of a scorer response. Closing it releases the underlying connection.
+ */
+final class ScorerResponse implements Closeable {
+    private final int status;
+    private final String contentType;
+    private final InputStream body;
+    private final Runnable onClose;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    ScorerResponse(int status, String contentType, InputStream body, Runnable onClose) {
+        this.status = status;
+        this.contentType = contentType;
+        this.body = body;
+        this.onClose = onClose;
+    }
+
+    int status() {
+        return status;
+    }
+
+    boolean isOk() {
+        return status >= 200 && status < 300;
+    }
+
+    /**
+     * @return the response Content-Type, or null if the scorer sent none
+     */
+    String contentType() {
+        return contentType;
+    }
+
+    InputStream body() {
+        return body;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed.compareAndSet(false, true)) return;
+        try {
+            if (body != null) body.close();
+        } finally {
+            onClose.run();
+        }
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (c) 2025 Sam Packer
+ *
+ * This software is licensed under the PolyForm Noncommercial License 1.0.0.
+ *
+ * You may use, copy, modify, and distribute this software for noncommercial purposes only.
+ * Commercial use of this software, in whole or in part, is prohibited.
+ *
+ * See the full license text at:
+ * https://polyformproject.org/licenses/noncommercial/1.0.0/
+ * or in the LICENSE.md file included with this source code.
+ */
+
+package com.sampacker.shibboleth.rba;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Carries a scoring request to a scorer endpoint and returns its response.
+ */
+interface ScorerTransport extends AutoCloseable {
+
+    /**
+     * POST the body asynchronously. The returned future completes with the response status and an unread body;
+     * the caller must close the response, which releases the connection. Cancelling the future aborts the
+     * exchange.
+     *
+     * @param body          request bytes; only the first {@code length} are sent, so a reused buffer can be passed
+     * @param codec         supplies the Content-Type and Accept headers
+     * @param waitForPermit whether to wait up to the connect timeout for a free slot on the endpoint, or fail
+     *                      immediately when it is at its limit
+     */
+    CompletableFuture<ScorerResponse> postAsync(URI endpoint, byte[] body, int length, ScoringCodec codec,
+                                                Duration readTimeout, boolean waitForPermit);
+
+    @Override
+    void close();
+}
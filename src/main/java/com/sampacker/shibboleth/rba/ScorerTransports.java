@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2025 Sam Packer
+ *
+ * This software is licensed under the PolyForm Noncommercial License 1.0.0.
+ *
+ * You may use, copy, modify, and distribute this software for noncommercial purposes only.
+ * Commercial use of this software, in whole or in part, is prohibited.
+ *
+ * See the full license text at:
+ * https://polyformproject.org/licenses/noncommercial/1.0.0/
+ * or in the LICENSE.md file included with this source code.
+ */
+
+package com.sampacker.shibboleth.rba;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Routes each request to the transport for its endpoint's scheme: {@code unix:} to the Unix domain socket
+ * transport, everything else to the HTTP client. Each transport is only created once an endpoint needs it.
+ */
+final class ScorerTransports implements ScorerTransport {
+    private final Duration connectTimeout;
+    private final int maxConnectionsPerEndpoint;
+    private ScorerHttpClient http;
+    private UnixSocketScorerTransport unix;
+    private boolean closed;
+
+    ScorerTransports(Duration connectTimeout, int maxConnectionsPerEndpoint) {
+        this.connectTimeout = connectTimeout;
+        this.maxConnectionsPerEndpoint = maxConnectionsPerEndpoint;
+    }
+
+    @Override
+    public CompletableFuture<ScorerResponse> postAsync(URI endpoint, byte[] body, int length, ScoringCodec codec,
+                                                       Duration readTimeout, boolean waitForPermit) {
+        final ScorerTransport transport;
+        try {
+            transport = transportFor(endpoint);
+        } catch (IllegalStateException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return transport.postAsync(endpoint, body, length, codec, readTimeout, waitForPermit);
+    }
+
+    private synchronized ScorerTransport transportFor(URI endpoint) {
+        if (closed) throw new IllegalStateException("RBA scorer transports are closed");
+        if (UnixSocketScorerTransport.supports(endpoint)) {
+            if (unix == null) unix = new UnixSocketScorerTransport(connectTimeout, maxConnectionsPerEndpoint);
+            return unix;
+        }
+        if (http == null) http = new ScorerHttpClient(connectTimeout, maxConnectionsPerEndpoint);
+        return http;
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        if (http != null) http.close();
+        if (unix != null) unix.close();
+    }
+}
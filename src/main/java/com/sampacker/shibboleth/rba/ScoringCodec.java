@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2025 Sam Packer
+ *
+ * This software is licensed under the PolyForm Noncommercial License 1.0.0.
+ *
+ * You may use, copy, modify, and distribute this software for noncommercial purposes only.
+ * Commercial use of this software, in whole or in part, is prohibited.
+ *
+ * See the full license text at:
+ * https://polyformproject.org/licenses/noncommercial/1.0.0/
+ * or in the LICENSE.md file included with this source code.
+ */
+
+package com.sampacker.shibboleth.rba;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Encodes scoring requests for the scorer and decodes its scores.
+ */
+interface ScoringCodec {
+
+    /**
+     * Largest response body either codec will read; larger bodies are rejected part way through.
+     */
+    long MAX_RESPONSE_BYTES = 1024 * 1024;
+
+    /**
+     * Content-Type of encoded requests.
+     */
+    String contentType();
+
+    /**
+     * Accept header to send with requests in this encoding.
+     */
+    String accept();
+
+    void encode(ScoringRequest request, PayloadBuffer out);
+
+    void encodeBatch(List<ScoringRequest> requests, PayloadBuffer out);
+
+    /**
+     * @throws IOException if the body is malformed, too large, or has no finite "threatScore"
+     */
+    ScoreResult decode(InputStream in) throws IOException;
+
+    /**
+     * @throws IOException if the body is malformed or does not hold exactly {@code expected} scores
+     */
+    ScoreResult[] decodeBatch(InputStream in, int expected) throws IOException;
+
+    static ScoringCodec of(WireFormat format) {
+        return format == WireFormat.CBOR ? CborScoringCodec.INSTANCE : JsonScoringCodec.INSTANCE;
+    }
+
+    /**
+     * Codec for a response, chosen by its Content-Type; a missing or unknown type means the request's codec.
+     */
+    static ScoringCodec forResponse(String contentType, ScoringCodec requested) {
+        if (contentType == null) return requested;
+        final String type = contentType.toLowerCase(Locale.ROOT);
+        if (type.startsWith("application/cbor")) return CborScoringCodec.INSTANCE;
+        if (type.startsWith("application/json")) return JsonScoringCodec.INSTANCE;
+        return requested;
+    }
+
+    static double checkScore(double threatScore) throws IOException {
+        if (!Double.isFinite(threatScore)) {
+            throw new IOException("RBA 'threatScore' is not a finite number: " + threatScore);
+        }
+        return threatScore;
+    }
+}
@@ -0,0 +1,23 @@
+/*
+ * Copyright (c) 2025 Sam Packer
+ *
+ * This software is licensed under the PolyForm Noncommercial License 1.0.0.
+ *
+ * You may use, copy, modify, and distribute this software for noncommercial purposes only.
+ * Commercial use of this software, in whole or in part, is prohibited.
+ *
+ * See the full license text at:
+ * https://polyformproject.org/licenses/noncommercial/1.0.0/
+ * or in the LICENSE.md file included with this source code.
+ */
+
+package com.sampacker.shibboleth.rba;
+
+import java.util.Map;
+
+/**
+ * Identifies logins that would receive the same score: same user, from the same address, with the same browser,
+ * and the same enrichment fields.
+ */
+record ScoringKey(String username, String ipAddress, String userAgent, Map<String, Object> fields) {
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2025 Sam Packer
+ *
+ * This software is licensed under the PolyForm Noncommercial License 1.0.0.
+ *
+ * You may use, copy, modify, and distribute this software for noncommercial purposes only.
+ * Commercial use of this software, in whole or in part, is prohibited.
+ *
+ * See the full license text at:
+ * https://polyformproject.org/licenses/noncommercial/1.0.0/
+ * or in the LICENSE.md file included with this source code.
+ */
+
+package com.sampacker.shibboleth.rba;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * What the scorer is asked to score for one login: the three core fields, plus any enrichment fields added
+ * before the request is sent. Enrichment values are strings, numbers or booleans and are encoded after the core
+ * fields, in the order they were added. Each enrichment stage adds its fields through one {@link Builder}, so the
+ * field map is copied once per stage rather than once per field.
+ * <p>
+ * A request carrying features that change from one login to the next (counts, elapsed time) is marked per-login:
+ * its score holds for this login only, so it is never cached, shared or coalesced with another login's.
+ */
+final class ScoringRequest {
+    private final String username;
+    private final String ipAddress;
+    private final String userAgent;
+    private final Map<String, Object> fields;
+    private final boolean perLogin;
+
+    ScoringRequest(String username, String ipAddress, String userAgent) {
+        this(username, ipAddress, userAgent, Map.of(), false);
+    }
+
+    /**
+     * Rebuild the request a key was made from.
+     */
+    static ScoringRequest of(ScoringKey key) {
+        return new ScoringRequest(key.username(), key.ipAddress(), key.userAgent(), key.fields(), false);
+    }
+
+    private ScoringRequest(String username, String ipAddress, String userAgent, Map<String, Object> fields,
+                           boolean perLogin) {
+        this.username = username;
+        this.ipAddress = ipAddress;
+        this.userAgent = userAgent;
+        this.fields = fields;
+        this.perLogin = perLogin;
+    }
+
+    /**
+     * @return a copy of this request with the enrichment field set; a null value removes it
+     */
+    ScoringRequest withField(String name, Object value) {
+        return toBuilder().field(name, value).build();
+    }
+
+    /**
+     * @return a builder starting from this request, for an enrichment stage adding several fields at once
+     */
+    Builder toBuilder() {
+        return new Builder(this);
+    }
+
+    /**
+     * @return whether the score must not be reused for any other login
+     */
+    boolean isPerLogin() {
+        return perLogin;
+    }
+
+    String username() {
+        return username;
+    }
+
+    String ipAddress() {
+        return ipAddress;
+    }
+
+    String userAgent() {
+        return userAgent;
+    }
+
+    /**
+     * @return the enrichment fields, in insertion order
+     */
+    Map<String, Object> fields() {
+        return fields;
+    }
+
+    ScoringKey key() {
+        return new ScoringKey(username, ipAddress, userAgent, fields);
+    }
+
+    /**
+     * Collects one stage's enrichment fields in a single copy of the field map, frozen by {@link #build()}.
+     */
+    static final class Builder {
+        private final ScoringRequest base;
+        private final Map<String, Object> fields;
+        private boolean perLogin;
+
+        private Builder(ScoringRequest base) {
+            this.base = base;
+            this.fields = new LinkedHashMap<>(base.fields);
+            this.perLogin = base.perLogin;
+        }
+
+        /**
+         * Set an enrichment field; a null value removes it.
+         */
+        Builder field(String name, Object value) {
+            if (value == null) {
+                fields.remove(name);
+                return this;
+            }
+            if (!(value instanceof String || value instanceof Number || value instanceof Boolean)) {
+                throw new IllegalArgumentException("Unsupported enrichment value type for " + name + ": "
+                        + value.getClass().getName());
+            }
+            fields.put(name, value);
+            return this;
+        }
+
+        /**
+         * Mark the request as scoring this login only.
+         */
+        Builder perLogin() {
+            perLogin = true;
+            return this;
+        }
+
+        ScoringRequest build() {
+            return new ScoringRequest(base.username, base.ipAddress, base.userAgent,
+                    Collections.unmodifiableMap(fields), perLogin);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "username=" + username + ", ipAddress=" + ipAddress + ", userAgent=" + userAgent
+                + (fields.isEmpty() ? "" : ", " + fields);
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2025 Sam Packer
+ *
+ * This software is licensed under the PolyForm Noncommercial License 1.0.0.
+ *
+ * You may use, copy, modify, and distribute this software for noncommercial purposes only.
+ * Commercial use of this software, in whole or in part, is prohibited.
+ *
+ * See the full license text at:
+ * https://polyformproject.org/licenses/noncommercial/1.0.0/
+ * or in the LICENSE.md file included with this source code.
+ */
+
+package com.sampacker.shibboleth.rba;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import net.shibboleth.idp.authn.AuthenticationResult;
+
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * The RBA verdict for each authentication in an IdP session, so SSO to further SPs that reuses the session's
+ * {@link AuthenticationResult} from the same client context is not scored again.
+ * <p>
+ * IdP sessions have no place to hang extra state, so verdicts are kept here, keyed by what identifies the
+ * authentication (user, flow and instant, which a reused result carries unchanged) plus the client's network
+ * prefix and User-Agent fingerprint. Verdicts expire {@code window} after they were reached.
+ */
+final class SessionVerdicts {
+    private static final int IPV4_PREFIX_BITS = 24;
+    private static final int IPV6_PREFIX_BITS = 48;
+
+    private final Cache<Key, Boolean> verdicts;
+
+    private record Key(String username, String flowId, Instant authenticationInstant, String network,
+                       String fingerprint) {
+    }
+
+    SessionVerdicts(Duration window, long maxSize, RbaMetrics metrics) {
+        this.verdicts = Caffeine.newBuilder()
+                .expireAfterWrite(window)
+                .maximumSize(maxSize)
+                .build();
+        metrics.gauge("session.verdicts", verdicts::estimatedSize);
+    }
+
+    /**
+     * @return true to proceed, false to deny, or null if there is no verdict for this authentication and client
+     */
+    Boolean lookup(AuthenticationResult result, String username, String ipAddress, String userAgent) {
+        final Key key = key(result, username, ipAddress, userAgent);
+        return key != null ? verdicts.getIfPresent(key) : null;
+    }
+
+    void record(AuthenticationResult result, String username, String ipAddress, String userAgent,
+                boolean proceed) {
+        final Key key = key(result, username, ipAddress, userAgent);
+        if (key != null) verdicts.put(key, proceed);
+    }
+
+    private static Key key(AuthenticationResult result, String username, String ipAddress, String userAgent) {
+        if (username == null || result.getAuthenticationInstant() == null) return null;
+        return new Key(username, result.getAuthenticationFlowId(), result.getAuthenticationInstant(),
+                ClientContext.networkPrefix(ipAddress, IPV4_PREFIX_BITS, IPV6_PREFIX_BITS),
+                ClientContext.fingerprint(userAgent));
+    }
+}
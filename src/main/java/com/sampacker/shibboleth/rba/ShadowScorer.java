@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2025 Sam Packer
+ *
+ * This software is licensed under the PolyForm Noncommercial License 1.0.0.
+ *
+ * You may use, copy, modify, and distribute this software for noncommercial purposes only.
+ * Commercial use of this software, in whole or in part, is prohibited.
+ *
+ * See the full license text at:
+ * https://polyformproject.org/licenses/noncommercial/1.0.0/
+ * or in the LICENSE.md file included with this source code.
+ */
+
+package com.sampacker.shibboleth.rba;
+
+import com.codahale.metrics.Counter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.time.Duration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.DoubleAdder;
+
+/**
+ * Sends scored logins to a candidate scorer as well, off the login path, and records how its scores compare.
+ * <p>
+ * The candidate's answer never affects the login. Work is handed to a small bounded executor; when its queue is
+ * full, or the candidate has no free connection, the comparison is dropped and counted rather than waited for.
+ * Each comparison is logged at INFO by this class's logger, so it can be routed to its own file.
+ */
+final class ShadowScorer implements AutoCloseable {
+    private final Logger log = LoggerFactory.getLogger(ShadowScorer.class);
+    private final ScorerTransport transport;
+    private final ScoringCodec codec;
+    private final URI endpoint;
+    private final Duration timeout;
+    private final double sampleRate;
+    private final double threshold;
+    private final ThreadPoolExecutor executor;
+    private final Counter comparisons;
+    private final Counter disagreements;
+    private final Counter dropped;
+    private final Counter failures;
+    private final DoubleAdder absoluteDifference = new DoubleAdder();
+
+    ShadowScorer(ScorerTransport transport, ScoringCodec codec, URI endpoint, Duration timeout, double sampleRate,
+                 double threshold, int threads, int queueSize, RbaMetrics metrics) {
+        this.transport = transport;
+        this.codec = codec;
+        this.endpoint = endpoint;
+        this.timeout = timeout;
+        this.sampleRate = sampleRate;
+        this.threshold = threshold;
+        this.comparisons = metrics.counter("shadow.comparisons");
+        this.disagreements = metrics.counter("shadow.disagreements");
+        this.dropped = metrics.counter("shadow.dropped");
+        this.failures = metrics.counter("shadow.failures");
+        metrics.gauge("shadow.meanAbsoluteDifference", () -> {
+            final long count = comparisons.getCount();
+            return count == 0 ? 0 : absoluteDifference.sum() / count;
+        });
+
+        this.executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueSize), new DaemonThreadFactory("rba-shadow"),
+                (task, pool) -> dropped.inc());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queue a comparison with the primary score, if this login is sampled. Never blocks.
+     */
+    void submit(ScoringRequest request, ScoreResult primary) {
+        if (sampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= sampleRate) return;
+        executor.execute(() -> compare(request, primary));
+    }
+
+    private void compare(ScoringRequest request, ScoreResult primary) {
+        final PayloadBuffer buffer = PayloadBuffer.forCurrentThread();
+        final CompletableFuture<ScorerResponse> call;
+        final ScoreResult shadow;
+        try {
+            codec.encode(request, buffer);
+            call = transport.postAsync(endpoint, buffer.array(), buffer.length(), codec, timeout, false);
+        } catch (RuntimeException e) {
+            failures.inc();
+            log.debug("Could not send shadow request to {}", endpoint, e);
+            return;
+        }
+        try (ScorerResponse response = call.get(timeout.toNanos(), TimeUnit.NANOSECONDS)) {
+            if (!response.isOk()) throw new IOException("HTTP " + response.status());
+            shadow = ScoringCodec.forResponse(response.contentType(), codec).decode(response.body());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (TimeoutException e) {
+            call.cancel(true);
+            // The abandoned exchange may still be reading the body.
+            PayloadBuffer.detachFromCurrentThread();
+            failures.inc();
+            return;
+        } catch (ExecutionException | IOException | RuntimeException e) {
+            failures.inc();
+            log.debug("Shadow scorer {} failed", endpoint, e);
+            return;
+        }
+
+        comparisons.inc();
+        absoluteDifference.add(Math.abs(shadow.threatScore() - primary.threatScore()));
+        final boolean disagree = (shadow.threatScore() < threshold) != (primary.threatScore() < threshold);
+        if (disagree) disagreements.inc();
+        log.info("Shadow score for user='{}', ip='{}': primary={} ({}), shadow={} ({}){}", request.username(),
+                request.ipAddress(), primary.threatScore(), primary.modelVersion(), shadow.threatScore(),
+                shadow.modelVersion(), disagree ? ", decisions differ" : "");
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,335 @@
+/*
+ * Copyright (c) 2025 Sam Packer
+ *
+ * This software is licensed under the PolyForm Noncommercial License 1.0.0.
+ *
+ * You may use, copy, modify, and distribute this software for noncommercial purposes only.
+ * Commercial use of this software, in whole or in part, is prohibited.
+ *
+ * See the full license text at:
+ * https://polyformproject.org/licenses/noncommercial/1.0.0/
+ * or in the LICENSE.md file included with this source code.
+ */
+
+package com.sampacker.shibboleth.rba;
+
+import com.codahale.metrics.Counter;
+import org.opensaml.storage.StorageCapabilities;
+import org.opensaml.storage.StorageRecord;
+import org.opensaml.storage.StorageService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Scores shared between IdP nodes through the IdP's {@link StorageService}, behind the per-node score cache.
+ * <p>
+ * Writes are queued and flushed in the background in batches, the latest score per key winning, so publishing a
+ * score never blocks a login. Reads are queued too and drained in batches by at most two reader tasks; concurrent
+ * reads of one key share a single storage call. A login waits at most {@code readWait} for its read, and not at all
+ * when the read could not be queued. Records are keyed by an HMAC of the login under a secret shared by the nodes,
+ * so no usernames or addresses end up in the storage backend, and the keys can't be matched against guessed logins
+ * by whoever can read it.
+ */
+final class SharedScoreStore implements AutoCloseable {
+    static final String CONTEXT = "com.sampacker.shibboleth.rba.score";
+
+    private static final int FLUSH_BATCH_SIZE = 64;
+    private static final int READ_BATCH_SIZE = 64;
+    private static final int READ_TASKS = 2;
+    private static final int MAX_QUEUED_READS = 256;
+    private static final String VALUE_VERSION = "1";
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final ThreadLocal<Mac> MACS = new ThreadLocal<>();
+
+    private final Logger log = LoggerFactory.getLogger(SharedScoreStore.class);
+
+    private final StorageService storage;
+    private final SecretKeySpec secret;
+    private final long readWaitNanos;
+    private final long defaultTtlMillis;
+    private final long maxTtlMillis;
+    private final ThreadPoolExecutor readers;
+    private final Queue<QueuedRead> readQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queuedReads = new AtomicInteger();
+    private final AtomicInteger readTasks = new AtomicInteger();
+    private final ScheduledExecutorService flusher;
+    private final ConcurrentMap<String, CompletableFuture<ScoreResult>> pendingReads = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, PendingWrite> pendingWrites = new ConcurrentHashMap<>();
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter readTimeouts;
+    private final Counter lateHitCount;
+    private final Counter writes;
+    private final Counter errors;
+
+    private record PendingWrite(String value, long expiresAt) {
+    }
+
+    private record QueuedRead(String storageKey, CompletableFuture<ScoreResult> read) {
+    }
+
+    /**
+     * @param secret HMAC key for the record keys, the same on every node
+     */
+    SharedScoreStore(StorageService storage, byte[] secret, Duration readWait, Duration flushInterval,
+                     Duration defaultTtl, Duration maxTtl, RbaMetrics metrics) {
+        this.storage = storage;
+        this.secret = new SecretKeySpec(secret, ALGORITHM);
+        this.readWaitNanos = readWait.toNanos();
+        this.defaultTtlMillis = defaultTtl.toMillis();
+        this.maxTtlMillis = maxTtl.toMillis();
+
+        this.readers = new ThreadPoolExecutor(READ_TASKS, READ_TASKS, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(READ_TASKS), new DaemonThreadFactory("rba-shared-read"));
+        this.readers.allowCoreThreadTimeOut(true);
+        this.flusher = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("rba-shared-write"));
+        this.flusher.scheduleWithFixedDelay(this::flush, flushInterval.toNanos(), flushInterval.toNanos(),
+                TimeUnit.NANOSECONDS);
+
+        this.hits = metrics.counter("sharedCache.hits");
+        this.misses = metrics.counter("sharedCache.misses");
+        this.readTimeouts = metrics.counter("sharedCache.readTimeouts");
+        this.lateHitCount = metrics.counter("sharedCache.lateHits");
+        this.writes = metrics.counter("sharedCache.writes");
+        this.errors = metrics.counter("sharedCache.errors");
+        metrics.gauge("sharedCache.pendingWrites", pendingWrites::size);
+        metrics.gauge("sharedCache.pendingReads", queuedReads::get);
+    }
+
+    /**
+     * Check that the storage backend can hold our records.
+     *
+     * @return a description of the problem, or null if there is none
+     */
+    static String checkCapabilities(StorageService storage) {
+        final StorageCapabilities caps = storage.getCapabilities();
+        if (caps == null) return null;
+        if (caps.getContextSize() < CONTEXT.length()) return "context size " + caps.getContextSize();
+        if (caps.getKeySize() < 43) return "key size " + caps.getKeySize();
+        if (caps.getValueSize() < 64 + ScoreResult.MAX_MODEL_VERSION_LENGTH) {
+            return "value size " + caps.getValueSize();
+        }
+        return null;
+    }
+
+    /**
+     * Start reading the shared score for the login, and wait for it at most {@code readWait}.
+     *
+     * @return the shared score, or null if there is none or it was not read in time
+     */
+    ScoreResult lookup(ScoringKey key) throws InterruptedException {
+        final String storageKey = storageKey(key);
+        CompletableFuture<ScoreResult> read = new CompletableFuture<>();
+        final CompletableFuture<ScoreResult> existing = pendingReads.putIfAbsent(storageKey, read);
+        if (existing != null) {
+            read = existing;
+        } else {
+            startRead(storageKey, read);
+        }
+
+        if (read.isDone() || readWaitNanos > 0) {
+            try {
+                final ScoreResult result = read.get(readWaitNanos, TimeUnit.NANOSECONDS);
+                if (result != null) hits.inc();
+                return result;
+            } catch (TimeoutException e) {
+                readTimeouts.inc();
+            } catch (ExecutionException e) {
+                return null;
+            }
+        }
+        // Counted so operators can tell when readWait is too short for their storage service.
+        read.thenAccept(late -> {
+            if (late != null) lateHitCount.inc();
+        });
+        return null;
+    }
+
+    private void startRead(String storageKey, CompletableFuture<ScoreResult> read) {
+        read.whenComplete((r, e) -> {
+            pendingReads.remove(storageKey, read);
+            if (r == null) misses.inc();
+        });
+        if (queuedReads.incrementAndGet() > MAX_QUEUED_READS) {
+            // Storage is too slow to keep up; behave as a miss.
+            queuedReads.decrementAndGet();
+            read.complete(null);
+            return;
+        }
+        readQueue.add(new QueuedRead(storageKey, read));
+        startReadTask();
+    }
+
+    private void startReadTask() {
+        while (true) {
+            final int running = readTasks.get();
+            if (running >= READ_TASKS) return;
+            if (readTasks.compareAndSet(running, running + 1)) break;
+        }
+        try {
+            readers.execute(this::drainReads);
+        } catch (RejectedExecutionException e) {
+            // Shutting down; queued reads are left to time out as misses.
+            readTasks.decrementAndGet();
+        }
+    }
+
+    /**
+     * Read up to a batch of queued keys, then hand the thread back, starting another task if reads remain.
+     */
+    private void drainReads() {
+        try {
+            QueuedRead queued;
+            for (int i = 0; i < READ_BATCH_SIZE && (queued = readQueue.poll()) != null; i++) {
+                queuedReads.decrementAndGet();
+                try {
+                    queued.read().complete(readRecord(queued.storageKey()));
+                } catch (IOException | RuntimeException e) {
+                    errors.inc();
+                    log.debug("Reading shared RBA score failed", e);
+                    queued.read().complete(null);
+                }
+            }
+        } finally {
+            readTasks.decrementAndGet();
+            // Reads queued while this task was finishing would otherwise wait for the next login's read.
+            if (!readQueue.isEmpty()) startReadTask();
+        }
+    }
+
+    private ScoreResult readRecord(String storageKey) throws IOException {
+        final StorageRecord<?> record = storage.read(CONTEXT, storageKey);
+        if (record == null || record.getValue() == null) return null;
+        final long remaining = record.getExpiration() != null
+                ? record.getExpiration() - System.currentTimeMillis() : defaultTtlMillis;
+        if (remaining <= 0) return null;
+
+        // "1;<score>;<modelVersion>"
+        final String[] parts = record.getValue().split(";", 3);
+        if (parts.length != 3 || !VALUE_VERSION.equals(parts[0])) return null;
+        final double threatScore;
+        try {
+            threatScore = Double.parseDouble(parts[1]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (!Double.isFinite(threatScore)) return null;
+        return new ScoreResult(threatScore, Duration.ofMillis(remaining), parts[2].isEmpty() ? null : parts[2]);
+    }
+
+    /**
+     * Queue a score to be written to the shared store.
+     */
+    void publish(ScoringKey key, ScoreResult result) {
+        final long ttl = result.ttl() != null ? Math.min(result.ttl().toMillis(), maxTtlMillis) : defaultTtlMillis;
+        if (ttl <= 0) return;
+        final String value = VALUE_VERSION + ";" + result.threatScore() + ";"
+                + (result.modelVersion() != null ? result.modelVersion() : "");
+        pendingWrites.put(storageKey(key), new PendingWrite(value, System.currentTimeMillis() + ttl));
+        if (pendingWrites.size() >= FLUSH_BATCH_SIZE && flushRequested.compareAndSet(false, true)) {
+            try {
+                flusher.execute(this::flush);
+            } catch (RejectedExecutionException e) {
+                flushRequested.set(false);
+            }
+        }
+    }
+
+    private void flush() {
+        flushRequested.set(false);
+        int failed = 0;
+        IOException lastError = null;
+        for (Map.Entry<String, PendingWrite> entry : pendingWrites.entrySet()) {
+            final PendingWrite write = entry.getValue();
+            if (!pendingWrites.remove(entry.getKey(), write)) continue;
+            if (write.expiresAt() <= System.currentTimeMillis()) continue;
+            try {
+                if (!storage.create(CONTEXT, entry.getKey(), write.value(), write.expiresAt())) {
+                    storage.update(CONTEXT, entry.getKey(), write.value(), write.expiresAt());
+                }
+                writes.inc();
+            } catch (IOException | RuntimeException e) {
+                failed++;
+                errors.inc();
+                lastError = e instanceof IOException ? (IOException) e : new IOException(e);
+            }
+        }
+        if (failed > 0) {
+            log.warn("Failed to write {} shared RBA scores", failed, lastError);
+        }
+    }
+
+    /**
+     * A fixed-length storage key for the login, which can't be reversed or recomputed without the secret.
+     */
+    String storageKey(ScoringKey key) {
+        final Mac mac = mac();
+        update(mac, key.username());
+        update(mac, key.ipAddress());
+        update(mac, key.userAgent());
+        for (Map.Entry<String, Object> field : key.fields().entrySet()) {
+            update(mac, field.getKey());
+            update(mac, String.valueOf(field.getValue()));
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(mac.doFinal());
+    }
+
+    private static void update(Mac mac, String s) {
+        if (s != null) mac.update(s.getBytes(StandardCharsets.UTF_8));
+        mac.update((byte) 0);
+    }
+
+    private Mac mac() {
+        Mac mac = MACS.get();
+        try {
+            if (mac == null) {
+                mac = Mac.getInstance(ALGORITHM);
+                MACS.set(mac);
+            }
+            mac.init(secret);
+        } catch (GeneralSecurityException e) {
+            // HmacSHA256 is a mandatory JCA algorithm.
+            throw new IllegalStateException(e);
+        }
+        return mac;
+    }
+
+    @Override
+    public void close() {
+        // One last flush so scores from the final moments before a reload aren't lost.
+        flusher.execute(this::flush);
+        flusher.shutdown();
+        try {
+            if (!flusher.awaitTermination(1, TimeUnit.SECONDS)) flusher.shutdownNow();
+        } catch (InterruptedException e) {
+            flusher.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        readers.shutdownNow();
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2025 Sam Packer
+ *
+ * This software is licensed under the PolyForm Noncommercial License 1.0.0.
+ *
+ * You may use, copy, modify, and distribute this software for noncommercial purposes only.
+ * Commercial use of this software, in whole or in part, is prohibited.
+ *
+ * See the full license text at:
+ * https://polyformproject.org/licenses/noncommercial/1.0.0/
+ * or in the LICENSE.md file included with this source code.
+ */
+
+package com.sampacker.shibboleth.rba;
+
+import java.net.http.HttpTimeoutException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Coalesces concurrent calls for the same key: the first caller runs the call, and callers arriving while it is
+ * outstanding wait (for a bounded time) and share its result or its failure. The entry is removed as soon as the
+ * call finishes, so nothing is cached beyond the call's own lifetime.
+ */
+final class SingleFlight<K, V> {
+    private final ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * Result of {@link #execute}, and whether it was shared from another caller's call.
+     */
+    record Result<V>(V value, boolean shared) {
+    }
+
+    Result<V> execute(K key, Callable<V> call, long maxWaitNanos) throws Exception {
+        final CompletableFuture<V> mine = new CompletableFuture<>();
+        final CompletableFuture<V> existing = inFlight.putIfAbsent(key, mine);
+        if (existing != null) {
+            return new Result<>(await(existing, maxWaitNanos), true);
+        }
+
+        try {
+            final V value = call.call();
+            mine.complete(value);
+            return new Result<>(value, false);
+        } catch (Throwable t) {
+            mine.completeExceptionally(t);
+            throw t;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    int size() {
+        return inFlight.size();
+    }
+
+    private static <V> V await(CompletableFuture<V> future, long maxWaitNanos) throws Exception {
+        try {
+            return future.get(maxWaitNanos, TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            throw new HttpTimeoutException("Timed out waiting for a coalesced RBA request");
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof Exception) throw (Exception) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw e;
+        }
+    }
+}
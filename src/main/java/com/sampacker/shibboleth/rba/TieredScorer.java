@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2025 Sam Packer
+ *
+ * This software is licensed under the PolyForm Noncommercial License 1.0.0.
+ *
+ * You may use, copy, modify, and distribute this software for noncommercial purposes only.
+ * Commercial use of this software, in whole or in part, is prohibited.
+ *
+ * See the full license text at:
+ * https://polyformproject.org/licenses/noncommercial/1.0.0/
+ * or in the LICENSE.md file included with this source code.
+ */
+
+package com.sampacker.shibboleth.rba;
+
+import com.codahale.metrics.Counter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.function.Predicate;
+
+/**
+ * Two-tier scoring: a cheap local scorer decides the clear cases, and only logins whose provisional score falls
+ * in a band around the threshold are sent to the remote scorer.
+ * <p>
+ * A provisional score of at most {@code threshold - band} is accepted locally and one of at least
+ * {@code threshold + band} is rejected locally. Anything in between goes to the remote scorer with the provisional
+ * score attached as {@code localScore}. If the remote call fails and {@code fallback} accepts the error, the
+ * provisional score is used instead of the failure policy.
+ */
+final class TieredScorer implements RiskScorer {
+    private final Logger log = LoggerFactory.getLogger(TieredScorer.class);
+    private final RiskScorer local;
+    private final RiskScorer remote;
+    private final double acceptBelow;
+    private final double rejectAbove;
+    private final Predicate<Exception> fallback;
+    private final Counter localAccepts;
+    private final Counter localRejects;
+    private final Counter remoteCalls;
+    private final Counter fallbacks;
+
+    TieredScorer(RiskScorer local, RiskScorer remote, double threshold, double band, Predicate<Exception> fallback,
+                 RbaMetrics metrics) {
+        this.local = local;
+        this.remote = remote;
+        this.acceptBelow = threshold - band;
+        this.rejectAbove = threshold + band;
+        this.fallback = fallback;
+        this.localAccepts = metrics.counter("tiered.localAccepts");
+        this.localRejects = metrics.counter("tiered.localRejects");
+        this.remoteCalls = metrics.counter("tiered.remoteCalls");
+        this.fallbacks = metrics.counter("tiered.fallbacks");
+        metrics.gauge("tiered.savedRatio", this::savedRatio);
+    }
+
+    @Override
+    public ScoreResult score(ScoringRequest request) throws Exception {
+        final ScoreResult provisional = local.score(request);
+        final double score = provisional.threatScore();
+        if (score <= acceptBelow) {
+            localAccepts.inc();
+            return provisional;
+        }
+        if (score >= rejectAbove) {
+            localRejects.inc();
+            return provisional;
+        }
+        remoteCalls.inc();
+        log.debug("Provisional score {} is in the uncertainty band, asking the remote scorer", score);
+        try {
+            return remote.score(request.withField("localScore", score));
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            if (!fallback.test(e)) throw e;
+            fallbacks.inc();
+            log.warn("Remote scorer unavailable ({}), using the provisional score {} per policy FALLBACK",
+                    e.toString(), score);
+            return provisional;
+        }
+    }
+
+    /**
+     * @return the fraction of scored logins decided without the remote scorer
+     */
+    double savedRatio() {
+        final long decidedLocally = localAccepts.getCount() + localRejects.getCount();
+        final long total = decidedLocally + remoteCalls.getCount();
+        return total == 0 ? 0 : (double) decidedLocally / total;
+    }
+}
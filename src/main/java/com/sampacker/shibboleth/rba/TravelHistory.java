@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2025 Sam Packer
+ *
+ * This software is licensed under the PolyForm Noncommercial License 1.0.0.
+ *
+ * You may use, copy, modify, and distribute this software for noncommercial purposes only.
+ * Commercial use of this software, in whole or in part, is prohibited.
+ *
+ * See the full license text at:
+ * https://polyformproject.org/licenses/noncommercial/1.0.0/
+ * or in the LICENSE.md file included with this source code.
+ */
+
+package com.sampacker.shibboleth.rba;
+
+import java.util.Set;
+
+/**
+ * Each user's last login location and time, for spotting logins that would need impossibly fast travel.
+ * <p>
+ * The store is sized for millions of users: entries are a 64-bit hash of the username and one {@code long} packing
+ * latitude and longitude (to 0.01 degree, about a kilometre, well inside GeoIP accuracy) with the login time in
+ * seconds, 16 bytes per user. Entries sit in 4-way sets of two flat arrays; a full set evicts its oldest entry.
+ * Access takes one of {@link #STRIPES} monitors for a few array reads or writes, and allocates nothing.
+ */
+final class TravelHistory {
+    /**
+     * Payload fields this adds, so other enrichments can avoid them.
+     */
+    static final Set<String> FIELDS = Set.of("travelDistanceKm", "travelSpeedKmh");
+
+    private static final int WAYS = 4;
+    private static final int STRIPES = 256;
+    private static final double EARTH_RADIUS_KM = 6371.0088;
+
+    private final long[] keys;
+    private final long[] values;
+    private final Object[] locks = new Object[STRIPES];
+    private final int setMask;
+
+    TravelHistory(int capacity) {
+        final int sets = Integer.highestOneBit(Math.max(2, (capacity + WAYS - 1) / WAYS - 1)) << 1;
+        this.setMask = sets - 1;
+        this.keys = new long[sets * WAYS];
+        this.values = new long[sets * WAYS];
+        for (int i = 0; i < STRIPES; i++) locks[i] = new Object();
+    }
+
+    /**
+     * @return the user's last location as packed by {@link #pack}, or 0 if unknown
+     */
+    long previous(String username) {
+        final long key = VelocityCounters.hash(username);
+        final int set = (int) (key ^ key >>> 32) & setMask;
+        synchronized (locks[set & (STRIPES - 1)]) {
+            final int base = set * WAYS;
+            for (int i = base; i < base + WAYS; i++) {
+                if (keys[i] == key) return values[i];
+            }
+        }
+        return 0;
+    }
+
+    void record(String username, double latitude, double longitude, long epochSecond) {
+        final long key = VelocityCounters.hash(username);
+        final long value = pack(latitude, longitude, epochSecond);
+        final int set = (int) (key ^ key >>> 32) & setMask;
+        synchronized (locks[set & (STRIPES - 1)]) {
+            final int base = set * WAYS;
+            // Nothing is ever removed, so free ways come after the used ones and a match is never past one.
+            int target = base;
+            for (int i = base; i < base + WAYS; i++) {
+                if (keys[i] == key || keys[i] == 0) {
+                    target = i;
+                    break;
+                }
+                if (epochSecond(values[i]) < epochSecond(values[target])) target = i;
+            }
+            keys[target] = key;
+            values[target] = value;
+        }
+    }
+
+    /**
+     * Pack a location as time (high 33 bits), latitude + 90 and longitude + 180 in hundredths of a degree (15 and
+     * 16 bits). Never 0 for times after 1970.
+     */
+    static long pack(double latitude, double longitude, long epochSecond) {
+        final long lat = Math.round((Math.max(-90, Math.min(90, latitude)) + 90) * 100);
+        final long lon = Math.round((Math.max(-180, Math.min(180, longitude)) + 180) * 100);
+        return Math.max(1, epochSecond) << 31 | lat << 16 | lon;
+    }
+
+    static long epochSecond(long packed) {
+        return packed >>> 31;
+    }
+
+    static double latitude(long packed) {
+        return ((packed >>> 16) & 0x7FFF) / 100.0 - 90;
+    }
+
+    static double longitude(long packed) {
+        return (packed & 0xFFFF) / 100.0 - 180;
+    }
+
+    /**
+     * Great-circle (haversine) distance from a packed location.
+     */
+    static double distanceKm(long packed, double latitude, double longitude) {
+        final double lat1 = Math.toRadians(latitude(packed));
+        final double lat2 = Math.toRadians(latitude);
+        final double dLat = lat2 - lat1;
+        final double dLon = Math.toRadians(longitude - longitude(packed));
+        final double h = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                + Math.cos(lat1) * Math.cos(lat2) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return 2 * EARTH_RADIUS_KM * Math.asin(Math.min(1, Math.sqrt(h)));
+    }
+
+    /**
+     * @return the speed needed to get from the packed location to here by {@code epochSecond}; logins in the same
+     * second count as one second apart
+     */
+    static double speedKmh(long packed, double latitude, double longitude, long epochSecond) {
+        final long elapsed = Math.max(1, epochSecond - epochSecond(packed));
+        return distanceKm(packed, latitude, longitude) * 3600 / elapsed;
+    }
+}
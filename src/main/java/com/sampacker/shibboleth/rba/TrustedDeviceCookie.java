@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2025 Sam Packer
+ *
+ * This software is licensed under the PolyForm Noncommercial License 1.0.0.
+ *
+ * You may use, copy, modify, and distribute this software for noncommercial purposes only.
+ * Commercial use of this software, in whole or in part, is prohibited.
+ *
+ * See the full license text at:
+ * https://polyformproject.org/licenses/noncommercial/1.0.0/
+ * or in the LICENSE.md file included with this source code.
+ */
+
+package com.sampacker.shibboleth.rba;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+
+/**
+ * Signed token remembering that a user passed a low-risk login from a device.
+ * <p>
+ * The token is {@code base64url(version | expiry | tag)}, where the tag is a truncated HMAC-SHA256 over the
+ * version, expiry, username, a fingerprint of the User-Agent and the client's network prefix. None of those are
+ * stored in the token: verification recomputes the tag from the current login, so the token only matches for the
+ * same user, browser family and network, and reveals nothing about them.
+ */
+final class TrustedDeviceCookie {
+    private static final byte VERSION = 1;
+    private static final int TAG_LENGTH = 16;
+    private static final int TOKEN_LENGTH = 1 + Integer.BYTES + TAG_LENGTH;
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final ThreadLocal<Mac> MACS = new ThreadLocal<>();
+
+    private final SecretKeySpec key;
+    private final long lifetimeSeconds;
+    private final int ipv4PrefixBits;
+    private final int ipv6PrefixBits;
+
+    TrustedDeviceCookie(byte[] key, long lifetimeSeconds, int ipv4PrefixBits, int ipv6PrefixBits) {
+        this.key = new SecretKeySpec(key, ALGORITHM);
+        this.lifetimeSeconds = lifetimeSeconds;
+        this.ipv4PrefixBits = ipv4PrefixBits;
+        this.ipv6PrefixBits = ipv6PrefixBits;
+    }
+
+    String issue(String username, String userAgent, String ipAddress, long nowSeconds) {
+        final long expiry = nowSeconds + lifetimeSeconds;
+        final ByteBuffer token = ByteBuffer.allocate(TOKEN_LENGTH);
+        token.put(VERSION).putInt((int) expiry);
+        token.put(tag(expiry, username, userAgent, ipAddress));
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(token.array());
+    }
+
+    /**
+     * @return whether the token was issued by us, has not expired, and was issued to this user, browser and
+     * network
+     */
+    boolean verify(String value, String username, String userAgent, String ipAddress, long nowSeconds) {
+        if (value == null || value.length() > 64) return false;
+        final byte[] token;
+        try {
+            token = Base64.getUrlDecoder().decode(value);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        if (token.length != TOKEN_LENGTH || token[0] != VERSION) return false;
+        final long expiry = Integer.toUnsignedLong(ByteBuffer.wrap(token, 1, Integer.BYTES).getInt());
+        if (expiry <= nowSeconds) return false;
+        final byte[] expected = tag(expiry, username, userAgent, ipAddress);
+        final byte[] actual = new byte[TAG_LENGTH];
+        System.arraycopy(token, 1 + Integer.BYTES, actual, 0, TAG_LENGTH);
+        return MessageDigest.isEqual(expected, actual);
+    }
+
+    private byte[] tag(long expiry, String username, String userAgent, String ipAddress) {
+        final Mac mac = mac();
+        mac.update(VERSION);
+        mac.update(ByteBuffer.allocate(Integer.BYTES).putInt((int) expiry).array());
+        updateField(mac, username);
+        updateField(mac, ClientContext.fingerprint(userAgent));
+        updateField(mac, ClientContext.networkPrefix(ipAddress, ipv4PrefixBits, ipv6PrefixBits));
+        final byte[] full = mac.doFinal();
+        final byte[] truncated = new byte[TAG_LENGTH];
+        System.arraycopy(full, 0, truncated, 0, TAG_LENGTH);
+        return truncated;
+    }
+
+    private static void updateField(Mac mac, String field) {
+        final byte[] bytes = (field != null ? field : "").getBytes(StandardCharsets.UTF_8);
+        // Length-prefix each field so ("ab", "c") and ("a", "bc") sign differently.
+        mac.update(ByteBuffer.allocate(Integer.BYTES).putInt(bytes.length).array());
+        mac.update(bytes);
+    }
+
+    private Mac mac() {
+        Mac mac = MACS.get();
+        try {
+            if (mac == null) {
+                mac = Mac.getInstance(ALGORITHM);
+                MACS.set(mac);
+            }
+            mac.init(key);
+        } catch (GeneralSecurityException e) {
+            // HmacSHA256 is a mandatory JCA algorithm.
+            throw new IllegalStateException(e);
+        }
+        return mac;
+    }
+}
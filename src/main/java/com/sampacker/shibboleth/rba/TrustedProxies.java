@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2025 Sam Packer
+ *
+ * This software is licensed under the PolyForm Noncommercial License 1.0.0.
+ *
+ * You may use, copy, modify, and distribute this software for noncommercial purposes only.
+ * Commercial use of this software, in whole or in part, is prohibited.
+ *
+ * See the full license text at:
+ * https://polyformproject.org/licenses/noncommercial/1.0.0/
+ * or in the LICENSE.md file included with this source code.
+ */
+
+package com.sampacker.shibboleth.rba;
+
+import java.util.List;
+
+/**
+ * Works out the client address behind the reverse proxies the IdP is deployed behind.
+ * <p>
+ * X-Forwarded-For is written by the client as much as by proxies, so only the hops appended by trusted proxies can
+ * be believed. The header is read only when the connection itself comes from a trusted proxy, and then from the
+ * right: each trusted proxy is skipped, and the first address that is not one is the client. Anything left of it
+ * was supplied by the client and is ignored. Without a trusted peer the connection's address is used as is.
+ */
+final class TrustedProxies {
+    private static final ThreadLocal<long[]> SCRATCH = ThreadLocal.withInitial(() -> new long[2]);
+
+    private final CidrTrie<Boolean> trie = new CidrTrie<>();
+
+    /**
+     * @throws IllegalArgumentException if a prefix is invalid
+     */
+    TrustedProxies(List<String> prefixes) {
+        for (String cidr : prefixes) trie.put(cidr, Boolean.TRUE, (a, b) -> a);
+    }
+
+    /**
+     * @return whether {@code ipAddress} is a trusted proxy; false if it is not an IP literal
+     */
+    boolean contains(String ipAddress) {
+        final long[] bits = SCRATCH.get();
+        return IpLiterals.parse(ipAddress, bits) != IpLiterals.INVALID && trie.find(bits[0], bits[1]) != null;
+    }
+
+    /**
+     * @param remoteAddr the address of the connection's peer
+     * @param forwardedFor the X-Forwarded-For header, or null
+     * @return the right-most address that is not a trusted proxy. If every hop is trusted, or a hop is not an IP
+     * literal, the last trusted hop is returned; {@link #contains} tells the caller when that happened.
+     */
+    String clientAddress(String remoteAddr, String forwardedFor) {
+        if (forwardedFor == null || !contains(remoteAddr)) return remoteAddr;
+        String client = remoteAddr;
+        int end = forwardedFor.length();
+        while (end > 0) {
+            final int comma = forwardedFor.lastIndexOf(',', end - 1);
+            final String hop = forwardedFor.substring(comma + 1, end).trim();
+            end = comma;
+            if (hop.isEmpty()) continue;
+            if (IpLiterals.parse(hop, SCRATCH.get()) == IpLiterals.INVALID) break;
+            client = hop;
+            if (!contains(hop)) break;
+        }
+        return client;
+    }
+
+    int size() {
+        return trie.size();
+    }
+}
@@ -0,0 +1,383 @@
+/*
+ * Copyright (c) 2025 Sam Packer
+ *
+ * This software is licensed under the PolyForm Noncommercial License 1.0.0.
+ *
+ * You may use, copy, modify, and distribute this software for noncommercial purposes only.
+ * Commercial use of this software, in whole or in part, is prohibited.
+ *
+ * See the full license text at:
+ * https://polyformproject.org/licenses/noncommercial/1.0.0/
+ * or in the LICENSE.md file included with this source code.
+ */
+
+package com.sampacker.shibboleth.rba;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.URI;
+import java.net.UnixDomainSocketAddress;
+import java.net.http.HttpTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Deque;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * HTTP/1.1 over a Unix domain socket, for a scorer running as a sidecar on the same host. Endpoints look like
+ * {@code unix:///run/rba.sock#/score}: the URI path is the socket file and the fragment is the request path
+ * (default {@code /}).
+ * <p>
+ * Connections are kept alive in a per-socket pool and reused most-recently-used first. A pooled connection the
+ * scorer closed while idle fails before any response byte arrives, whether on the write or the read, and the
+ * request is then retried once on a fresh connection.
+ * Socket channels have no read timeout, so a timer closes the channel when the read timeout expires.
+ */
+final class UnixSocketScorerTransport implements ScorerTransport {
+    private static final int MAX_HEADER_BYTES = 16 * 1024;
+    private static final int MAX_BODY_BYTES = 1024 * 1024;
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private final ExecutorService executor = Executors.newCachedThreadPool(new DaemonThreadFactory("rba-uds"));
+    private final ScheduledExecutorService timer =
+            Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("rba-uds-timer"));
+    private final Duration connectTimeout;
+    private final int maxConnectionsPerEndpoint;
+    private final ConcurrentMap<String, SocketPool> pools = new ConcurrentHashMap<>();
+
+    UnixSocketScorerTransport(Duration connectTimeout, int maxConnectionsPerEndpoint) {
+        this.connectTimeout = connectTimeout;
+        this.maxConnectionsPerEndpoint = maxConnectionsPerEndpoint;
+    }
+
+    static boolean supports(URI endpoint) {
+        return "unix".equalsIgnoreCase(endpoint.getScheme());
+    }
+
+    @Override
+    public CompletableFuture<ScorerResponse> postAsync(URI endpoint, byte[] body, int length, ScoringCodec codec,
+                                                       Duration readTimeout, boolean waitForPermit) {
+        final SocketPool pool = pools.computeIfAbsent(endpoint.getPath(), SocketPool::new);
+        final Throwable denied = ScorerHttpClient.acquire(pool.permits,
+                waitForPermit ? connectTimeout : Duration.ZERO, maxConnectionsPerEndpoint, endpoint);
+        if (denied != null) return CompletableFuture.failedFuture(denied);
+
+        final String target = endpoint.getFragment() != null && !endpoint.getFragment().isEmpty()
+                ? endpoint.getFragment() : "/";
+        final CompletableFuture<ScorerResponse> result = new CompletableFuture<>();
+        final AtomicReference<Connection> current = new AtomicReference<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    final ScorerResponse response = exchange(pool, target, body, length, codec, readTimeout, current);
+                    if (!result.complete(response)) ScorerHttpClient.closeQuietly(response);
+                } catch (Throwable t) {
+                    pool.permits.release();
+                    result.completeExceptionally(t);
+                }
+            });
+        } catch (RuntimeException e) {
+            pool.permits.release();
+            return CompletableFuture.failedFuture(e);
+        }
+        result.whenComplete((r, e) -> {
+            if (result.isCancelled()) {
+                final Connection c = current.get();
+                if (c != null) c.closeQuietly();
+            }
+        });
+        return result;
+    }
+
+    private ScorerResponse exchange(SocketPool pool, String target, byte[] body, int length, ScoringCodec codec,
+                                    Duration readTimeout, AtomicReference<Connection> current) throws IOException {
+        Connection conn = pool.idle.pollFirst();
+        if (conn != null) {
+            current.set(conn);
+            try {
+                return exchangeOn(pool, conn, target, body, length, codec, readTimeout, true);
+            } catch (StaleConnectionException e) {
+                conn.closeQuietly();
+            }
+        }
+        conn = pool.open();
+        current.set(conn);
+        return exchangeOn(pool, conn, target, body, length, codec, readTimeout, false);
+    }
+
+    private ScorerResponse exchangeOn(SocketPool pool, Connection conn, String target, byte[] body, int length,
+                                      ScoringCodec codec, Duration readTimeout, boolean reused)
+            throws IOException {
+        final AtomicBoolean timedOut = new AtomicBoolean();
+        final ScheduledFuture<?> timeout = timer.schedule(() -> {
+            timedOut.set(true);
+            conn.closeQuietly();
+        }, readTimeout.toNanos(), TimeUnit.NANOSECONDS);
+        try {
+            conn.sawData = false;
+            writeRequest(conn, target, body, length, codec);
+            final ParsedResponse parsed = readResponse(conn);
+            // Once the timer has fired (or is firing) it closes the channel, so it must not be pooled.
+            if (parsed.keepAlive && timeout.cancel(false) && !timedOut.get()) {
+                pool.idle.offerFirst(conn);
+            } else {
+                conn.closeQuietly();
+            }
+            return new ScorerResponse(parsed.status, parsed.contentType, new ByteArrayInputStream(parsed.body),
+                    pool.permits::release);
+        } catch (IOException e) {
+            conn.closeQuietly();
+            // A connection the scorer closed while idle fails on the write (EPIPE, reset) or with EOF on the read.
+            if (reused && !conn.sawData && !timedOut.get()) throw new StaleConnectionException(e);
+            if (timedOut.get()) {
+                throw new HttpTimeoutException("RBA scorer at " + pool.address + " did not answer within "
+                        + readTimeout.toMillis() + " ms");
+            }
+            throw e;
+        } finally {
+            timeout.cancel(false);
+        }
+    }
+
+    private static void writeRequest(Connection conn, String target, byte[] body, int length, ScoringCodec codec)
+            throws IOException {
+        final String head = "POST " + target + " HTTP/1.1\r\n"
+                + "Host: localhost\r\n"
+                + "Content-Type: " + codec.contentType() + "\r\n"
+                + "Accept: " + codec.accept() + "\r\n"
+                + "Content-Length: " + length + "\r\n"
+                + "\r\n";
+        final ByteBuffer[] buffers = {
+                ByteBuffer.wrap(head.getBytes(StandardCharsets.US_ASCII)), ByteBuffer.wrap(body, 0, length)
+        };
+        while (buffers[1].hasRemaining()) {
+            conn.channel.write(buffers);
+        }
+    }
+
+    private record ParsedResponse(int status, String contentType, byte[] body, boolean keepAlive) {
+    }
+
+    private static ParsedResponse readResponse(Connection conn) throws IOException {
+        final String statusLine = conn.readLine();
+        // "HTTP/1.1 200 OK"
+        final String[] parts = statusLine.split(" ", 3);
+        if (parts.length < 2 || !parts[0].startsWith("HTTP/1.")) {
+            throw new IOException("Malformed status line from RBA scorer: " + statusLine);
+        }
+        final int status;
+        try {
+            status = Integer.parseInt(parts[1]);
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed status line from RBA scorer: " + statusLine, e);
+        }
+
+        long contentLength = -1;
+        boolean chunked = false;
+        String contentType = null;
+        boolean keepAlive = "HTTP/1.1".equals(parts[0]);
+        int headerBytes = statusLine.length();
+        String line;
+        while (!(line = conn.readLine()).isEmpty()) {
+            headerBytes += line.length();
+            if (headerBytes > MAX_HEADER_BYTES) throw new IOException("RBA scorer response headers too large");
+            final int colon = line.indexOf(':');
+            if (colon <= 0) continue;
+            final String name = line.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+            final String value = line.substring(colon + 1).trim();
+            switch (name) {
+                case "content-length" -> {
+                    try {
+                        contentLength = Long.parseLong(value);
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Invalid Content-Length from RBA scorer: " + value, e);
+                    }
+                }
+                case "content-type" -> contentType = value;
+                case "transfer-encoding" -> chunked = value.toLowerCase(Locale.ROOT).contains("chunked");
+                case "connection" -> keepAlive = !value.equalsIgnoreCase("close");
+                default -> {
+                }
+            }
+        }
+
+        final byte[] body;
+        if (chunked) {
+            body = readChunked(conn);
+        } else if (contentLength >= 0) {
+            if (contentLength > MAX_BODY_BYTES) throw new IOException("RBA scorer response too large");
+            body = conn.readFully((int) contentLength);
+        } else {
+            body = conn.readToEof(MAX_BODY_BYTES);
+            keepAlive = false;
+        }
+        return new ParsedResponse(status, contentType, body, keepAlive);
+    }
+
+    private static byte[] readChunked(Connection conn) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        while (true) {
+            final String sizeLine = conn.readLine();
+            final int semicolon = sizeLine.indexOf(';');
+            final int size;
+            try {
+                size = Integer.parseInt((semicolon >= 0 ? sizeLine.substring(0, semicolon) : sizeLine).trim(), 16);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid chunk size from RBA scorer: " + sizeLine, e);
+            }
+            if (size == 0) break;
+            if (size < 0 || out.size() + size > MAX_BODY_BYTES) throw new IOException("RBA scorer response too large");
+            out.write(conn.readFully(size));
+            conn.expect(CRLF);
+        }
+        // Trailers, if any, end with an empty line.
+        while (!conn.readLine().isEmpty()) {
+            // ignore
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        timer.shutdownNow();
+        for (SocketPool pool : pools.values()) {
+            Connection c;
+            while ((c = pool.idle.pollFirst()) != null) c.closeQuietly();
+        }
+    }
+
+    private final class SocketPool {
+        final UnixDomainSocketAddress address;
+        final Semaphore permits = new Semaphore(maxConnectionsPerEndpoint);
+        final Deque<Connection> idle = new ConcurrentLinkedDeque<>();
+
+        SocketPool(String path) {
+            this.address = UnixDomainSocketAddress.of(path);
+        }
+
+        Connection open() throws IOException {
+            final SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+            try {
+                channel.connect(address);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            return new Connection(channel);
+        }
+    }
+
+    /**
+     * A pooled connection and its read buffer, which is kept in read mode between calls.
+     */
+    private static final class Connection {
+        final SocketChannel channel;
+        final ByteBuffer in = ByteBuffer.allocate(8192).flip();
+        boolean sawData;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        private void fill() throws IOException {
+            in.compact();
+            final int n;
+            try {
+                n = channel.read(in);
+            } finally {
+                in.flip();
+            }
+            if (n < 0) throw new EOFException("RBA scorer closed the connection");
+            sawData = true;
+        }
+
+        String readLine() throws IOException {
+            final StringBuilder sb = new StringBuilder();
+            while (true) {
+                while (in.hasRemaining()) {
+                    final byte b = in.get();
+                    if (b == '\n') {
+                        final int len = sb.length();
+                        if (len > 0 && sb.charAt(len - 1) == '\r') sb.setLength(len - 1);
+                        return sb.toString();
+                    }
+                    if (sb.length() >= MAX_HEADER_BYTES) throw new IOException("RBA scorer header line too long");
+                    sb.append((char) (b & 0xff));
+                }
+                fill();
+            }
+        }
+
+        byte[] readFully(int length) throws IOException {
+            final byte[] out = new byte[length];
+            int off = 0;
+            while (off < length) {
+                if (!in.hasRemaining()) fill();
+                final int n = Math.min(in.remaining(), length - off);
+                in.get(out, off, n);
+                off += n;
+            }
+            return out;
+        }
+
+        byte[] readToEof(int max) throws IOException {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            while (true) {
+                if (in.hasRemaining()) {
+                    if (out.size() + in.remaining() > max) throw new IOException("RBA scorer response too large");
+                    out.write(in.array(), in.arrayOffset() + in.position(), in.remaining());
+                    in.position(in.limit());
+                }
+                try {
+                    fill();
+                } catch (EOFException e) {
+                    return out.toByteArray();
+                }
+            }
+        }
+
+        void expect(byte[] bytes) throws IOException {
+            for (byte expected : bytes) {
+                if (!in.hasRemaining()) fill();
+                if (in.get() != expected) throw new IOException("Malformed chunked response from RBA scorer");
+            }
+        }
+
+        void closeQuietly() {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // Already broken; nothing to do.
+            }
+        }
+    }
+
+    /**
+     * A pooled connection turned out to have been closed by the scorer before this request.
+     */
+    private static final class StaleConnectionException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        StaleConnectionException(IOException cause) {
+            super(cause);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2025 Sam Packer
+ *
+ * This software is licensed under the PolyForm Noncommercial License 1.0.0.
+ *
+ * You may use, copy, modify, and distribute this software for noncommercial purposes only.
+ * Commercial use of this software, in whole or in part, is prohibited.
+ *
+ * See the full license text at:
+ * https://polyformproject.org/licenses/noncommercial/1.0.0/
+ * or in the LICENSE.md file included with this source code.
+ */
+
+package com.sampacker.shibboleth.rba;
+
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Sliding-window login velocity per user and per IP, kept in process because a stateless scorer behind a load
+ * balancer cannot count: logins per user, logins per IP, and distinct users per IP within the window.
+ * <p>
+ * Each table is a fixed number of direct-mapped slots keyed by a 64-bit hash of the key; a colliding key takes the
+ * slot over and starts from zero, which bounds memory at the cost of occasionally forgetting a quiet key. A slot
+ * has a ring of {@link #BUCKETS} time buckets covering the window. Each bucket is one {@code long} packing the
+ * bucket's epoch and its count, so a stale bucket is reset and incremented in the same compare-and-set. Distinct
+ * users are estimated per bucket with a 64-bit linear-counting bitmap, which is within about 10% up to a hundred
+ * or so users and saturates at a few hundred.
+ * <p>
+ * Everything lives in primitive atomic arrays: updates and reads take no locks and allocate nothing, and threads
+ * only contend when they touch the same key. Values are approximate under races at bucket boundaries.
+ */
+final class VelocityCounters {
+    static final int BUCKETS = 6;
+
+    /**
+     * Payload fields this adds, so other enrichments can avoid them.
+     */
+    static final Set<String> FIELDS = Set.of("userLogins", "ipLogins", "ipDistinctUsers");
+
+    private static final int COUNT_BITS = 24;
+    private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+
+    private final long origin = System.nanoTime();
+    private final long bucketNanos;
+    private final Table users;
+    private final Table ips;
+
+    VelocityCounters(int capacity, Duration window) {
+        this.bucketNanos = Math.max(1, window.toNanos() / BUCKETS);
+        this.users = new Table(capacity, false);
+        this.ips = new Table(capacity, true);
+    }
+
+    /**
+     * Count a login.
+     */
+    void record(String username, String ipAddress) {
+        final long epoch = epoch();
+        if (username != null) users.increment(hash(username), epoch);
+        if (ipAddress != null) {
+            final int slot = ips.increment(hash(ipAddress), epoch);
+            if (username != null) ips.markDistinct(slot, epoch, hash(username));
+        }
+    }
+
+    long userLogins(String username) {
+        return username == null ? 0 : users.count(hash(username), epoch());
+    }
+
+    long ipLogins(String ipAddress) {
+        return ipAddress == null ? 0 : ips.count(hash(ipAddress), epoch());
+    }
+
+    long distinctUsers(String ipAddress) {
+        return ipAddress == null ? 0 : ips.distinct(hash(ipAddress), epoch());
+    }
+
+    /**
+     * @return the request with the current velocity values added, marked per-login since they change every login
+     */
+    ScoringRequest addFeatures(ScoringRequest request, String username, String ipAddress) {
+        return request.toBuilder()
+                .field("userLogins", userLogins(username))
+                .field("ipLogins", ipLogins(ipAddress))
+                .field("ipDistinctUsers", distinctUsers(ipAddress))
+                .perLogin()
+                .build();
+    }
+
+    private long epoch() {
+        return (System.nanoTime() - origin) / bucketNanos + 1;
+    }
+
+    /**
+     * 64-bit FNV-1a over the UTF-16 units, finished with the murmur3 mixer so the high bits used for the distinct
+     * bitmaps depend on every character. Never 0, which marks an empty slot.
+     */
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h = (h ^ key.charAt(i)) * 0x100000001b3L;
+        }
+        h = (h ^ h >>> 33) * 0xff51afd7ed558ccdL;
+        h = (h ^ h >>> 33) * 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h == 0 ? 1 : h;
+    }
+
+    private static final class Table {
+        private final AtomicLongArray keys;
+        private final AtomicLongArray buckets;
+        private final AtomicLongArray distinct;
+        private final int mask;
+
+        Table(int capacity, boolean trackDistinct) {
+            final int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+            this.mask = size - 1;
+            this.keys = new AtomicLongArray(size);
+            this.buckets = new AtomicLongArray(size * BUCKETS);
+            this.distinct = trackDistinct ? new AtomicLongArray(size * BUCKETS) : null;
+        }
+
+        /**
+         * @return the slot now holding the key
+         */
+        int increment(long key, long epoch) {
+            final int slot = (int) (key ^ key >>> 32) & mask;
+            final long current = keys.get(slot);
+            if (current != key && keys.compareAndSet(slot, current, key)) {
+                // Took the slot over from another key: forget its history.
+                for (int b = 0; b < BUCKETS; b++) {
+                    buckets.set(slot * BUCKETS + b, 0);
+                    if (distinct != null) distinct.set(slot * BUCKETS + b, 0);
+                }
+            }
+            final int index = slot * BUCKETS + (int) (epoch % BUCKETS);
+            while (true) {
+                final long packed = buckets.get(index);
+                final boolean stale = packed >>> COUNT_BITS != epoch;
+                final long count = stale ? 0 : packed & COUNT_MASK;
+                final long updated = epoch << COUNT_BITS | Math.min(count + 1, COUNT_MASK);
+                if (buckets.compareAndSet(index, packed, updated)) {
+                    if (stale && distinct != null) distinct.set(index, 0);
+                    return slot;
+                }
+            }
+        }
+
+        void markDistinct(int slot, long epoch, long member) {
+            final int index = slot * BUCKETS + (int) (epoch % BUCKETS);
+            final long bit = 1L << (member >>> 58);
+            while (true) {
+                final long bits = distinct.get(index);
+                if ((bits & bit) != 0 || distinct.compareAndSet(index, bits, bits | bit)) return;
+            }
+        }
+
+        long count(long key, long epoch) {
+            final int slot = (int) (key ^ key >>> 32) & mask;
+            if (keys.get(slot) != key) return 0;
+            long total = 0;
+            for (int b = 0; b < BUCKETS; b++) {
+                final long packed = buckets.get(slot * BUCKETS + b);
+                if (epoch - (packed >>> COUNT_BITS) < BUCKETS) total += packed & COUNT_MASK;
+            }
+            return total;
+        }
+
+        long distinct(long key, long epoch) {
+            final int slot = (int) (key ^ key >>> 32) & mask;
+            if (keys.get(slot) != key) return 0;
+            long union = 0;
+            for (int b = 0; b < BUCKETS; b++) {
+                final int index = slot * BUCKETS + b;
+                if (epoch - (buckets.get(index) >>> COUNT_BITS) < BUCKETS) union |= distinct.get(index);
+            }
+            final int zeros = Long.SIZE - Long.bitCount(union);
+            if (zeros == 0) return Long.SIZE * 4;  // Saturated; a floor rather than an estimate.
+            // Linear counting: n = -m ln(V), V being the fraction of unset bits.
+            return Math.round(-Long.SIZE * Math.log((double) zeros / Long.SIZE));
+        }
+    }
+}
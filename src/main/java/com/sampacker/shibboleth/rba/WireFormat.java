@@ -0,0 +1,29 @@
+/*
+ * Copyright (c) 2025 Sam Packer
+ *
+ * This software is licensed under the PolyForm Noncommercial License 1.0.0.
+ *
+ * You may use, copy, modify, and distribute this software for noncommercial purposes only.
+ * Commercial use of this software, in whole or in part, is prohibited.
+ *
+ * See the full license text at:
+ * https://polyformproject.org/licenses/noncommercial/1.0.0/
+ * or in the LICENSE.md file included with this source code.
+ */
+
+package com.sampacker.shibboleth.rba;
+
+/**
+ * Encoding of scoring requests sent to the scorer.
+ */
+public enum WireFormat {
+    /**
+     * JSON, as understood by the reference Flask scorer.
+     */
+    JSON,
+
+    /**
+     * CBOR (RFC 8949), a compact binary encoding of the same fields. The scorer may still answer in JSON.
+     */
+    CBOR
+}
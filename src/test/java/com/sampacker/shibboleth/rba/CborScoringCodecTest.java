@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2025 Sam Packer
+ *
+ * This software is licensed under the PolyForm Noncommercial License 1.0.0.
+ *
+ * You may use, copy, modify, and distribute this software for noncommercial purposes only.
+ * Commercial use of this software, in whole or in part, is prohibited.
+ *
+ * See the full license text at:
+ * https://polyformproject.org/licenses/noncommercial/1.0.0/
+ * or in the LICENSE.md file included with this source code.
+ */
+
+package com.sampacker.shibboleth.rba;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Decodes hand-assembled CBOR responses, with every number encoding the scorer might send for a field and the
+ * 8-byte arguments that don't fit a signed long.
+ */
+class CborScoringCodecTest {
+    private static final CborScoringCodec CODEC = CborScoringCodec.INSTANCE;
+
+    @Test
+    void decodesEveryNumberEncoding() throws IOException {
+        assertEquals(0.0, score(new Cbor().raw(0x00)));
+        assertEquals(23.0, score(new Cbor().raw(0x17)));
+        assertEquals(255.0, score(new Cbor().raw(0x18, 0xFF)));
+        assertEquals(-500.0, score(new Cbor().raw(0x39, 0x01, 0xF3)));
+        assertEquals(0.5, score(new Cbor().raw(0xF9, 0x38, 0x00)));
+        assertEquals(0.25, score(new Cbor().raw(0xFA, 0x3E, 0x80, 0x00, 0x00)));
+        assertEquals(0.1, score(new Cbor().raw(0xFB).uint64(Double.doubleToLongBits(0.1))));
+    }
+
+    @Test
+    void readsEightByteArgumentsAsUnsigned() throws IOException {
+        // 2^63 and 2^64 - 1 are negative as a long; a score that large must not come out as a low risk.
+        assertEquals(0x1p63, score(new Cbor().raw(0x1B).uint64(Long.MIN_VALUE)));
+        assertEquals(0x1p64, score(new Cbor().raw(0x1B).uint64(-1L)));
+        assertEquals(-0x1p64, score(new Cbor().raw(0x3B).uint64(-1L)));
+        assertEquals(9.223372036854775807E18, score(new Cbor().raw(0x1B).uint64(Long.MAX_VALUE)));
+    }
+
+    @Test
+    void ignoresATtlTooLargeToUse() throws IOException {
+        final ScoreResult result = decode(new Cbor().map(2)
+                .text("threatScore").raw(0xF9, 0x00, 0x00)
+                .text("ttl").raw(0x1B).uint64(-1L));
+
+        assertNull(result.ttl());
+    }
+
+    @Test
+    void rejectsLengthsBeyondTheResponseLimit() {
+        // Text keys and values, and containers, whose 8-byte length has the top bit set.
+        assertTooLarge(new Cbor().map(1).raw(0x7B).uint64(Long.MIN_VALUE));
+        assertTooLarge(new Cbor().map(2).text("threatScore").raw(0x00).text("modelVersion").raw(0x7B).uint64(-1L));
+        assertTooLarge(new Cbor().map(2).text("threatScore").raw(0x00).text("extra").raw(0x9B).uint64(-1L));
+        assertTooLarge(new Cbor().raw(0xBB).uint64(Long.MIN_VALUE));
+    }
+
+    @Test
+    void skipsUnknownFieldsOfAnyShape() throws IOException {
+        final ScoreResult result = decode(new Cbor().raw(0xBF)
+                .text("features").raw(0x9F, 0x01, 0xF5, 0xF6, 0xFF)
+                .text("explain").map(1).text("tor").raw(0xC1, 0x1A, 0, 0, 0, 1)
+                .raw(0x01).text("integer key")
+                .text("threatScore").raw(0xF9, 0x3C, 0x00)
+                .text("ttl").raw(0x18, 60)
+                .text("modelVersion").text("m-7")
+                .raw(0xFF));
+
+        assertEquals(1.0, result.threatScore());
+        assertEquals(Duration.ofSeconds(60), result.ttl());
+        assertEquals("m-7", result.modelVersion());
+    }
+
+    @Test
+    void rejectsMalformedResponses() {
+        assertThrows(IOException.class, () -> decode(new Cbor().map(1).text("ttl").raw(0x01)));
+        assertThrows(IOException.class, () -> decode(new Cbor().map(1).text("threatScore").text("high")));
+        assertThrows(IOException.class, () -> decode(new Cbor().map(1).text("threatScore").raw(0xF9, 0x7C, 0x00)));
+        assertThrows(IOException.class, () -> decode(new Cbor().map(2).text("threatScore").raw(0x00)));
+        assertThrows(IOException.class, () -> decode(new Cbor().raw(0x80)));
+    }
+
+    @Test
+    void decodesBatchesOfTheExpectedSize() throws IOException {
+        final Cbor batch = new Cbor().raw(0x82)
+                .map(1).text("threatScore").raw(0x00)
+                .map(1).text("threatScore").raw(0x01);
+
+        final ScoreResult[] results = CODEC.decodeBatch(new ByteArrayInputStream(batch.bytes()), 2);
+        assertEquals(0.0, results[0].threatScore());
+        assertEquals(1.0, results[1].threatScore());
+        assertThrows(IOException.class, () -> CODEC.decodeBatch(new ByteArrayInputStream(batch.bytes()), 3));
+    }
+
+    private static double score(Cbor value) throws IOException {
+        return decode(new Cbor().map(1).text("threatScore").raw(value.bytes())).threatScore();
+    }
+
+    private static ScoreResult decode(Cbor body) throws IOException {
+        return CODEC.decode(new ByteArrayInputStream(body.bytes()));
+    }
+
+    private static void assertTooLarge(Cbor body) {
+        final IOException e = assertThrows(IOException.class, () -> decode(body));
+        assertTrue(e.getMessage().contains("too large"), e.getMessage());
+    }
+
+    /**
+     * Assembles CBOR by hand, so the tests control every encoding choice.
+     */
+    private static final class Cbor {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        Cbor map(int pairs) {
+            return raw(0xA0 | pairs);
+        }
+
+        Cbor text(String s) {
+            final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            raw(0x60 | bytes.length);
+            return raw(bytes);
+        }
+
+        Cbor uint64(long value) {
+            for (int shift = 56; shift >= 0; shift -= 8) out.write((int) (value >>> shift));
+            return this;
+        }
+
+        Cbor raw(int... bytes) {
+            for (int b : bytes) out.write(b);
+            return this;
+        }
+
+        Cbor raw(byte[] bytes) {
+            out.write(bytes, 0, bytes.length);
+            return this;
+        }
+
+        byte[] bytes() {
+            return out.toByteArray();
+        }
+    }
+}
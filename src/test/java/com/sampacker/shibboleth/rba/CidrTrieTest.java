@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2025 Sam Packer
+ *
+ * This software is licensed under the PolyForm Noncommercial License 1.0.0.
+ *
+ * You may use, copy, modify, and distribute this software for noncommercial purposes only.
+ * Commercial use of this software, in whole or in part, is prohibited.
+ *
+ * See the full license text at:
+ * https://polyformproject.org/licenses/noncommercial/1.0.0/
+ * or in the LICENSE.md file included with this source code.
+ */
+
+package com.sampacker.shibboleth.rba;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Longest-prefix matches over nested IPv4 and IPv6 prefixes, looked up with every spelling of an IPv4 client the
+ * servlet container or a proxy might hand us.
+ */
+class CidrTrieTest {
+
+    @Test
+    void findsTheLongestMatchingPrefix() {
+        final CidrTrie<String> trie = trie("10.0.0.0/8", "10.1.0.0/16", "10.1.2.0/24", "10.1.2.3", "0.0.0.0/0");
+
+        assertEquals("10.1.2.3", find(trie, "10.1.2.3"));
+        assertEquals("10.1.2.0/24", find(trie, "10.1.2.4"));
+        assertEquals("10.1.0.0/16", find(trie, "10.1.3.1"));
+        assertEquals("10.0.0.0/8", find(trie, "10.2.0.1"));
+        assertEquals("0.0.0.0/0", find(trie, "192.0.2.1"));
+    }
+
+    @Test
+    void doesNotDependOnInsertionOrder() {
+        final CidrTrie<String> trie = trie("10.1.2.3", "10.1.2.0/24", "10.0.0.0/8", "10.1.0.0/16", "10.128.0.0/9");
+
+        assertEquals("10.1.2.3", find(trie, "10.1.2.3"));
+        assertEquals("10.1.2.0/24", find(trie, "10.1.2.200"));
+        assertEquals("10.0.0.0/8", find(trie, "10.127.0.1"));
+        assertEquals("10.128.0.0/9", find(trie, "10.200.0.1"));
+        assertNull(find(trie, "11.0.0.1"));
+        assertEquals(5, trie.size());
+    }
+
+    @Test
+    void matchesIpv4PrefixesForIpv4MappedAddresses() {
+        final CidrTrie<String> trie = trie("192.0.2.0/24", "192.0.2.128/25");
+
+        assertEquals("192.0.2.0/24", find(trie, "::ffff:192.0.2.1"));
+        assertEquals("192.0.2.128/25", find(trie, "::FFFF:192.0.2.200"));
+        assertEquals("192.0.2.128/25", find(trie, "::ffff:c000:2c8"));
+        assertEquals("192.0.2.128/25", find(trie, "0:0:0:0:0:ffff:c000:02c8"));
+        assertEquals("192.0.2.128/25", find(trie, "[::ffff:192.0.2.200]"));
+        // IPv4-compatible (::a.b.c.d) and NAT64 addresses are IPv6 addresses, not the IPv4 client.
+        assertNull(find(trie, "::192.0.2.1"));
+        assertNull(find(trie, "64:ff9b::192.0.2.1"));
+    }
+
+    @Test
+    void matchesIpv6PrefixesCoveringMappedAddresses() {
+        final CidrTrie<String> trie = trie("::ffff:0:0/96", "::ffff:192.0.2.0/120", "2001:db8::/32", "::/0");
+
+        assertEquals("::ffff:0:0/96", find(trie, "198.51.100.1"));
+        assertEquals("::ffff:192.0.2.0/120", find(trie, "192.0.2.9"));
+        assertEquals("2001:db8::/32", find(trie, "2001:db8:ffff::1"));
+        assertEquals("::/0", find(trie, "2001:db9::1"));
+        assertEquals("::/0", find(trie, "::1"));
+    }
+
+    @Test
+    void keepsIpv4AndIpv6DefaultRoutesApart() {
+        final CidrTrie<String> trie = trie("0.0.0.0/0");
+
+        assertEquals("0.0.0.0/0", find(trie, "203.0.113.1"));
+        assertNull(find(trie, "2001:db8::1"));
+        assertNull(find(trie, "::"));
+    }
+
+    @Test
+    void ignoresHostBitsAndMergesDuplicates() {
+        final CidrTrie<String> trie = new CidrTrie<>();
+        trie.put("10.9.9.9/8", "first", (a, b) -> a + "+" + b);
+        trie.put("10.0.0.0/8", "second", (a, b) -> a + "+" + b);
+        trie.put("2001:db8::1/32", "v6", (a, b) -> a + "+" + b);
+
+        assertEquals("first+second", find(trie, "10.200.0.1"));
+        assertEquals("v6", find(trie, "2001:db8:1::"));
+        assertEquals(2, trie.size());
+    }
+
+    @Test
+    void rejectsInvalidPrefixes() {
+        final CidrTrie<String> trie = new CidrTrie<>();
+        for (String cidr : new String[] {"10.0.0.0/33", "2001:db8::/129", "10.0.0.0/-1", "10.0.0.0/", "10.0.0.0/x",
+                "idp.example.org/24", "010.0.0.0/8", "10.0.0/8", "1::2::3/64", ""}) {
+            assertThrows(IllegalArgumentException.class, () -> trie.put(cidr, cidr, (a, b) -> b), cidr);
+        }
+        assertEquals(0, trie.size());
+    }
+
+    private static CidrTrie<String> trie(String... prefixes) {
+        final CidrTrie<String> trie = new CidrTrie<>();
+        for (String prefix : prefixes) trie.put(prefix, prefix, (a, b) -> b);
+        return trie;
+    }
+
+    private static String find(CidrTrie<String> trie, String ip) {
+        final long[] bits = new long[2];
+        assertEquals(true, IpLiterals.parse(ip, bits) != IpLiterals.INVALID, ip);
+        return trie.find(bits[0], bits[1]);
+    }
+}
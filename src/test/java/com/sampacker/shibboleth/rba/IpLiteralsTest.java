@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2025 Sam Packer
+ *
+ * This software is licensed under the PolyForm Noncommercial License 1.0.0.
+ *
+ * You may use, copy, modify, and distribute this software for noncommercial purposes only.
+ * Commercial use of this software, in whole or in part, is prohibited.
+ *
+ * See the full license text at:
+ * https://polyformproject.org/licenses/noncommercial/1.0.0/
+ * or in the LICENSE.md file included with this source code.
+ */
+
+package com.sampacker.shibboleth.rba;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Parses the address spellings found in X-Forwarded-For and servlet remote addresses, and rejects anything a DNS
+ * lookup would be needed for.
+ */
+class IpLiteralsTest {
+
+    @Test
+    void parsesIpv4() {
+        assertArrayEquals(bytes(192, 0, 2, 1), IpLiterals.parse("192.0.2.1"));
+        assertArrayEquals(bytes(0, 0, 0, 0), IpLiterals.parse("0.0.0.0"));
+        assertArrayEquals(bytes(255, 255, 255, 255), IpLiterals.parse("255.255.255.255"));
+        assertArrayEquals(bytes(10, 0, 0, 1), IpLiterals.parse("[10.0.0.1]"));
+    }
+
+    @Test
+    void parsesEveryIpv6Shorthand() {
+        assertArrayEquals(v6(0, 0, 0, 0, 0, 0, 0, 0), IpLiterals.parse("::"));
+        assertArrayEquals(v6(0, 0, 0, 0, 0, 0, 0, 1), IpLiterals.parse("::1"));
+        assertArrayEquals(v6(1, 0, 0, 0, 0, 0, 0, 0), IpLiterals.parse("1::"));
+        assertArrayEquals(v6(0x2001, 0xdb8, 0, 0, 8, 0x800, 0x200c, 0x417a),
+                IpLiterals.parse("2001:DB8::8:800:200c:417A"));
+        assertArrayEquals(v6(1, 2, 3, 4, 5, 6, 7, 0), IpLiterals.parse("1:2:3:4:5:6:7::"));
+        assertArrayEquals(v6(0, 1, 2, 3, 4, 5, 6, 7), IpLiterals.parse("::1:2:3:4:5:6:7"));
+        assertArrayEquals(v6(1, 2, 3, 4, 5, 6, 7, 8), IpLiterals.parse("0001:2:3:4:5:6:7:8"));
+        assertArrayEquals(v6(0xfe80, 0, 0, 0, 0, 0, 0, 1), IpLiterals.parse("[fe80::1%eth0]"));
+        assertArrayEquals(v6(1, 2, 3, 4, 5, 6, 0x0102, 0x0304), IpLiterals.parse("1:2:3:4:5:6:1.2.3.4"));
+        assertArrayEquals(v6(0, 0, 0, 0, 0, 0, 0xc000, 0x201), IpLiterals.parse("::192.0.2.1"));
+    }
+
+    @Test
+    void treatsIpv4MappedAddressesAsIpv4() {
+        final long[] bits = new long[2];
+
+        assertEquals(IpLiterals.IPV4, IpLiterals.parse("::ffff:192.0.2.1", bits));
+        assertEquals(0, bits[0]);
+        assertEquals(IpLiterals.IPV4_MAPPED_LO | 0xc000_0201L, bits[1]);
+        assertEquals(IpLiterals.IPV4, IpLiterals.parse("::FFFF:c000:201", bits));
+        assertEquals(IpLiterals.IPV4_MAPPED_LO | 0xc000_0201L, bits[1]);
+        assertArrayEquals(bytes(192, 0, 2, 1), IpLiterals.parse("0:0:0:0:0:ffff:192.0.2.1"));
+
+        assertEquals(IpLiterals.IPV6, IpLiterals.parse("::192.0.2.1", bits));
+        assertEquals(IpLiterals.IPV6, IpLiterals.parse("::fffe:c000:201", bits));
+        assertEquals(IpLiterals.IPV6, IpLiterals.parse("1::ffff:c000:201", bits));
+    }
+
+    @Test
+    void rejectsAnythingButALiteral() {
+        // Arabic-Indic and fullwidth digits are digits to Character.digit, but not in an address.
+        for (String s : new String[] {null, "", "idp.example.org", "localhost", "1.2.3", "1.2.3.4.5", "256.1.1.1",
+                "01.2.3.4", "1.2.3.4 ", " 1.2.3.4", "1..2.3", "0x7f.0.0.1", ":::", "1::2::3", ":1::", "1:",
+                "1:2:3:4:5:6:7:8:9", "1:2:3:4:5:6:7::8", "12345::", "1:2:3:4:5:6:7:1.2.3.4", "::1.2.3", "g::1",
+                "[::1", "\u0661::", "fe80::\uff11", "\u0661.2.3.4"}) {
+            assertNull(IpLiterals.parse(s), s);
+        }
+    }
+
+    private static byte[] bytes(int... octets) {
+        final byte[] out = new byte[octets.length];
+        for (int i = 0; i < octets.length; i++) out[i] = (byte) octets[i];
+        return out;
+    }
+
+    private static byte[] v6(int... groups) {
+        final byte[] out = new byte[16];
+        for (int i = 0; i < 8; i++) {
+            out[i * 2] = (byte) (groups[i] >>> 8);
+            out[i * 2 + 1] = (byte) groups[i];
+        }
+        return out;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2025 Sam Packer
+ *
+ * This software is licensed under the PolyForm Noncommercial License 1.0.0.
+ *
+ * You may use, copy, modify, and distribute this software for noncommercial purposes only.
+ * Commercial use of this software, in whole or in part, is prohibited.
+ *
+ * See the full license text at:
+ * https://polyformproject.org/licenses/noncommercial/1.0.0/
+ * or in the LICENSE.md file included with this source code.
+ */
+
+package com.sampacker.shibboleth.rba;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Decodes scorer responses written the way other JSON libraries might write them: in any field order, with
+ * escapes, exponents and fields we don't know.
+ */
+class JsonScoringCodecTest {
+    private static final JsonScoringCodec CODEC = JsonScoringCodec.INSTANCE;
+
+    @Test
+    void decodesTheKnownFields() throws IOException {
+        final ScoreResult result = decode("{\"threatScore\": 0.73, \"ttl\": 120, \"modelVersion\": \"2025-06-01\"}");
+
+        assertEquals(0.73, result.threatScore());
+        assertEquals(Duration.ofSeconds(120), result.ttl());
+        assertEquals("2025-06-01", result.modelVersion());
+    }
+
+    @Test
+    void parsesNumbersLikeDoubleParseDouble() throws IOException {
+        for (String number : new String[] {"0", "-0.5", "1", "0.1", "0.30000000000000004", "123456789012345",
+                "1234567890123456789", "1e-3", "2.5E+2", "0.00000000000000000001", "1.7976931348623157e308"}) {
+            assertEquals(Double.parseDouble(number), decode("{\"threatScore\":" + number + "}").threatScore(),
+                    number);
+        }
+    }
+
+    @Test
+    void skipsUnknownFieldsOfAnyShape() throws IOException {
+        final ScoreResult result = decode("{ \"explain\" : {\"tor\": [1, 2.5, {\"x\": null}], \"s\": \"}]\\\"\"},\n"
+                + "  \"flags\": [true, false], \"threat\\u0053core\": 5, \"modelVersion\": \"v\\u00312\\n\",\n"
+                + "  \"threatScore\": 0.2 }");
+
+        assertEquals(0.2, result.threatScore());
+        assertEquals("v12\n", result.modelVersion());
+        assertNull(result.ttl());
+    }
+
+    @Test
+    void ignoresOptionalFieldsOfTheWrongType() throws IOException {
+        final ScoreResult result = decode("{\"ttl\": \"soon\", \"modelVersion\": 7, \"threatScore\": 0.1}");
+
+        assertNull(result.ttl());
+        assertNull(result.modelVersion());
+        assertNull(decode("{\"threatScore\": 0.1, \"ttl\": -5}").ttl());
+        assertNull(decode("{\"threatScore\": 0.1, \"modelVersion\": \"" + "x".repeat(500) + "\"}").modelVersion());
+    }
+
+    @Test
+    void stopsReadingOnceEveryFieldIsSeen() throws IOException {
+        final ScoreResult result = decode("{\"threatScore\": 1, \"ttl\": 5, \"modelVersion\": null, \"rest\": ???");
+
+        assertEquals(1.0, result.threatScore());
+        assertEquals(Duration.ofSeconds(5), result.ttl());
+    }
+
+    @Test
+    void rejectsMalformedResponses() {
+        assertThrows(IOException.class, () -> decode("{\"ttl\": 5}"));
+        assertThrows(IOException.class, () -> decode("{\"threatScore\": \"high\"}"));
+        assertThrows(IOException.class, () -> decode("{\"threatScore\": 1e400}"));
+        assertThrows(IOException.class, () -> decode("{\"threatScore\": 0.5"));
+        assertThrows(IOException.class, () -> decode("{\"threatScore\" 0.5}"));
+        assertThrows(IOException.class, () -> decode("[{\"threatScore\": 0.5}]"));
+        assertThrows(IOException.class, () -> decode("{\"a\":" + "[".repeat(20) + "]".repeat(20)
+                + ", \"threatScore\": 0}"));
+        assertThrows(IOException.class, () -> decode("{\"threatScore\": " + "1".repeat(100) + "}"));
+    }
+
+    @Test
+    void decodesBatchesOfTheExpectedSize() throws IOException {
+        final String batch = "[{\"threatScore\": 0.1}, {\"ttl\": 1, \"threatScore\": 0.9, \"modelVersion\": \"m\"}]";
+
+        final ScoreResult[] results = CODEC.decodeBatch(stream(batch), 2);
+        assertEquals(0.1, results[0].threatScore());
+        assertEquals(0.9, results[1].threatScore());
+        assertEquals("m", results[1].modelVersion());
+        assertThrows(IOException.class, () -> CODEC.decodeBatch(stream(batch), 1));
+        assertThrows(IOException.class, () -> CODEC.decodeBatch(stream(batch), 3));
+        assertEquals(0, CODEC.decodeBatch(stream(" [ ] "), 0).length);
+    }
+
+    private static ScoreResult decode(String body) throws IOException {
+        return CODEC.decode(stream(body));
+    }
+
+    private static InputStream stream(String body) {
+        return new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8));
+    }
+}
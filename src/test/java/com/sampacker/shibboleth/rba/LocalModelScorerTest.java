@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) 2025 Sam Packer
+ *
+ * This software is licensed under the PolyForm Noncommercial License 1.0.0.
+ *
+ * You may use, copy, modify, and distribute this software for noncommercial purposes only.
+ * Commercial use of this software, in whole or in part, is prohibited.
+ *
+ * See the full license text at:
+ * https://polyformproject.org/licenses/noncommercial/1.0.0/
+ * or in the LICENSE.md file included with this source code.
+ */
+
+package com.sampacker.shibboleth.rba;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs a small hand-built model whose outputs were worked out independently (in double precision, outside Java),
+ * so the forward pass, the mapping from request fields to inputs, and the tiering thresholds are all pinned.
+ * <p>
+ * The fixture has five inputs, so the dense layer takes both its unrolled and its tail path:
+ * <pre>
+ * h0 = relu(0.5 z(ipLogins) + 0.25 z(userLogins) + z(datacenter) + 2 z(tor) - 0.5)
+ * h1 = relu(z(travelSpeedKmh))
+ * score = sigmoid(0.5 h0 + 0.25 h1 - 1)
+ * </pre>
+ * where z standardises with the means 10, 2, 0.2, 100, 0.05 and standard deviations 5, 2, 0.4, 400, 0.2.
+ */
+class LocalModelScorerTest {
+    private static final double TOLERANCE = 1e-6;
+
+    private static final String[] NAMES = {"ipLogins", "userLogins", "datacenter", "travelSpeedKmh", "tor"};
+    private static final float[] MEANS = {10, 2, 0.2f, 100, 0.05f};
+    private static final float[] STD_DEVS = {5, 2, 0.4f, 400, 0.2f};
+
+    private static final float[] AT_MEANS = {10, 2, 0.2f, 100, 0.05f};
+    private static final double AT_MEANS_SCORE = 0.2689414213699951;
+    private static final float[] BURST = {20, 4, 0.2f, 100, 0.05f};
+    private static final double BURST_SCORE = 0.34864513533394575;
+    private static final float[] BURST_FROM_DATACENTER = {40, 12, 1, 100, 0};
+    private static final double BURST_FROM_DATACENTER_SCORE = 0.8354835371034369;
+    private static final float[] TRAVEL = {10, 2, 0.2f, 4100, 0.05f};
+    private static final double TRAVEL_SCORE = 0.8175744761936437;
+    private static final float[] TOR = {10, 2, 0, 100, 1};
+    private static final double TOR_SCORE = 0.9626731126558704;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void reproducesKnownOutputs() throws IOException {
+        final LocalModelScorer scorer = LocalModelScorer.load(writeModel(AT_MEANS_SCORE));
+
+        assertEquals(AT_MEANS_SCORE, score(scorer, AT_MEANS), TOLERANCE);
+        assertEquals(BURST_SCORE, score(scorer, BURST), TOLERANCE);
+        assertEquals(BURST_FROM_DATACENTER_SCORE, score(scorer, BURST_FROM_DATACENTER), TOLERANCE);
+        assertEquals(TRAVEL_SCORE, score(scorer, TRAVEL), TOLERANCE);
+        assertEquals(TOR_SCORE, score(scorer, TOR), TOLERANCE);
+    }
+
+    @Test
+    void reportsModelMetadata() throws IOException {
+        final LocalModelScorer scorer = LocalModelScorer.load(writeModel(AT_MEANS_SCORE));
+        final ScoreResult result = scorer.score(request());
+
+        assertEquals("fixture-1", scorer.modelVersion());
+        assertEquals("fixture-1", result.modelVersion());
+        assertNull(result.ttl());
+        assertArrayEquals(NAMES, scorer.inputNames());
+    }
+
+    @Test
+    void mapsRequestFieldsToInputs() throws IOException {
+        final LocalModelScorer scorer = LocalModelScorer.load(writeModel(AT_MEANS_SCORE));
+
+        // Velocity counters arrive as longs, travel speed as a long, range categories as booleans.
+        final ScoringRequest tor = request()
+                .withField("ipLogins", 10L)
+                .withField("userLogins", 2L)
+                .withField("datacenter", false)
+                .withField("travelSpeedKmh", 100L)
+                .withField("tor", true);
+        assertEquals(TOR_SCORE, scorer.score(tor).threatScore(), TOLERANCE);
+
+        final ScoringRequest burst = request()
+                .withField("ipLogins", 40)
+                .withField("userLogins", 12.0)
+                .withField("datacenter", true)
+                .withField("tor", false);
+        // travelSpeedKmh is missing, so it takes its mean, as BURST_FROM_DATACENTER has it.
+        assertEquals(BURST_FROM_DATACENTER_SCORE, scorer.score(burst).threatScore(), TOLERANCE);
+    }
+
+    @Test
+    void usesTheMeanForMissingUnusableAndNonFiniteValues() throws IOException {
+        final LocalModelScorer scorer = LocalModelScorer.load(writeModel(AT_MEANS_SCORE));
+
+        assertEquals(AT_MEANS_SCORE, scorer.score(request()).threatScore(), TOLERANCE);
+        assertEquals(AT_MEANS_SCORE, scorer.score(request()
+                .withField("ipLogins", "many")
+                .withField("userLogins", Double.NaN)
+                .withField("travelSpeedKmh", Double.POSITIVE_INFINITY)
+                .withField("country", "US")).threatScore(), TOLERANCE);
+    }
+
+    @Test
+    void rejectsAModelThatFailsItsParityCheck() throws IOException {
+        final Path file = writeModel(AT_MEANS_SCORE + 10 * LocalModelScorer.PARITY_TOLERANCE);
+
+        final IOException e = assertThrows(IOException.class, () -> LocalModelScorer.load(file));
+        assertTrue(e.getMessage().contains("parity"), e.getMessage());
+    }
+
+    @Test
+    void rejectsMalformedFiles() throws IOException {
+        final Path notAModel = dir.resolve("not-a-model.bin");
+        Files.write(notAModel, new byte[] {'J', 'U', 'N', 'K', 0, 0, 0, 1});
+        assertThrows(IOException.class, () -> LocalModelScorer.load(notAModel));
+
+        final Path model = writeModel(AT_MEANS_SCORE);
+        final byte[] bytes = Files.readAllBytes(model);
+        final Path truncated = dir.resolve("truncated.bin");
+        Files.write(truncated, Arrays.copyOf(bytes, bytes.length - 3));
+        assertThrows(IOException.class, () -> LocalModelScorer.load(truncated));
+
+        final Path trailing = dir.resolve("trailing.bin");
+        Files.write(trailing, Arrays.copyOf(bytes, bytes.length + 1));
+        assertThrows(IOException.class, () -> LocalModelScorer.load(trailing));
+    }
+
+    @Test
+    void decidesClearCasesLocallyWhenTiered() throws Exception {
+        final LocalModelScorer local = LocalModelScorer.load(writeModel(AT_MEANS_SCORE));
+        final List<ScoringRequest> remoteCalls = new ArrayList<>();
+        final ScoreResult remoteResult = new ScoreResult(0.42, null, "remote");
+        final TieredScorer tiered = new TieredScorer(local, request -> {
+            remoteCalls.add(request);
+            return remoteResult;
+        }, 0.5, 0.2, e -> false, new RbaMetrics(null));
+
+        // At most threshold - band is accepted locally, at least threshold + band rejected locally.
+        assertEquals(AT_MEANS_SCORE, tiered.score(request(AT_MEANS)).threatScore(), TOLERANCE);
+        assertEquals(TOR_SCORE, tiered.score(request(TOR)).threatScore(), TOLERANCE);
+        assertEquals(BURST_FROM_DATACENTER_SCORE, tiered.score(request(BURST_FROM_DATACENTER)).threatScore(),
+                TOLERANCE);
+        assertTrue(remoteCalls.isEmpty());
+
+        // In the band: the remote scorer decides, and sees the provisional score.
+        assertSame(remoteResult, tiered.score(request(BURST)));
+        assertEquals(1, remoteCalls.size());
+        assertEquals(BURST_SCORE, ((Number) remoteCalls.get(0).fields().get("localScore")).doubleValue(),
+                TOLERANCE);
+    }
+
+    private static double score(LocalModelScorer scorer, float[] raw) {
+        return scorer.score(request(raw)).threatScore();
+    }
+
+    private static ScoringRequest request() {
+        return new ScoringRequest("jdoe", "203.0.113.7", "Mozilla/5.0");
+    }
+
+    private static ScoringRequest request(float[] raw) {
+        ScoringRequest request = request();
+        for (int i = 0; i < NAMES.length; i++) request = request.withField(NAMES[i], raw[i]);
+        return request;
+    }
+
+    /**
+     * Write the fixture model with one reference: the inputs at their means, expected to score {@code expected}.
+     */
+    private Path writeModel(double expected) throws IOException {
+        final Path file = dir.resolve("model-" + System.nanoTime() + ".rban");
+        try (OutputStream out = Files.newOutputStream(file);
+             DataOutputStream data = new DataOutputStream(out)) {
+            data.writeInt(0x5242_414E);
+            data.writeInt(1);
+            data.writeUTF("fixture-1");
+
+            data.writeInt(NAMES.length);
+            for (int i = 0; i < NAMES.length; i++) {
+                data.writeUTF(NAMES[i]);
+                data.writeFloat(MEANS[i]);
+                data.writeFloat(STD_DEVS[i]);
+            }
+
+            data.writeInt(2);
+            writeLayer(data, 5, 2, 1, new float[] {
+                    0.5f, 0.25f, 1, 0, 2,
+                    0, 0, 0, 1, 0
+            }, new float[] {-0.5f, 0});
+            writeLayer(data, 2, 1, 2, new float[] {0.5f, 0.25f}, new float[] {-1});
+
+            data.writeInt(1);
+            for (float value : AT_MEANS) data.writeFloat(value);
+            data.writeFloat((float) expected);
+        }
+        return file;
+    }
+
+    private static void writeLayer(DataOutputStream data, int in, int out, int activation, float[] weights,
+                                   float[] biases) throws IOException {
+        data.writeInt(in);
+        data.writeInt(out);
+        data.writeByte(activation);
+        for (float w : weights) data.writeFloat(w);
+        for (float b : biases) data.writeFloat(b);
+    }
+}
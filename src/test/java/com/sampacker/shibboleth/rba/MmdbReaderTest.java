@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2025 Sam Packer
+ *
+ * This software is licensed under the PolyForm Noncommercial License 1.0.0.
+ *
+ * You may use, copy, modify, and distribute this software for noncommercial purposes only.
+ * Commercial use of this software, in whole or in part, is prohibited.
+ *
+ * See the full license text at:
+ * https://polyformproject.org/licenses/noncommercial/1.0.0/
+ * or in the LICENSE.md file included with this source code.
+ */
+
+package com.sampacker.shibboleth.rba;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Looks up addresses in a small hand-built IPv4 database (24-bit records) whose records reach their fields through
+ * every pointer size and string lengths on both sides of every size encoding.
+ * <p>
+ * The tree splits the address space into:
+ * <pre>
+ * 0.0.0.0/2     country DE through an 11-bit pointer (to 2047), ASN as uint32, 28-byte organisation
+ * 64.0.0.0/2    country FR through a 19-bit pointer (just past 2047), coordinates, 29-byte organisation
+ * 128.0.0.0/2   country JP through a 27-bit pointer (to 526336), ASN as uint16, 285-byte organisation
+ * 192.0.0.0/3   key and country through 32-bit pointers, 65821-byte organisation under traits
+ * 224.0.0.0/4   a pointer past the end of the file
+ * 240.0.0.0/4   no data
+ * </pre>
+ */
+class MmdbReaderTest {
+    private static final int NODE_COUNT = 5;
+    private static final int SIZE0_TARGET = 2047;
+    private static final int SIZE2_TARGET = 526_336;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void followsPointersOfEverySize() throws IOException {
+        final MmdbReader reader = MmdbReader.open(writeDatabase());
+
+        assertEquals("DE", lookup(reader, "10.1.2.3").country());
+        assertEquals("FR", lookup(reader, "100.64.0.1").country());
+        assertEquals("JP", lookup(reader, "150.0.0.1").country());
+        assertEquals("JP", lookup(reader, "200.0.0.1").country());
+    }
+
+    @Test
+    void decodesEverySizeEncoding() throws IOException {
+        final MmdbReader reader = MmdbReader.open(writeDatabase());
+
+        final GeoRecord inline = lookup(reader, "10.1.2.3");
+        assertEquals(organisation(28), inline.asOrganization());
+        assertEquals(64_500, inline.asn());
+
+        final GeoRecord oneByte = lookup(reader, "100.64.0.1");
+        assertEquals(organisation(29), oneByte.asOrganization());
+        assertEquals(48.8566, oneByte.latitude());
+        assertEquals(2.3522, oneByte.longitude());
+
+        final GeoRecord twoBytes = lookup(reader, "150.0.0.1");
+        assertEquals(organisation(285), twoBytes.asOrganization());
+        assertEquals(2_497, twoBytes.asn());
+
+        assertEquals(organisation(65_821), lookup(reader, "200.0.0.1").asOrganization());
+    }
+
+    @Test
+    void returnsNothingForMissingOrBrokenData() throws IOException {
+        final MmdbReader reader = MmdbReader.open(writeDatabase());
+
+        assertNull(lookup(reader, "240.0.0.1"));
+        assertNull(lookup(reader, "230.0.0.1"));
+        assertNull(lookup(reader, "2001:db8::1"));
+    }
+
+    @Test
+    void matchesIpv4MappedAddressesAsIpv4() throws IOException {
+        final MmdbReader reader = MmdbReader.open(writeDatabase());
+
+        assertEquals("FR", lookup(reader, "::ffff:100.64.0.1").country());
+    }
+
+    @Test
+    void rejectsFilesWithoutValidMetadata() throws IOException {
+        final Path junk = dir.resolve("junk.mmdb");
+        Files.write(junk, new byte[] {1, 2, 3, 4});
+        assertThrows(IOException.class, () -> MmdbReader.open(junk));
+
+        final byte[] bytes = Files.readAllBytes(writeDatabase());
+        final Path truncated = dir.resolve("truncated.mmdb");
+        Files.write(truncated, Arrays.copyOf(bytes, bytes.length - 5));
+        assertThrows(IOException.class, () -> MmdbReader.open(truncated));
+    }
+
+    private static GeoRecord lookup(MmdbReader reader, String ip) {
+        final long[] bits = new long[2];
+        final int family = IpLiterals.parse(ip, bits);
+        return reader.lookup(family, bits[0], bits[1]);
+    }
+
+    private static String organisation(int length) {
+        final StringBuilder s = new StringBuilder(length);
+        for (int i = 0; i < length; i++) s.append((char) ('a' + i % 26));
+        return s.toString();
+    }
+
+    private Path writeDatabase() throws IOException {
+        final Data data = new Data();
+        data.padTo(SIZE0_TARGET);
+        data.map(1).string("iso_code").string("DE");
+        final int size1Target = data.offset();
+        data.map(1).string("iso_code").string("FR");
+        data.padTo(SIZE2_TARGET);
+        data.map(1).string("iso_code").string("JP");
+        final int countryKey = data.offset();
+        data.string("country");
+
+        final int de = data.offset();
+        data.map(3).string("country").pointer(0, SIZE0_TARGET)
+                .string("autonomous_system_number").uint(6, 64_500, 4)
+                .string("autonomous_system_organization").string(organisation(28));
+        final int fr = data.offset();
+        data.map(3).string("country").pointer(1, size1Target)
+                .string("location").map(2).string("latitude").real(48.8566).string("longitude").real(2.3522)
+                .string("autonomous_system_organization").string(organisation(29));
+        final int jp = data.offset();
+        data.map(3).string("country").pointer(2, SIZE2_TARGET)
+                .string("autonomous_system_number").uint(5, 2_497, 2)
+                .string("autonomous_system_organization").string(organisation(285));
+        final int traits = data.offset();
+        data.map(2).pointer(3, countryKey).pointer(3, SIZE2_TARGET)
+                .string("traits").map(1).string("autonomous_system_organization").string(organisation(65_821));
+        final int broken = data.offset();
+        data.map(1).string("country").pointer(3, Integer.MAX_VALUE - 16);
+
+        final ByteArrayOutputStream file = new ByteArrayOutputStream();
+        // node 0 splits on the first bit, nodes 1 to 4 on the second to fourth
+        node(file, 1, 2);
+        node(file, record(de), record(fr));
+        node(file, record(jp), 3);
+        node(file, record(traits), 4);
+        node(file, record(broken), NODE_COUNT);
+        file.write(new byte[16]);
+        file.write(data.bytes());
+        file.write(new byte[] {(byte) 0xAB, (byte) 0xCD, (byte) 0xEF});
+        file.write("MaxMind.com".getBytes(StandardCharsets.US_ASCII));
+        final Data metadata = new Data();
+        metadata.map(3).string("node_count").uint(6, NODE_COUNT, 4)
+                .string("record_size").uint(5, 24, 2)
+                .string("ip_version").uint(5, 4, 2);
+        file.write(metadata.bytes());
+
+        final Path path = dir.resolve("fixture-" + System.nanoTime() + ".mmdb");
+        Files.write(path, file.toByteArray());
+        return path;
+    }
+
+    private static int record(int dataOffset) {
+        return NODE_COUNT + 16 + dataOffset;
+    }
+
+    private static void node(ByteArrayOutputStream out, int left, int right) {
+        for (int value : new int[] {left, right}) {
+            out.write(value >>> 16);
+            out.write(value >>> 8);
+            out.write(value);
+        }
+    }
+
+    /**
+     * Writes data section values in the MaxMind DB encoding.
+     */
+    private static final class Data {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        int offset() {
+            return out.size();
+        }
+
+        byte[] bytes() {
+            return out.toByteArray();
+        }
+
+        /**
+         * Fill with bytes no record points at, so the next value starts at {@code offset}.
+         */
+        void padTo(int offset) {
+            out.write(new byte[offset - out.size()], 0, offset - out.size());
+        }
+
+        Data map(int pairs) {
+            control(7, pairs);
+            return this;
+        }
+
+        Data string(String s) {
+            final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            control(2, bytes.length);
+            out.write(bytes, 0, bytes.length);
+            return this;
+        }
+
+        Data real(double d) {
+            control(3, 8);
+            final long bits = Double.doubleToLongBits(d);
+            for (int i = 56; i >= 0; i -= 8) out.write((int) (bits >>> i));
+            return this;
+        }
+
+        Data uint(int type, long value, int size) {
+            control(type, size);
+            for (int i = size - 1; i >= 0; i--) out.write((int) (value >>> (i * 8)));
+            return this;
+        }
+
+        /**
+         * @param sizeBits 0 to 3, for 11, 19, 27 and 32-bit pointers
+         */
+        Data pointer(int sizeBits, int target) {
+            switch (sizeBits) {
+                case 0 -> {
+                    out.write(0x20 | target >>> 8);
+                    out.write(target);
+                }
+                case 1 -> {
+                    final int v = target - 2048;
+                    out.write(0x28 | v >>> 16);
+                    out.write(v >>> 8);
+                    out.write(v);
+                }
+                case 2 -> {
+                    final int v = target - 526_336;
+                    out.write(0x30 | v >>> 24);
+                    out.write(v >>> 16);
+                    out.write(v >>> 8);
+                    out.write(v);
+                }
+                default -> {
+                    out.write(0x38);
+                    for (int i = 24; i >= 0; i -= 8) out.write(target >>> i);
+                }
+            }
+            return this;
+        }
+
+        private void control(int type, int size) {
+            final int code = size < 29 ? size : size < 285 ? 29 : size < 65_821 ? 30 : 31;
+            out.write(type << 5 | code);
+            if (code == 29) {
+                out.write(size - 29);
+            } else if (code == 30) {
+                out.write((size - 285) >>> 8);
+                out.write(size - 285);
+            } else if (code == 31) {
+                out.write((size - 65_821) >>> 16);
+                out.write((size - 65_821) >>> 8);
+                out.write(size - 65_821);
+            }
+        }
+    }
+}
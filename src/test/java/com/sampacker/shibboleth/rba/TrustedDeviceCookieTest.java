@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2025 Sam Packer
+ *
+ * This software is licensed under the PolyForm Noncommercial License 1.0.0.
+ *
+ * You may use, copy, modify, and distribute this software for noncommercial purposes only.
+ * Commercial use of this software, in whole or in part, is prohibited.
+ *
+ * See the full license text at:
+ * https://polyformproject.org/licenses/noncommercial/1.0.0/
+ * or in the LICENSE.md file included with this source code.
+ */
+
+package com.sampacker.shibboleth.rba;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Issues device cookies under a fixed key and clock, and checks that only the untouched cookie, presented in time
+ * by the same user from the same browser and network, is accepted.
+ */
+class TrustedDeviceCookieTest {
+    private static final byte[] KEY = "0123456789abcdef0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    private static final long LIFETIME = 3600;
+    private static final long NOW = 1_750_000_000L;
+    private static final String USER = "jdoe";
+    private static final String CHROME = "Mozilla/5.0 (X11; Linux x86_64) Chrome/124.0.6367.91 Safari/537.36";
+    private static final String IP = "203.0.113.7";
+
+    private final TrustedDeviceCookie cookies = new TrustedDeviceCookie(KEY, LIFETIME, 24, 48);
+
+    @Test
+    void acceptsTheSameUserBrowserAndNetwork() {
+        final String cookie = cookies.issue(USER, CHROME, IP, NOW);
+
+        assertTrue(cookies.verify(cookie, USER, CHROME, IP, NOW));
+        assertTrue(cookies.verify(cookie, USER, CHROME.replace("124.0.6367.91", "124.0.6367.155"), IP, NOW + 60));
+        assertTrue(cookies.verify(cookie, USER, CHROME, "203.0.113.250", NOW));
+        assertTrue(cookies.verify(cookie, USER, CHROME, "::ffff:203.0.113.9", NOW));
+    }
+
+    @Test
+    void rejectsAnotherUserBrowserOrNetwork() {
+        final String cookie = cookies.issue(USER, CHROME, IP, NOW);
+
+        assertFalse(cookies.verify(cookie, "jdoe2", CHROME, IP, NOW));
+        assertFalse(cookies.verify(cookie, USER, CHROME.replace("Chrome/124", "Chrome/125"), IP, NOW));
+        assertFalse(cookies.verify(cookie, USER, CHROME.replace("Linux x86_64", "Windows NT 10.0"), IP, NOW));
+        assertFalse(cookies.verify(cookie, USER, CHROME, "203.0.114.7", NOW));
+        assertFalse(cookies.verify(cookie, USER, CHROME, "2001:db8::1", NOW));
+    }
+
+    @Test
+    void rejectsExpiredCookies() {
+        final String cookie = cookies.issue(USER, CHROME, IP, NOW);
+
+        assertTrue(cookies.verify(cookie, USER, CHROME, IP, NOW + LIFETIME - 1));
+        assertFalse(cookies.verify(cookie, USER, CHROME, IP, NOW + LIFETIME));
+        assertFalse(cookies.verify(cookie, USER, CHROME, IP, NOW + 10 * LIFETIME));
+    }
+
+    @Test
+    void rejectsEverySingleBitFlip() {
+        final byte[] token = Base64.getUrlDecoder().decode(cookies.issue(USER, CHROME, IP, NOW));
+
+        for (int i = 0; i < token.length; i++) {
+            for (int bit = 0; bit < 8; bit++) {
+                final byte[] tampered = token.clone();
+                tampered[i] ^= (byte) (1 << bit);
+                assertFalse(cookies.verify(encode(tampered), USER, CHROME, IP, NOW), "byte " + i + " bit " + bit);
+            }
+        }
+    }
+
+    @Test
+    void rejectsAnExtendedExpiry() {
+        final byte[] token = Base64.getUrlDecoder().decode(cookies.issue(USER, CHROME, IP, NOW));
+        // Push the expiry a year out, keeping the tag.
+        final long expiry = NOW + LIFETIME + 365 * 86400L;
+        for (int i = 0; i < 4; i++) token[1 + i] = (byte) (expiry >>> (24 - i * 8));
+
+        assertFalse(cookies.verify(encode(token), USER, CHROME, IP, NOW + 2 * LIFETIME));
+    }
+
+    @Test
+    void rejectsCookiesFromAnotherKey() {
+        final byte[] otherKey = KEY.clone();
+        otherKey[0] ^= 1;
+        final String forged = new TrustedDeviceCookie(otherKey, LIFETIME, 24, 48).issue(USER, CHROME, IP, NOW);
+
+        assertFalse(cookies.verify(forged, USER, CHROME, IP, NOW));
+    }
+
+    @Test
+    void rejectsMalformedValues() {
+        final String cookie = cookies.issue(USER, CHROME, IP, NOW);
+        final byte[] token = Base64.getUrlDecoder().decode(cookie);
+
+        assertFalse(cookies.verify(null, USER, CHROME, IP, NOW));
+        assertFalse(cookies.verify("", USER, CHROME, IP, NOW));
+        assertFalse(cookies.verify("not base64!", USER, CHROME, IP, NOW));
+        assertFalse(cookies.verify(cookie.substring(0, cookie.length() - 2), USER, CHROME, IP, NOW));
+        assertFalse(cookies.verify(encode(Arrays.copyOf(token, token.length + 1)), USER, CHROME, IP, NOW));
+        assertFalse(cookies.verify(cookie + "A".repeat(64), USER, CHROME, IP, NOW));
+    }
+
+    private static String encode(byte[] token) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(token);
+    }
+}